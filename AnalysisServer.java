@@ -0,0 +1,383 @@
+package model;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP/JSON server for calling the engine from other services, on the JDK's built-in HTTP server.
+ *
+ *   GET /moves?fen=...             legal moves in UCI notation
+ *   GET /move?fen=...&move=e2e4    the FEN after the move
+ *   GET /analyze?fen=...&ms=500    best move and score, searching for at most ms milliseconds (or depth=n);
+ *                                  with multipv=n also the n best moves with scores and principal variations
+ *   GET /metrics                   request counts and p50/p99 latency per endpoint, plus the engine's Metrics
+ *                                  when the JVM runs with -Dchess.metrics=true
+ *
+ * Parameters may also be sent as a form-encoded POST body. A missing fen means the start position.
+ *
+ * Searches run on a fixed pool of search threads, each with its own Search, behind a bounded queue; when the
+ * queue is full /analyze answers 503 instead of letting latency grow without bound. Concurrent requests to
+ * analyze the same position with the same limits share one search. At most queue size requests wait on another
+ * request's search at a time, and the HTTP pool has a thread for each of them, so a burst of identical requests
+ * is answered 503 like a full queue rather than taking the threads the other endpoints need. Positions are parsed into a pool of
+ * preallocated Position objects so the cheap endpoints do not allocate a board per request. The search threads
+ * share one evaluation cache and one transposition table. The table's entries only age when a search starts while
+ * no other is running, so concurrent searches do not push each other's entries out as stale.
+ *
+ * Usage: AnalysisServer [port] [search threads] [queue size]
+ */
+public class AnalysisServer {
+
+	static final int MAX_MILLIS = 30000;
+	static final int DEFAULT_MILLIS = 1000;
+	static final int POOL_SIZE = 64;
+	static final String START_FEN = "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq - 0 1";
+	static final int MAX_MULTI_PV = 32;
+
+	HttpServer server;
+	ExecutorService httpThreads;
+	ThreadPoolExecutor searchThreads;
+	ThreadLocal<Search> searches;
+	EvalCache cache;
+	TranspositionTable table;
+	AtomicInteger searching; // searches running now; the first to start after an idle spell ages the table
+
+	ArrayBlockingQueue<Position> positions;
+	ConcurrentHashMap<String, CompletableFuture<String>> inFlight;
+	Semaphore mergeSlots; // for requests waiting on a search started by another request
+
+	Map<String, Latency> latencies;
+	LongAdder merged;
+	LongAdder rejected;
+
+	public AnalysisServer(int port, int threads, int queueSize) throws IOException {
+		cache = new EvalCache(64);
+		table = new TranspositionTable(64);
+		searches = ThreadLocal.withInitial(() -> {
+			Search s = new Search(cache, table);
+			s.agesTable = false;
+			return s;
+		});
+		searching = new AtomicInteger();
+		searchThreads = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(queueSize));
+		// handlers mostly wait on searches, so there are enough of them for every search that can be queued and
+		// every merged request, with a few left for the other endpoints
+		httpThreads = Executors.newFixedThreadPool(threads + 2*queueSize + 4);
+		mergeSlots = new Semaphore(queueSize);
+
+		positions = new ArrayBlockingQueue<Position>(POOL_SIZE);
+		for (int i = 0; i < POOL_SIZE; ++i) {
+			Position p = new Position();
+			p.setNew();
+			positions.add(p);
+		}
+		inFlight = new ConcurrentHashMap<String, CompletableFuture<String>>();
+
+		latencies = new HashMap<String, Latency>();
+		for (String name : new String[] {"moves", "move", "analyze"}) {
+			latencies.put(name, new Latency());
+		}
+		merged = new LongAdder();
+		rejected = new LongAdder();
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.setExecutor(httpThreads);
+		server.createContext("/moves", ex -> handle(ex, "moves"));
+		server.createContext("/move", ex -> handle(ex, "move"));
+		server.createContext("/analyze", ex -> handle(ex, "analyze"));
+		server.createContext("/metrics", ex -> respond(ex, 200, metrics()));
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		int queueSize = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		AnalysisServer s = new AnalysisServer(port, threads, queueSize);
+		s.start();
+		System.out.println("Listening on 127.0.0.1:" + port + " with " + threads + " search threads");
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		httpThreads.shutdownNow();
+		searchThreads.shutdownNow();
+	}
+
+	void handle(HttpExchange ex, String endpoint) throws IOException {
+		long start = System.nanoTime();
+		int status = 200;
+		String body;
+		try {
+			Map<String, String> params = parameters(ex);
+			switch (endpoint) {
+			case "moves":
+				body = moves(params);
+				break;
+			case "move":
+				body = move(params);
+				break;
+			default:
+				body = analyze(params);
+				break;
+			}
+		} catch (IllegalArgumentException e) {
+			status = 400;
+			body = error(e.getMessage());
+		} catch (ExecutionException e) {
+			// a merged request whose search failed or was rejected answers the same way as the original
+			status = e.getCause() instanceof RejectedExecutionException ? 503 : 500;
+			body = error(status == 503 ? "search queue full" : e.getCause().toString());
+			if (status == 503) rejected.increment();
+		} catch (RejectedExecutionException e) {
+			status = 503;
+			body = error("search queue full");
+			rejected.increment();
+		} catch (Exception e) {
+			status = 500;
+			body = error(e.toString());
+		}
+		respond(ex, status, body);
+		latencies.get(endpoint).record(System.nanoTime() - start);
+	}
+
+	String moves(Map<String, String> params) {
+		Position pos = borrow(params.get("fen"));
+		try {
+			StringBuilder sb = new StringBuilder("{\"fen\":\"").append(pos.toFen()).append("\",\"moves\":[");
+			List<Move> moves = pos.getMoves();
+			for (int i = 0; i < moves.size(); ++i) {
+				if (i > 0) sb.append(',');
+				sb.append('"').append(moves.get(i).getUciName()).append('"');
+			}
+			return sb.append("]}").toString();
+		} finally {
+			release(pos);
+		}
+	}
+
+	String move(Map<String, String> params) {
+		Position pos = borrow(params.get("fen"));
+		try {
+			String uci = params.get("move");
+			Move m = uci == null ? null : Uci.parseMove(pos, uci);
+			if (m == null) throw new IllegalArgumentException("illegal move: " + uci);
+			pos.move(m);
+			return "{\"fen\":\"" + pos.toFen() + "\"}";
+		} finally {
+			release(pos);
+		}
+	}
+
+	String analyze(Map<String, String> params) throws Exception {
+		int millis = Math.min(MAX_MILLIS, intParameter(params, "ms", DEFAULT_MILLIS));
+		int depth = Math.min(Search.MAX_PLY, intParameter(params, "depth", Search.MAX_PLY));
+		int multiPv = Math.min(MAX_MULTI_PV, intParameter(params, "multipv", 1));
+		Position root;
+		Position pos = borrow(params.get("fen"));
+		try {
+			root = new Position(pos);
+		} finally {
+			release(pos);
+		}
+		// the normalized FEN, so differently written requests for the same position still share a search
+		String key = root.toFen() + "|" + millis + "|" + depth + "|" + multiPv;
+
+		CompletableFuture<String> mine = new CompletableFuture<String>();
+		CompletableFuture<String> existing = inFlight.putIfAbsent(key, mine);
+		if (existing != null) {
+			if (!mergeSlots.tryAcquire()) throw new RejectedExecutionException("too many merged requests");
+			try {
+				merged.increment();
+				return existing.get();
+			} finally {
+				mergeSlots.release();
+			}
+		}
+		try {
+			searchThreads.execute(() -> {
+				try {
+					Search search = searches.get();
+					search.multiPv = multiPv;
+					if (searching.getAndIncrement() == 0) table.newSearch();
+					Move best;
+					try {
+						best = search.search(root, depth, Long.MAX_VALUE, millis);
+					} finally {
+						searching.decrementAndGet();
+					}
+					mine.complete("{\"bestmove\":" + (best == null ? "null" : "\"" + best.getUciName() + "\"")
+						+ ",\"score\":" + search.getBestScore() + ",\"depth\":" + search.getCompletedDepth()
+						+ ",\"nodes\":" + search.getStats().getNodes()
+						+ (multiPv > 1 ? ",\"lines\":" + lines(search.getLines()) : "") + "}");
+				} catch (Throwable t) {
+					mine.completeExceptionally(t);
+				} finally {
+					inFlight.remove(key, mine);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			inFlight.remove(key, mine);
+			mine.completeExceptionally(e);
+			throw e;
+		}
+		return mine.get();
+	}
+
+	static String lines(List<Search.Line> lines) {
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < lines.size(); ++i) {
+			Search.Line l = lines.get(i);
+			if (i > 0) sb.append(',');
+			sb.append("{\"move\":\"").append(l.move.getUciName()).append("\",\"score\":").append(l.score).append(",\"pv\":[");
+			for (int j = 0; j < l.pv.size(); ++j) {
+				if (j > 0) sb.append(',');
+				sb.append('"').append(l.pv.get(j).getUciName()).append('"');
+			}
+			sb.append("]}");
+		}
+		return sb.append(']').toString();
+	}
+
+	String metrics() {
+		StringBuilder sb = new StringBuilder("{");
+		for (Map.Entry<String, Latency> e : latencies.entrySet()) {
+			sb.append('"').append(e.getKey()).append("\":").append(e.getValue().toJson()).append(',');
+		}
+		sb.append("\"queued\":").append(searchThreads.getQueue().size());
+		sb.append(",\"active\":").append(searchThreads.getActiveCount());
+		sb.append(",\"merged\":").append(merged.sum());
+		sb.append(",\"rejected\":").append(rejected.sum());
+		sb.append(",\"evalCacheHitRate\":").append(String.format(Locale.ROOT, "%.1f", cache.getHitRate()));
+		sb.append(",\"transpositionTableHitRate\":").append(String.format(Locale.ROOT, "%.1f", table.getHitRate()));
+		if (Metrics.ENABLED) sb.append(",\"engine\":").append(Metrics.snapshot().toJson());
+		return sb.append('}').toString();
+	}
+
+	// a pooled Position set up from fen, or the start position; must be handed back with release()
+	Position borrow(String fen) {
+		Position pos = positions.poll();
+		if (pos == null) pos = new Position();
+		try {
+			if (fen == null || fen.isEmpty()) {
+				pos.setNew();
+			} else {
+				pos.setFen(fen);
+			}
+		} catch (RuntimeException e) {
+			release(pos);
+			throw new IllegalArgumentException("invalid FEN: " + fen);
+		}
+		// with -Dchess.verify, check that nothing from the position's last request survived setNew()
+		if (Position.VERIFY && (fen == null || fen.isEmpty()) && !pos.toFen().equals(START_FEN)) {
+			release(pos);
+			throw new IllegalStateException("pooled position not reset: " + pos.toFen());
+		}
+		return pos;
+	}
+
+	void release(Position pos) {
+		positions.offer(pos);
+	}
+
+	static int intParameter(Map<String, String> params, String name, int def) {
+		String s = params.get(name);
+		if (s == null) return def;
+		try {
+			return Math.max(1, Integer.parseInt(s));
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("invalid " + name + ": " + s);
+		}
+	}
+
+	static Map<String, String> parameters(HttpExchange ex) throws IOException {
+		Map<String, String> params = new HashMap<String, String>();
+		parse(ex.getRequestURI().getRawQuery(), params);
+		if (ex.getRequestMethod().equals("POST")) {
+			try (InputStream in = ex.getRequestBody()) {
+				parse(new String(in.readAllBytes(), StandardCharsets.UTF_8), params);
+			}
+		}
+		return params;
+	}
+
+	static void parse(String query, Map<String, String> params) {
+		if (query == null || query.isEmpty()) return;
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			if (eq < 0) continue;
+			params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+				URLDecoder.decode(pair.substring(eq+1), StandardCharsets.UTF_8));
+		}
+	}
+
+	static String error(String message) {
+		return "{\"error\":\"" + String.valueOf(message).replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+	}
+
+	static void respond(HttpExchange ex, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		ex.getResponseHeaders().set("Content-Type", "application/json");
+		ex.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = ex.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Latencies of the last WINDOW requests to one endpoint; percentiles are computed on demand by sorting a copy.
+	 */
+	static class Latency {
+
+		static final int WINDOW = 4096;
+
+		long[] samples = new long[WINDOW];
+		long count;
+
+		synchronized void record(long nanos) {
+			samples[(int) (count++ % WINDOW)] = nanos;
+		}
+
+		synchronized String toJson() {
+			int n = (int) Math.min(count, WINDOW);
+			long[] sorted = Arrays.copyOf(samples, n);
+			Arrays.sort(sorted);
+			return "{\"count\":" + count + ",\"p50ms\":" + millis(sorted, 0.50) + ",\"p99ms\":" + millis(sorted, 0.99) + "}";
+		}
+
+		static String millis(long[] sorted, double q) {
+			if (sorted.length == 0) return "0";
+			return String.format(Locale.ROOT, "%.2f", sorted[(int) Math.min(sorted.length-1, q * sorted.length)] / 1e6);
+		}
+
+	}
+
+}
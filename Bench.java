@@ -0,0 +1,127 @@
+package model;
+
+/**
+ * Fixed-depth benchmark. Searches a set of positions, reached by playing the listed moves from the start position,
+ * to the same depth with each pruning technique switched off in turn, and reports the nodes needed to reach the
+ * depth. Fewer nodes for the same depth = more effective pruning. Node counts are deterministic, so any change
+ * to them from a commit that was not supposed to change the search is a bug.
+ *
+ * Then the same positions are searched with all pruning on for 1 to MAX_MULTI_PV lines, with and without the
+ * transposition table, to show what each extra line costs next to the single line search.
+ *
+ * Last, the engine plays GAME_PLIES moves on from each position, and every move is searched to the depth twice:
+ * once by one Search and table kept for the whole game, as UCI play does, and once by a fresh Search and table
+ * per move. Both clear their evaluation cache every move, so the difference is what carrying the table and history
+ * from move to move saves in time to depth.
+ *
+ * Usage: Bench [depth] [eval cache MB] [transposition table MB, 0 = none]
+ */
+public class Bench {
+
+	static final String[][] POSITIONS = {
+		{},
+		{"e4","e5","Nf3","Nc6","Bb5","a6"},
+		{"d4","d5","c4","e6","Nc3","Nf6","Bg5","Be7"},
+		{"e4","c5","Nf3","d6","d4","cxd4","Nxd4","Nf6","Nc3","a6"},
+		{"e4","e5","Nf3","Nc6","Bc4","Bc5","c3","Nf6","d4","exd4"},
+		{"c4","e5","Nc3","Nf6","g3","d5","cxd5","Nxd5","Bg2","Nb6"},
+		{"e4","e6","d4","d5","Nc3","Bb4","e5","c5","a3","Bxc3"},
+		{"d4","Nf6","c4","g6","Nc3","Bg7","e4","d6","Nf3","O-O"},
+	};
+
+	static final int MAX_MULTI_PV = 5;
+	static final int GAME_PLIES = 16;
+
+	static final String[] CONFIG_NAMES = {"all on", "no null move", "no LMR", "no futility", "no razoring", "all off"};
+
+	public static void main(String[] args) {
+		int depth = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		int cacheMB = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int tableMB = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		for (int c = 0; c < CONFIG_NAMES.length; ++c) {
+			EvalCache cache = new EvalCache(cacheMB);
+			TranspositionTable table = tableMB > 0 ? new TranspositionTable(tableMB) : null;
+			Search search = new Search(cache, table);
+			configure(search, c);
+			SearchStats total = new SearchStats();
+			long start = System.nanoTime();
+			for (String[] moves : POSITIONS) {
+				search.search(playMoves(moves), depth);
+				total.add(search.getStats());
+			}
+			long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+			System.out.println(String.format("%-14s depth %d  %s  %d ms  %d nps  eval cache %.1f%% hits%s",
+				CONFIG_NAMES[c], depth, total, ms, total.nodes * 1000 / ms, cache.getHitRate(),
+				table == null ? "" : String.format("  table %.1f%% hits", table.getHitRate())));
+		}
+
+		for (int useTable = tableMB > 0 ? 1 : 0; useTable >= 0; --useTable) {
+			long single = 0;
+			for (int lines = 1; lines <= MAX_MULTI_PV; ++lines) {
+				Search search = new Search(new EvalCache(cacheMB), useTable == 1 ? new TranspositionTable(tableMB) : null);
+				search.multiPv = lines;
+				SearchStats total = new SearchStats();
+				long start = System.nanoTime();
+				for (String[] moves : POSITIONS) {
+					search.search(playMoves(moves), depth);
+					total.add(search.getStats());
+				}
+				long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+				if (lines == 1) single = Math.max(1, total.nodes);
+				System.out.println(String.format("multipv %d %-8s depth %d  nodes %d  %.2fx one line  %d ms", lines,
+					useTable == 1 ? "table" : "no table", depth, total.nodes, (double) total.nodes / single, ms));
+			}
+		}
+
+		if (tableMB > 0) games(depth, cacheMB, tableMB);
+	}
+
+	static void games(int depth, int cacheMB, int tableMB) {
+		long[] nodes = new long[2];
+		long[] nanos = new long[2];
+		int moves = 0;
+		for (String[] opening : POSITIONS) {
+			EvalCache keptCache = new EvalCache(cacheMB);
+			Search kept = new Search(keptCache, new TranspositionTable(tableMB));
+			Position pos = playMoves(opening);
+			for (int ply = 0; ply < GAME_PLIES; ++ply) {
+				Search fresh = new Search(new EvalCache(cacheMB), new TranspositionTable(tableMB));
+				// both start every move with an empty evaluation cache, so only the table and ordering differ
+				keptCache.clear();
+				long t0 = System.nanoTime();
+				fresh.search(pos, depth);
+				long t1 = System.nanoTime();
+				Move best = kept.search(pos, depth);
+				long t2 = System.nanoTime();
+				if (best == null) break;
+				nodes[0] += kept.getStats().getNodes();
+				nodes[1] += fresh.getStats().getNodes();
+				nanos[0] += t2 - t1;
+				nanos[1] += t1 - t0;
+				moves++;
+				pos.move(best);
+			}
+		}
+		for (int i = 0; i < 2; ++i) {
+			System.out.println(String.format("game %-9s depth %d  %d moves  nodes %d  %d ms", i == 0 ? "kept" : "per move",
+				depth, moves, nodes[i], nanos[i] / 1000000));
+		}
+	}
+
+	static void configure(Search search, int config) {
+		search.useNullMove = config != 1 && config != 5;
+		search.useLmr = config != 2 && config != 5;
+		search.useFutility = config != 3 && config != 5;
+		search.useRazoring = config != 4 && config != 5;
+	}
+
+	static Position playMoves(String[] moves) {
+		Position pos = new Position();
+		pos.setNew();
+		for (int i = 0; i < moves.length; ++i) {
+			pos.move(moves[i]);
+		}
+		return pos;
+	}
+
+}
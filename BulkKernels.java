@@ -0,0 +1,230 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Operations that do the same arithmetic for every piece or every square of a position, in a form a SIMD backend
+ * can take over. Pieces are passed as parallel arrays of 32 Piece encodings and squares, white and black
+ * together, as load() fills them. Entries from n on are 0, so a backend may run over all 32 without masking.
+ * Counts come back direction-major, counts[d*32 + i] for piece i.
+ *
+ * INSTANCE is the scalar code unless -Dchess.vector=true is given and the JVM was started with
+ * --add-modules jdk.incubator.vector, in which case it is VectorKernels. That class is kept in vector/ so the
+ * plain `javac *.java` build does not need the incubator module; compile it along with the rest with
+ * `javac --add-modules jdk.incubator.vector -d out *.java vector/*.java`.
+ *
+ * Usage: BulkKernels [positions]   checks both backends against each other and Evaluation, and times them
+ */
+public interface BulkKernels {
+
+	BulkKernels INSTANCE = select();
+
+	// decodes the eight 3-bit move counts of each piece
+	void decode(int[] encodings, int n, int[] counts);
+
+	// sum of weights[type] times Piece.getMobility() over the pieces, with the sign of each piece's colour
+	int mobility(int[] encodings, int n, int[] weights);
+
+	// the squares the pieces can move to, as in getMobility(): a pinned piece only along its pin, both ways
+	long targets(int[] encodings, int[] squares, int n);
+
+	// sum of table[code*64 + square] over the squares, code as in codes()
+	int pieceSquare(int[] codes, int[] table);
+
+	static BulkKernels select() {
+		if (Boolean.getBoolean("chess.vector")) {
+			try {
+				return (BulkKernels) Class.forName("model.VectorKernels").getConstructor().newInstance();
+			} catch (ReflectiveOperationException | LinkageError e) {
+				System.err.println("Vector kernels not available, using scalar code: " + e);
+			}
+		}
+		return new Scalar();
+	}
+
+	// TARGETS[((knight ? 1 : 0)*64 + square)*8 + direction)*8 + count]: the first count squares in the direction
+	long[] TARGETS = Scalar.targetTable();
+
+	// fills the arrays for both colours, kings first, zeroes the rest and returns the number of pieces
+	static int load(Position pos, int[] encodings, int[] squares) {
+		int n = 0;
+		for (int i = 0; i < pos.nWhitePieces; ++i) {
+			squares[n] = pos.wpI[i];
+			encodings[n++] = pos.pieces[pos.board[pos.wpI[i]]].encoding;
+		}
+		for (int i = 0; i < pos.nBlackPieces; ++i) {
+			squares[n] = pos.bpI[i];
+			encodings[n++] = pos.pieces[pos.board[pos.bpI[i]]].encoding;
+		}
+		for (int i = n; i < 32; ++i) {
+			squares[i] = 0;
+			encodings[i] = 0;
+		}
+		return n;
+	}
+
+	// per square 0 when empty, else type for white and type+6 for black
+	static void codes(Position pos, int[] codes) {
+		for (int sq = 0; sq < 64; ++sq) {
+			if (pos.board[sq] < 0) {
+				codes[sq] = 0;
+			} else {
+				Piece p = pos.pieces[pos.board[sq]];
+				codes[sq] = p.getType() + (p.getColor() ? 0 : 6);
+			}
+		}
+	}
+
+	static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		List<Position> positions = new ArrayList<Position>();
+		Random random = new Random(1);
+		while (positions.size() < n) {
+			Position pos = new Position();
+			pos.setNew();
+			for (int ply = 0; ply < 120 && positions.size() < n; ++ply) {
+				List<Move> legal = pos.getLegalMoves();
+				if (legal.isEmpty()) break;
+				pos.move(legal.get(random.nextInt(legal.size())));
+				positions.add(new Position(pos));
+			}
+		}
+		int[] table = new int[13 * 64];
+		for (int i = 64; i < table.length; ++i) {
+			table[i] = random.nextInt(101) - 50;
+		}
+		int[][] encodings = new int[n][32];
+		int[][] squares = new int[n][32];
+		int[] counts = new int[n];
+		int[][] codes = new int[n][64];
+		Evaluation eval = new Evaluation();
+		for (int i = 0; i < n; ++i) {
+			Position pos = positions.get(i);
+			counts[i] = load(pos, encodings[i], squares[i]);
+			codes(pos, codes[i]);
+			int expected = eval.mobility(pos, true) - eval.mobility(pos, false);
+			if (new Scalar().mobility(encodings[i], counts[i], Evaluation.MOBILITY) != expected) {
+				throw new IllegalStateException("mobility differs from Evaluation in " + pos.toFen());
+			}
+		}
+
+		List<BulkKernels> backends = new ArrayList<BulkKernels>();
+		backends.add(new Scalar());
+		if (!(INSTANCE instanceof Scalar)) backends.add(INSTANCE);
+		long[] checksums = new long[backends.size()];
+		for (int b = 0; b < backends.size(); ++b) {
+			BulkKernels k = backends.get(b);
+			int[] decoded = new int[8 * 32];
+			for (int round = 0; round < 6; ++round) { // the first rounds warm up the JIT
+				long checksum = 0;
+				long t0 = System.nanoTime();
+				for (int i = 0; i < n; ++i) {
+					k.decode(encodings[i], counts[i], decoded);
+					checksum += decoded[(i%8)*32 + i%counts[i]]; // entries from n on are not defined
+				}
+				long t1 = System.nanoTime();
+				for (int i = 0; i < n; ++i) {
+					checksum = checksum * 31 + k.mobility(encodings[i], counts[i], Evaluation.MOBILITY);
+				}
+				long t2 = System.nanoTime();
+				for (int i = 0; i < n; ++i) {
+					checksum = checksum * 31 + k.targets(encodings[i], squares[i], counts[i]);
+				}
+				long t3 = System.nanoTime();
+				for (int i = 0; i < n; ++i) {
+					checksum = checksum * 31 + k.pieceSquare(codes[i], table);
+				}
+				long t4 = System.nanoTime();
+				checksums[b] = checksum;
+				if (round == 5) {
+					System.out.println(String.format("%-8s decode %5.1f ns  mobility %5.1f ns  targets %5.1f ns  "
+						+ "piece-square %5.1f ns per position", k.getClass().getSimpleName(), (double) (t1-t0) / n,
+						(double) (t2-t1) / n, (double) (t3-t2) / n, (double) (t4-t3) / n));
+				}
+			}
+		}
+		for (int b = 1; b < backends.size(); ++b) {
+			if (checksums[b] != checksums[0]) throw new IllegalStateException("backends disagree");
+		}
+		System.out.println(n + " positions, " + (backends.size() > 1 ? "backends agree" : "scalar only"));
+	}
+
+	/**
+	 * The reference implementation, and the fallback.
+	 */
+	class Scalar implements BulkKernels {
+
+		static long[] targetTable() {
+			int[][] lines = {{0,1},{1,1},{1,0},{1,-1},{0,-1},{-1,-1},{-1,0},{-1,1}}; // {file, rank}, as lsteps
+			int[][] jumps = {{1,2},{2,1},{2,-1},{1,-2},{-1,-2},{-2,-1},{-2,1},{-1,2}}; // as setMovesForPiece
+			long[] table = new long[2 * 64 * 8 * 8];
+			for (int knight = 0; knight < 2; ++knight) {
+				for (int sq = 0; sq < 64; ++sq) {
+					for (int d = 0; d < 8; ++d) {
+						int[] delta = knight == 1 ? jumps[d] : lines[d];
+						long bits = 0;
+						int f = sq%8;
+						int r = sq/8;
+						for (int c = 1; c < 8; ++c) {
+							f += delta[0];
+							r += delta[1];
+							if (f >= 0 && f < 8 && r >= 0 && r < 8 && (knight == 0 || c == 1)) bits |= 1L << (r*8 + f);
+							table[((knight*64 + sq)*8 + d)*8 + c] = bits;
+						}
+					}
+				}
+			}
+			return table;
+		}
+
+		public void decode(int[] encodings, int n, int[] counts) {
+			for (int d = 0; d < 8; ++d) {
+				for (int i = 0; i < n; ++i) {
+					counts[d*32 + i] = (encodings[i] >>> (8 + 3*d)) & 7;
+				}
+			}
+		}
+
+		public int mobility(int[] encodings, int n, int[] weights) {
+			int sum = 0;
+			for (int i = 0; i < n; ++i) {
+				int e = encodings[i];
+				int mvs = e >>> 8;
+				int m;
+				int pin = e >>> 5 & 7;
+				if ((e & 16) != 0) m = (e >>> 1 & 7) == 2 ? 0 : (mvs >>> (3*pin) & 7) + (mvs >>> (3*((pin+4)%8)) & 7);
+				else m = Piece.MOVE_COUNTS[mvs & 4095] + Piece.MOVE_COUNTS[mvs >>> 12];
+				m *= weights[e >>> 1 & 7];
+				sum += (e & 1) != 0 ? m : -m;
+			}
+			return sum;
+		}
+
+		public long targets(int[] encodings, int[] squares, int n) {
+			long bits = 0;
+			for (int i = 0; i < n; ++i) {
+				int e = encodings[i];
+				int knight = (e >>> 1 & 7) == 2 ? 1 : 0;
+				boolean pinned = (e & 16) != 0;
+				int pin = e >>> 5 & 7;
+				for (int d = 0; d < 8; ++d) {
+					if (pinned && (knight == 1 || (d != pin && d != (pin+4)%8))) continue;
+					bits |= TARGETS[((knight*64 + squares[i])*8 + d)*8 + (e >>> (8 + 3*d) & 7)];
+				}
+			}
+			return bits;
+		}
+
+		public int pieceSquare(int[] codes, int[] table) {
+			int sum = 0;
+			for (int sq = 0; sq < 64; ++sq) {
+				sum += table[codes[sq]*64 + sq];
+			}
+			return sum;
+		}
+
+	}
+
+}
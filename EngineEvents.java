@@ -0,0 +1,112 @@
+package model;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Percentage;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events, so a recording of a slow analysis shows the engine next to GC and safepoint
+ * pauses on the same timeline. They cost nothing unless a recording is running, for example with
+ * -XX:StartFlightRecording or `jcmd <pid> JFR.start`.
+ *
+ * A SearchIteration event is committed for every iterative deepening iteration. getMoves() is called far too
+ * often to record every call, so only one in SAMPLE_RATE calls becomes a MoveGeneration event. MoveUpdate
+ * events are only kept for modifyMovesAtSquare calls slower than their threshold, 20 us unless the recording
+ * settings say otherwise.
+ *
+ * The move generation events are created in the hottest methods, so those check RECORDING first. It is kept up
+ * to date by a recorder listener, and without a running recording the cost there is one field read and branch.
+ */
+public class EngineEvents {
+
+	static final int SAMPLE_RATE = 1024;
+
+	// whether any recording is running
+	static volatile boolean RECORDING;
+
+	static {
+		FlightRecorder.addListener(new FlightRecorderListener() {
+			public void recordingStateChanged(Recording r) {
+				update();
+			}
+		});
+		if (FlightRecorder.isInitialized()) update();
+	}
+
+	static void update() {
+		boolean running = false;
+		for (Recording r : FlightRecorder.getFlightRecorder().getRecordings()) {
+			if (r.getState() == RecordingState.RUNNING) running = true;
+		}
+		RECORDING = running;
+	}
+
+	// whether this call should record a sampled event
+	static boolean sample() {
+		return RECORDING && ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0;
+	}
+
+	@Name("model.SearchIteration")
+	@Label("Search Iteration")
+	@Category({"Chess", "Search"})
+	@Description("One iterative deepening iteration, from its start to the root result")
+	@StackTrace(false)
+	public static class SearchIteration extends Event {
+		@Label("Depth")
+		int depth;
+		@Label("Score")
+		int score;
+		@Label("Nodes")
+		long nodes;
+		@Label("Nodes per Second")
+		long nps;
+		@Label("Best Move")
+		String bestMove;
+		@Label("Eval Cache Hit Rate")
+		@Description("Eval cache hits during the iteration; the cache may be shared with other searches")
+		@Percentage
+		double evalCacheHitRate;
+		@Label("Transposition Table Hit Rate")
+		@Description("Transposition table hits during the iteration; the table may be shared with other searches")
+		@Percentage
+		double transpositionTableHitRate;
+	}
+
+	@Name("model.MoveGeneration")
+	@Label("Move Generation")
+	@Category({"Chess", "Move Generation"})
+	@Description("A sampled Position.getMoves() call")
+	@StackTrace(false)
+	public static class MoveGeneration extends Event {
+		@Label("Moves")
+		int moves;
+		@Label("Checks")
+		int checks;
+	}
+
+	@Name("model.MoveUpdate")
+	@Label("Move Update")
+	@Category({"Chess", "Move Generation"})
+	@Description("A slow Position.modifyMovesAtSquare() call")
+	@Threshold("20 us")
+	@StackTrace(false)
+	public static class MoveUpdate extends Event {
+		@Label("Square")
+		String square;
+		@Label("Piece")
+		@Description("The piece arriving on the square, or empty when the square is vacated")
+		String piece;
+	}
+
+}
@@ -0,0 +1,84 @@
+package model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of full static evaluations keyed by Position.hash, shared by all search threads.
+ *
+ * Each entry is a single long: the upper 48 bits of the position's key, which verify the entry, and the score
+ * in the lower 16 bits. Because key and score are written together in one 64-bit store, there are no locks.
+ * A racing write at worst overwrites another thread's entry. A torn read would fail the key check and count as
+ * a miss.
+ *
+ * The index comes from the low bits of the key, so the verification bits only overlap it for tables larger
+ * than 2^16 entries, and even then at least 40 bits are left to verify with.
+ *
+ * Hits and misses are counted here for getHitRate(), and also in Metrics when it is enabled.
+ */
+public class EvalCache {
+
+	static final long KEY_MASK = ~0xFFFFL;
+	public static final int MISS = Integer.MIN_VALUE;
+
+	long[] entries;
+	int mask;
+
+	LongAdder hits;
+	LongAdder misses;
+
+	// size in MB, rounded down to a power of 2 number of entries
+	public EvalCache(int megabytes) {
+		long n = Math.max(1, ((long) megabytes << 20) / 8);
+		int size = (int) Math.min(Long.highestOneBit(n), 1 << 30);
+		entries = new long[size];
+		mask = size - 1;
+		hits = new LongAdder();
+		misses = new LongAdder();
+	}
+
+	// score from the side to move's point of view, or MISS
+	public int probe(long key) {
+		if (Metrics.ENABLED) Metrics.count(Metrics.EVAL_CACHE);
+		long e = entries[(int) key & mask];
+		if (e != 0 && (e & KEY_MASK) == (key & KEY_MASK)) {
+			hits.increment();
+			if (Metrics.ENABLED) Metrics.count(Metrics.EVAL_CACHE_HIT);
+			return (short) e;
+		}
+		misses.increment();
+		if (Metrics.ENABLED) Metrics.count(Metrics.EVAL_CACHE_MISS);
+		return MISS;
+	}
+
+	// score must fit in a short, which any static evaluation does
+	public void store(long key, int score) {
+		entries[(int) key & mask] = (key & KEY_MASK) | (score & 0xFFFF);
+	}
+
+	public void clear() {
+		for (int i = 0; i < entries.length; ++i) {
+			entries[i] = 0;
+		}
+		hits.reset();
+		misses.reset();
+	}
+
+	public int getSizeMB() {
+		return (int) (((long) entries.length * 8) >> 20);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (100.0 * h) / total;
+	}
+
+}
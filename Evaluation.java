@@ -0,0 +1,329 @@
+package model;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Static evaluation of a position in centipawns, from the point of view of the side to move.
+ *
+ * Terms:
+ *   material        - counted off wpI/bpI so it never touches empty squares
+ *   pawn structure  - doubled, isolated, backward and passed pawns, cached in a PawnHashTable by pawn key
+ *   pawn shield     - own pawns in front of a king on its back two ranks, from the cached pawn bitboards
+ *   mobility        - pseudo-legal moves of knights, bishops, rooks and queens, read straight from the move
+ *                     counts Position already keeps in each Piece encoding
+ *
+ * Bitboards here use the same square numbering as board: bit 0 is a1, bit 63 is h8.
+ *
+ * Full evaluations can be cached in an EvalCache, which may be shared between threads. Positions that carry an
+ * NNUE accumulator (see Nnue) are scored by the network instead of these terms.
+ *
+ * One Evaluation belongs to one search thread because its pawn table is not synchronized.
+ *
+ * Every term is a weight times a count, so the weights can be tuned against game results (see Tuner). They are
+ * read from the parameter file named by -Dchess.eval when the class loads, with one "NAME value" line per entry
+ * of WEIGHT_NAMES; weights the file does not name keep their defaults.
+ */
+public class Evaluation {
+
+	// indexed by Piece type, 1 pawn ... 6 king. The king is never traded so its value does not matter.
+	static final int[] PIECE_VALUES = {0, 100, 320, 330, 500, 900, 0};
+
+	static int DOUBLED_PAWN = 12;
+	static int ISOLATED_PAWN = 15;
+	static int BACKWARD_PAWN = 10;
+	static final int[] PASSED_PAWN = {0, 5, 10, 20, 35, 60, 100, 0}; // by rank from the pawn's own side
+	static int SHIELD_PAWN_1 = 10; // directly in front of the king
+	static int SHIELD_PAWN_2 = 5;  // one square further
+	static final int[] MOBILITY = {0, 0, 4, 4, 2, 1, 0}; // per move, by Piece type
+
+	// the tunable weights in the order of weights() and features(); entries that can never count are left out
+	static final String[] WEIGHT_NAMES = {
+		"PIECE_VALUES[1]", "PIECE_VALUES[2]", "PIECE_VALUES[3]", "PIECE_VALUES[4]", "PIECE_VALUES[5]",
+		"DOUBLED_PAWN", "ISOLATED_PAWN", "BACKWARD_PAWN",
+		"PASSED_PAWN[1]", "PASSED_PAWN[2]", "PASSED_PAWN[3]", "PASSED_PAWN[4]", "PASSED_PAWN[5]", "PASSED_PAWN[6]",
+		"SHIELD_PAWN_1", "SHIELD_PAWN_2",
+		"MOBILITY[2]", "MOBILITY[3]", "MOBILITY[4]", "MOBILITY[5]",
+	};
+	static final int W_PIECES = 0;
+	static final int W_DOUBLED = 5;
+	static final int W_ISOLATED = 6;
+	static final int W_BACKWARD = 7;
+	static final int W_PASSED = 8;
+	static final int W_SHIELD = 14;
+	static final int W_MOBILITY = 16;
+
+	static final String PARAMS = System.getProperty("chess.eval");
+
+	static final long FILE_A = 0x0101010101010101L;
+	static final long FILE_H = FILE_A << 7;
+	static final long[] FILES = new long[8];
+	static final long[] ADJACENT_FILES = new long[8];
+	static final long[][] PASSED_MASKS = new long[2][64]; // [0 white, 1 black][square], squares ahead on own and adjacent files
+	static final long[][] SUPPORT_MASKS = new long[2][64]; // adjacent files, same rank or behind
+
+	static {
+		for (int f = 0; f < 8; ++f) {
+			FILES[f] = FILE_A << f;
+		}
+		for (int f = 0; f < 8; ++f) {
+			ADJACENT_FILES[f] = (f > 0 ? FILES[f-1] : 0) | (f < 7 ? FILES[f+1] : 0);
+		}
+		for (int sq = 0; sq < 64; ++sq) {
+			int f = sq%8;
+			int r = sq/8;
+			for (int s = 0; s < 64; ++s) {
+				int sf = s%8;
+				int sr = s/8;
+				if (Math.abs(sf-f) > 1) continue;
+				if (sr > r) PASSED_MASKS[0][sq] |= 1L << s;
+				if (sr < r) PASSED_MASKS[1][sq] |= 1L << s;
+				if (sf != f) {
+					if (sr <= r) SUPPORT_MASKS[0][sq] |= 1L << s;
+					if (sr >= r) SUPPORT_MASKS[1][sq] |= 1L << s;
+				}
+			}
+		}
+	}
+
+	static {
+		if (PARAMS != null) {
+			try {
+				load(PARAMS);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	PawnHashTable pawnTable;
+	EvalCache cache; // null = no caching
+
+	public Evaluation() {
+		this(null);
+	}
+
+	public Evaluation(EvalCache cache) {
+		pawnTable = new PawnHashTable(1 << 14);
+		this.cache = cache;
+	}
+
+	static int[] weights() {
+		int[] w = new int[WEIGHT_NAMES.length];
+		System.arraycopy(PIECE_VALUES, 1, w, W_PIECES, 5);
+		w[W_DOUBLED] = DOUBLED_PAWN;
+		w[W_ISOLATED] = ISOLATED_PAWN;
+		w[W_BACKWARD] = BACKWARD_PAWN;
+		System.arraycopy(PASSED_PAWN, 1, w, W_PASSED, 6);
+		w[W_SHIELD] = SHIELD_PAWN_1;
+		w[W_SHIELD+1] = SHIELD_PAWN_2;
+		System.arraycopy(MOBILITY, 2, w, W_MOBILITY, 4);
+		return w;
+	}
+
+	// only before the first evaluation: cached pawn structure and evaluation scores are not invalidated
+	static void setWeights(int[] w) {
+		System.arraycopy(w, W_PIECES, PIECE_VALUES, 1, 5);
+		DOUBLED_PAWN = w[W_DOUBLED];
+		ISOLATED_PAWN = w[W_ISOLATED];
+		BACKWARD_PAWN = w[W_BACKWARD];
+		System.arraycopy(w, W_PASSED, PASSED_PAWN, 1, 6);
+		SHIELD_PAWN_1 = w[W_SHIELD];
+		SHIELD_PAWN_2 = w[W_SHIELD+1];
+		System.arraycopy(w, W_MOBILITY, MOBILITY, 2, 4);
+	}
+
+	static void load(String file) throws IOException {
+		int[] w = weights();
+		for (String line : Files.readAllLines(Paths.get(file))) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+			String[] f = line.split("\\s+");
+			int i = Arrays.asList(WEIGHT_NAMES).indexOf(f[0]);
+			if (f.length != 2 || i < 0) throw new IOException("Bad parameter line in " + file + ": " + line);
+			w[i] = Integer.parseInt(f[1]);
+		}
+		setWeights(w);
+	}
+
+	static void save(String file, int[] w, String comment) throws IOException {
+		try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(file)))) {
+			out.println("# " + comment);
+			for (int i = 0; i < w.length; ++i) {
+				out.println(WEIGHT_NAMES[i] + " " + w[i]);
+			}
+		}
+	}
+
+	public int evaluate(Position pos) {
+		long time = Metrics.ENABLED ? Metrics.start(Metrics.EVALUATE) : 0;
+		if (cache != null) {
+			int cached = cache.probe(pos.hash);
+			if (cached != EvalCache.MISS) {
+				if (Metrics.ENABLED) Metrics.end(Metrics.EVALUATE, time);
+				return cached;
+			}
+		}
+		int score;
+		if (pos.accumulator != null) {
+			score = pos.accumulator.net.evaluate(pos.accumulator, pos.halfTurnNumber%2 == 1);
+		} else {
+			score = material(pos, true) - material(pos, false);
+			score += pawns(pos);
+			score += mobility(pos, true) - mobility(pos, false);
+			if (pos.halfTurnNumber%2 == 0) score = -score;
+		}
+		if (cache != null) cache.store(pos.hash, score);
+		if (Metrics.ENABLED) Metrics.end(Metrics.EVALUATE, time);
+		return score;
+	}
+
+	public int material(Position pos, boolean white) {
+		int[] pcs = white ? pos.wpI : pos.bpI;
+		int n = white ? pos.nWhitePieces : pos.nBlackPieces;
+		int sum = 0;
+		for (int i = 1; i < n; ++i) {
+			sum += PIECE_VALUES[pos.pieces[pos.board[pcs[i]]].getType()];
+		}
+		return sum;
+	}
+
+	// used to avoid null moves in pawn endings, where zugzwang is common
+	public boolean hasNonPawnMaterial(Position pos, boolean white) {
+		int[] pcs = white ? pos.wpI : pos.bpI;
+		int n = white ? pos.nWhitePieces : pos.nBlackPieces;
+		for (int i = 1; i < n; ++i) {
+			if (pos.pieces[pos.board[pcs[i]]].getType() != 1) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// The encodings are kept up to date by modifyMovesAtSquare on every move, so this is two table lookups per
+	// piece. Keeping a running total per color instead would mean hooking every setNMovesInDir call, which
+	// costs more than the at most 15 pieces summed here.
+	public int mobility(Position pos, boolean white) {
+		int[] pcs = white ? pos.wpI : pos.bpI;
+		int n = white ? pos.nWhitePieces : pos.nBlackPieces;
+		int sum = 0;
+		for (int i = 1; i < n; ++i) {
+			Piece p = pos.pieces[pos.board[pcs[i]]];
+			sum += MOBILITY[p.getType()] * p.getMobility();
+		}
+		return sum;
+	}
+
+	// pawn structure and king shields, white minus black
+	public int pawns(Position pos) {
+		int entry = pawnTable.probe(pos.pawnHash);
+		if (entry < 0) {
+			long wp = pawnBitboard(pos, true);
+			long bp = pawnBitboard(pos, false);
+			entry = pawnTable.store(pos.pawnHash, pawnStructure(wp, bp), wp, bp);
+		}
+		long wp = pawnTable.whitePawns[entry];
+		long bp = pawnTable.blackPawns[entry];
+		return pawnTable.scores[entry] + shield(pos.wpI[0], true, wp) - shield(pos.bpI[0], false, bp);
+	}
+
+	static long pawnBitboard(Position pos, boolean white) {
+		int[] pcs = white ? pos.wpI : pos.bpI;
+		int n = white ? pos.nWhitePieces : pos.nBlackPieces;
+		long bb = 0;
+		for (int i = 1; i < n; ++i) {
+			if (pos.pieces[pos.board[pcs[i]]].getType() == 1) {
+				bb |= 1L << pcs[i];
+			}
+		}
+		return bb;
+	}
+
+	// the pawn terms of weights() times their pawnFeatures(), white minus black
+	static int pawnStructure(long wp, long bp) {
+		int[] f = new int[WEIGHT_NAMES.length];
+		pawnFeatures(wp, bp, f);
+		int[] w = weights();
+		int score = 0;
+		for (int i = W_DOUBLED; i < W_SHIELD; ++i) {
+			score += w[i] * f[i];
+		}
+		return score;
+	}
+
+	static int shield(int king, boolean white, long own) {
+		return SHIELD_PAWN_1 * shieldPawns(king, white, own, 1) + SHIELD_PAWN_2 * shieldPawns(king, white, own, 2);
+	}
+
+	/**
+	 * The count each weight is multiplied by in evaluate(), white minus black, so that the score from white's
+	 * point of view is the dot product with weights(). Penalties count negatively. evaluate() scores the pawn
+	 * structure and king shields from the same routines, so the two cannot drift apart.
+	 */
+	static void features(Position pos, int[] f) {
+		Arrays.fill(f, 0);
+		for (int side = 0; side < 2; ++side) {
+			boolean white = side == 0;
+			int sign = white ? 1 : -1;
+			int[] pcs = white ? pos.wpI : pos.bpI;
+			int n = white ? pos.nWhitePieces : pos.nBlackPieces;
+			for (int i = 1; i < n; ++i) {
+				Piece p = pos.pieces[pos.board[pcs[i]]];
+				f[W_PIECES + p.getType()-1] += sign;
+				if (p.getType() >= 2 && p.getType() <= 5) f[W_MOBILITY + p.getType()-2] += sign * p.getMobility();
+			}
+		}
+		long wp = pawnBitboard(pos, true);
+		long bp = pawnBitboard(pos, false);
+		pawnFeatures(wp, bp, f);
+		for (int row = 1; row <= 2; ++row) {
+			f[W_SHIELD + row-1] += shieldPawns(pos.wpI[0], true, wp, row) - shieldPawns(pos.bpI[0], false, bp, row);
+		}
+	}
+
+	static void pawnFeatures(long wp, long bp, int[] f) {
+		long wAttacks = ((wp << 7) & ~FILE_H) | ((wp << 9) & ~FILE_A);
+		long bAttacks = ((bp >>> 7) & ~FILE_A) | ((bp >>> 9) & ~FILE_H);
+		pawnFeatures(wp, bp, bAttacks, 0, f);
+		pawnFeatures(bp, wp, wAttacks, 1, f);
+	}
+
+	static void pawnFeatures(long own, long opp, long oppAttacks, int side, int[] f) {
+		int sign = side == 0 ? 1 : -1;
+		for (int file = 0; file < 8; ++file) {
+			int n = Long.bitCount(own & FILES[file]);
+			if (n > 1) f[W_DOUBLED] -= sign * (n-1);
+		}
+		long pawns = own;
+		while (pawns != 0) {
+			int sq = Long.numberOfTrailingZeros(pawns);
+			pawns &= pawns - 1;
+			int file = sq%8;
+			int relativeRank = side == 0 ? sq/8 : 7 - sq/8;
+			if ((opp & PASSED_MASKS[side][sq]) == 0 && (own & PASSED_MASKS[side][sq] & FILES[file]) == 0) {
+				f[W_PASSED + relativeRank-1] += sign;
+			}
+			if ((own & ADJACENT_FILES[file]) == 0) {
+				f[W_ISOLATED] -= sign;
+			} else if ((own & SUPPORT_MASKS[side][sq]) == 0) {
+				int stop = side == 0 ? sq+8 : sq-8;
+				if (stop >= 0 && stop < 64 && (oppAttacks & (1L << stop)) != 0) f[W_BACKWARD] -= sign;
+			}
+		}
+	}
+
+	// own pawns on the king's and adjacent files, row 1 or 2 ranks in front of a king still on its first two ranks
+	static int shieldPawns(int king, boolean white, long own, int row) {
+		int rank = king/8;
+		if (white ? rank > 1 : rank < 6) return 0;
+		int file = king%8;
+		long files = FILES[file] | ADJACENT_FILES[file];
+		long ranks = 0xFFL << (8 * (white ? rank+row : rank-row));
+		return Long.bitCount(own & files & ranks);
+	}
+
+}
@@ -0,0 +1,482 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary game archive. A move is stored as one byte, its index among pos.getMoves() ordered by Move.pack(). Sorting
+ * makes the index independent of the order the generator produces the moves in, but not of which moves it
+ * produces: once a change to the generator adds or drops a move somewhere, as fixing a pin rule does, the indices
+ * written before it decode to different moves. So every game ends with the canonical key of its final position, and
+ * replay() throws when the decoded moves do not lead there; VERSION changes with the layout. Games are written back
+ * to back into blocks of BLOCK_GAMES, and each block is deflated on its own:
+ *
+ *   file   magic, version, then per block: raw length, compressed length (ints), compressed bytes
+ *   game   varint tag count, per tag key and value; fen ("" for the start position); result byte;
+ *          varint move count, one byte per move; Zobrist.canonical() of the final position (long)
+ *
+ * Strings are a varint byte length followed by UTF-8. Next to the archive, <archive>.idx holds the file offset and
+ * first game number of every block, so get() only inflates the one block holding the game. Reading in order
+ * with next() streams block by block.
+ *
+ * Usage: GameArchive convert <pgn> <archive>
+ *        GameArchive append <pgn> <archive>
+ *        GameArchive print <archive> <game number>
+ *        GameArchive bench <pgn> <archive>       decoding speed of both against each other
+ */
+public class GameArchive implements Closeable {
+
+	static final int MAGIC = 0x43484741; // "CHGA"
+	static final int VERSION = 2; // 1 had no version and no final position keys
+	static final int BLOCK_GAMES = 256;
+	static final String[] RESULTS = {"*", "1-0", "0-1", "1/2-1/2"};
+
+	FileChannel channel;
+	long[] blockOffsets;
+	int[] firstGames; // number of the first game of each block, plus the total at the end
+
+	// the decoded block and the read position in it, for both get() and next()
+	int block = -1;
+	int blockGame;
+	ByteBuffer raw;
+
+	public GameArchive(String file) throws IOException {
+		channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		ByteBuffer header = ByteBuffer.allocate(8);
+		channel.read(header, 0);
+		if (header.getInt(0) != MAGIC) {
+			channel.close();
+			throw new IOException("Not a game archive: " + file);
+		}
+		if (header.getInt(4) != VERSION) {
+			channel.close();
+			throw new IOException("Unsupported game archive version: " + file + ", convert it again from PGN");
+		}
+		try (DataInputStream in = new DataInputStream(Files.newInputStream(Paths.get(file + ".idx")))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a game archive index of version " + VERSION + ": " + file + ".idx");
+			}
+			int blocks = in.readInt();
+			blockOffsets = new long[blocks];
+			firstGames = new int[blocks + 1];
+			for (int i = 0; i < blocks; ++i) {
+				blockOffsets[i] = in.readLong();
+				firstGames[i] = in.readInt();
+			}
+			firstGames[blocks] = in.readInt();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3 && (args[0].equals("convert") || args[0].equals("append"))) {
+			long start = System.nanoTime();
+			long games = 0;
+			long moves = 0;
+			long skipped = 0;
+			boolean append = args[0].equals("append");
+			long before = append && Files.exists(Paths.get(args[2])) ? Files.size(Paths.get(args[2])) : 0;
+			try (Pgn.Reader in = new Pgn.Reader(args[1]); Writer out = new Writer(args[2], append)) {
+				for (Pgn.Game g = in.next(); g != null; g = in.next()) {
+					Game game = fromPgn(g);
+					if (game == null) {
+						skipped++;
+						continue;
+					}
+					out.add(game.tags, game.fen, game.moves, game.result);
+					games++;
+					moves += game.moves.size();
+				}
+			}
+			long bytes = Files.size(Paths.get(args[2])) - before;
+			System.out.println(String.format("%d games (%d skipped), %d moves, %d bytes (%.2f per move, PGN %.2f), %d ms",
+				games, skipped, moves, bytes, (double) bytes / Math.max(1, moves),
+				(double) Files.size(Paths.get(args[1])) / Math.max(1, moves), (System.nanoTime() - start) / 1000000));
+		} else if (args.length == 3 && args[0].equals("print")) {
+			try (GameArchive archive = new GameArchive(args[1])) {
+				System.out.print(archive.get(Integer.parseInt(args[2])).toPgn());
+			}
+		} else if (args.length == 3 && args[0].equals("bench")) {
+			bench(args[1], args[2]);
+		} else {
+			System.out.println("Usage: GameArchive convert <pgn> <archive>");
+			System.out.println("       GameArchive append <pgn> <archive>");
+			System.out.println("       GameArchive print <archive> <game number>");
+			System.out.println("       GameArchive bench <pgn> <archive>");
+		}
+	}
+
+	// the moves of a PGN game up to the first one that does not parse, or null if the FEN is invalid
+	static Game fromPgn(Pgn.Game g) {
+		Game game = new Game();
+		game.tags.putAll(g.tags);
+		game.fen = game.tags.remove("FEN");
+		game.tags.remove("SetUp");
+		game.result = game.tags.containsKey("Result") ? game.tags.remove("Result") : "*";
+		Position pos;
+		try {
+			pos = game.start();
+		} catch (RuntimeException e) {
+			return null;
+		}
+		for (String san : Pgn.sanTokens(g.movetext)) {
+			Move m;
+			try {
+				m = Pgn.parseSan(pos, san);
+				if (m != null) pos.move(m);
+			} catch (RuntimeException e) {
+				m = null;
+			}
+			if (m == null) break;
+			game.moves.add(m);
+		}
+		return game;
+	}
+
+	static void bench(String pgn, String archive) throws IOException {
+		long start = System.nanoTime();
+		long moves = 0;
+		try (Pgn.Reader in = new Pgn.Reader(pgn)) {
+			for (Pgn.Game g = in.next(); g != null; g = in.next()) {
+				Game game = fromPgn(g);
+				if (game != null) moves += game.moves.size();
+			}
+		}
+		long pgnNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		long archived = 0;
+		try (GameArchive in = new GameArchive(archive)) {
+			for (Game g = in.next(); g != null; g = in.next()) {
+				archived += g.replay().size();
+			}
+		}
+		long archiveNanos = System.nanoTime() - start;
+		System.out.println(String.format("PGN      %d moves  %d ms  %.0f moves/s", moves, pgnNanos / 1000000,
+			moves * 1e9 / pgnNanos));
+		System.out.println(String.format("archive  %d moves  %d ms  %.0f moves/s  %.1fx", archived,
+			archiveNanos / 1000000, archived * 1e9 / archiveNanos, (double) pgnNanos / archiveNanos));
+	}
+
+	public int size() {
+		return firstGames[firstGames.length - 1];
+	}
+
+	// game number n, counting from 0
+	public Game get(int n) throws IOException {
+		if (n < 0 || n >= size()) throw new IndexOutOfBoundsException("Game " + n + " of " + size());
+		int b = Arrays.binarySearch(firstGames, 0, blockOffsets.length, n);
+		if (b < 0) b = -b - 2;
+		if (b != block || blockGame > n - firstGames[b]) readBlock(b);
+		while (blockGame < n - firstGames[b]) {
+			readGame(raw);
+			blockGame++;
+		}
+		blockGame++;
+		return readGame(raw);
+	}
+
+	// the game after the last one read, or null after the last game
+	public Game next() throws IOException {
+		while (block < 0 || blockGame == firstGames[block+1] - firstGames[block]) {
+			if (block+1 >= blockOffsets.length) return null;
+			readBlock(block+1);
+		}
+		blockGame++;
+		return readGame(raw);
+	}
+
+	void readBlock(int b) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(8);
+		channel.read(header, blockOffsets[b]);
+		header.flip();
+		int rawLength = header.getInt();
+		ByteBuffer compressed = ByteBuffer.allocate(header.getInt());
+		channel.read(compressed, blockOffsets[b] + 8);
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed.array());
+		byte[] bytes = new byte[rawLength];
+		try {
+			inflater.inflate(bytes);
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt block " + b, e);
+		} finally {
+			inflater.end();
+		}
+		raw = ByteBuffer.wrap(bytes);
+		block = b;
+		blockGame = 0;
+	}
+
+	static Game readGame(ByteBuffer in) {
+		Game g = new Game();
+		int tags = readVarint(in);
+		for (int i = 0; i < tags; ++i) {
+			g.tags.put(readString(in), readString(in));
+		}
+		g.fen = readString(in);
+		if (g.fen.isEmpty()) g.fen = null;
+		g.result = RESULTS[in.get()];
+		g.encoded = new byte[readVarint(in)];
+		in.get(g.encoded);
+		g.finalKey = in.getLong();
+		return g;
+	}
+
+	static int readVarint(ByteBuffer in) {
+		int v = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte b = in.get();
+			v |= (b & 0x7F) << shift;
+			if (b >= 0) return v;
+		}
+	}
+
+	static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[readVarint(in)];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// index of m among the moves' packed values in ascending order; duplicates share an index
+	static int encode(List<Move> moves, Move m) {
+		int packed = m.pack();
+		int index = 0;
+		boolean found = false;
+		for (int i = 0; i < moves.size(); ++i) {
+			int p = moves.get(i).pack();
+			if (p < packed) index++;
+			else if (p == packed) found = true;
+		}
+		if (!found) throw new IllegalArgumentException("Not a generated move: " + m.getUciName());
+		return index;
+	}
+
+	static Move decode(List<Move> moves, int index) {
+		int[] packed = new int[moves.size()];
+		for (int i = 0; i < packed.length; ++i) {
+			packed[i] = moves.get(i).pack();
+		}
+		Arrays.sort(packed);
+		for (int i = 0; i < moves.size(); ++i) {
+			if (moves.get(i).pack() == packed[index]) return moves.get(i);
+		}
+		throw new IllegalArgumentException("No move " + index);
+	}
+
+	/**
+	 * One archived game. Read from an archive, the moves are only decoded by replay(), which needs a Position.
+	 */
+	public static class Game {
+
+		public Map<String, String> tags = new LinkedHashMap<String, String>();
+		public String fen; // null for the start position
+		public String result = "*";
+		public List<Move> moves = new ArrayList<Move>();
+		byte[] encoded;
+		long finalKey; // Zobrist.canonical() of the position after the last move as archived; 0 = not read from one
+
+		public Position start() {
+			Position pos = new Position();
+			if (fen == null) pos.setNew();
+			else pos.setFen(fen);
+			return pos;
+		}
+
+		public List<Move> replay() {
+			return replay(start());
+		}
+
+		// plays the game on pos, which must be in the start position, and returns the moves
+		public List<Move> replay(Position pos) {
+			return replay(pos, null);
+		}
+
+		// the keys of all positions of the game as Zobrist.canonical() gives them, the start position first
+		public long[] keys() {
+			long[] keys = new long[(encoded == null ? moves.size() : encoded.length) + 1];
+			replay(start(), keys);
+			return keys;
+		}
+
+		List<Move> replay(Position pos, long[] keys) {
+			if (encoded == null) {
+				for (int i = 0; i < moves.size(); ++i) {
+					if (keys != null) keys[i] = Zobrist.canonical(pos);
+					pos.move(moves.get(i));
+				}
+			} else {
+				moves = new ArrayList<Move>(encoded.length);
+				for (int i = 0; i < encoded.length; ++i) {
+					if (keys != null) keys[i] = Zobrist.canonical(pos);
+					Move m = decode(pos.getMoves(), encoded[i] & 0xFF);
+					moves.add(m);
+					pos.move(m);
+				}
+				encoded = null;
+				if (Zobrist.canonical(pos) != finalKey) {
+					throw new IllegalStateException("Game does not replay to its archived final position; the move"
+						+ " generator has changed since the archive was written");
+				}
+			}
+			if (keys != null) keys[moves.size()] = Zobrist.canonical(pos);
+			return moves;
+		}
+
+		public String toPgn() {
+			Position pos = start();
+			List<Move> played = replay(start());
+			List<String> san = new ArrayList<String>(played.size());
+			for (int i = 0; i < played.size(); ++i) {
+				List<Move> legal = pos.getLegalMoves();
+				san.add(Pgn.san(pos, played.get(i), legal));
+				pos.move(played.get(i));
+			}
+			return Pgn.game(tags, fen, san, result);
+		}
+
+	}
+
+	/**
+	 * Writes an archive and its index. Games are buffered until a block is full, so close() must be called.
+	 */
+	public static class Writer implements Closeable {
+
+		DataOutputStream out;
+		String indexFile;
+		long offset;
+		ByteArrayOutputStream block = new ByteArrayOutputStream(1 << 16);
+		int blockGames;
+		int games;
+		List<long[]> index = new ArrayList<long[]>(); // {offset, first game}
+		Deflater deflater = new Deflater();
+		byte[] compressed = new byte[1 << 16];
+
+		public Writer(String file) throws IOException {
+			this(file, false);
+		}
+
+		// with append, new games go after those already in file, which keep their numbers
+		public Writer(String file, boolean append) throws IOException {
+			indexFile = file + ".idx";
+			if (append && Files.exists(Paths.get(file))) {
+				try (GameArchive old = new GameArchive(file)) {
+					for (int i = 0; i < old.blockOffsets.length; ++i) {
+						index.add(new long[] {old.blockOffsets[i], old.firstGames[i]});
+					}
+					games = old.size();
+				}
+				offset = Files.size(Paths.get(file));
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+			} else {
+				out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				offset = 8;
+			}
+		}
+
+		// moves must be playable from fen (null for the start position) and come from Position.getMoves()
+		public void add(Map<String, String> tags, String fen, List<Move> moves, String result) throws IOException {
+			Position pos = new Position();
+			if (fen == null) pos.setNew();
+			else pos.setFen(fen);
+			writeVarint(tags.size());
+			for (Map.Entry<String, String> e : tags.entrySet()) {
+				writeString(e.getKey());
+				writeString(e.getValue());
+			}
+			writeString(fen == null ? "" : fen);
+			int r = Arrays.asList(RESULTS).indexOf(result);
+			block.write(r < 0 ? 0 : r);
+			writeVarint(moves.size());
+			for (int i = 0; i < moves.size(); ++i) {
+				block.write(encode(pos.getMoves(), moves.get(i)));
+				pos.move(moves.get(i));
+			}
+			writeLong(Zobrist.canonical(pos));
+			games++;
+			if (++blockGames == BLOCK_GAMES) flushBlock();
+		}
+
+		void writeVarint(int v) {
+			while ((v & ~0x7F) != 0) {
+				block.write((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			block.write(v);
+		}
+
+		void writeLong(long v) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				block.write((int) (v >>> shift));
+			}
+		}
+
+		void writeString(String s) {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			writeVarint(bytes.length);
+			block.write(bytes, 0, bytes.length);
+		}
+
+		void flushBlock() throws IOException {
+			if (blockGames == 0) return;
+			index.add(new long[] {offset, games - blockGames});
+			byte[] bytes = block.toByteArray();
+			deflater.reset();
+			deflater.setInput(bytes);
+			deflater.finish();
+			if (compressed.length < bytes.length + 64) compressed = new byte[bytes.length + 64];
+			int n = 0;
+			while (!deflater.finished()) {
+				n += deflater.deflate(compressed, n, compressed.length - n);
+				if (n == compressed.length) compressed = Arrays.copyOf(compressed, n * 2);
+			}
+			out.writeInt(bytes.length);
+			out.writeInt(n);
+			out.write(compressed, 0, n);
+			offset += 8 + n;
+			block.reset();
+			blockGames = 0;
+		}
+
+		public void close() throws IOException {
+			flushBlock();
+			deflater.end();
+			out.close();
+			try (DataOutputStream idx = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+				idx.writeInt(MAGIC);
+				idx.writeInt(VERSION);
+				idx.writeInt(index.size());
+				for (long[] e : index) {
+					idx.writeLong(e[0]);
+					idx.writeInt((int) e[1]);
+				}
+				idx.writeInt(games);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,346 @@
+package model;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Self-play matches between two engine configurations, for testing engine changes.
+ *
+ * Every game runs on its own thread (a virtual thread when the JDK has them), which owns the game's Position,
+ * clocks and adjudication and only blocks while an engine thinks. The thinking itself is done by one shared pool
+ * with a thread per core, so the machine is saturated with exactly one search per core no matter how many games
+ * are in flight. Clocks are charged only for the time a search actually ran, not the time it waited for a pool
+ * thread. Each game has a Search per side, since a Search keeps its history from move to move and games on the
+ * same pool thread would otherwise learn from each other; the two only share the evaluation cache.
+ *
+ * Each opening is played twice with colours reversed. Games end by mate, stalemate, the 50-move rule, threefold
+ * repetition, insufficient material, loss on time or adjudication: a win when both engines agree one side is up
+ * by ADJUDICATE_WIN for ADJUDICATE_WIN_MOVES moves, a draw when both scores stay within ADJUDICATE_DRAW after move
+ * ADJUDICATE_DRAW_START. Results go to a PGN file; the summary gives the Elo difference, an SPRT log-likelihood
+ * ratio for elo0/elo1 and games/hour.
+ *
+ * Usage: MatchRunner [games] [base ms+inc ms] [config A] [config B] [pgn file] [openings file]
+ * Configs are indices into Bench.CONFIG_NAMES. An openings file has one FEN or SAN move list per line; the
+ * default is Bench.POSITIONS. A line with a move that is not legal where it is played is rejected before the
+ * match starts.
+ */
+public class MatchRunner {
+
+	static final int MAX_PLIES = 400;
+	static final int ADJUDICATE_WIN = 1000;
+	static final int ADJUDICATE_WIN_MOVES = 4;
+	static final int ADJUDICATE_DRAW = 10;
+	static final int ADJUDICATE_DRAW_MOVES = 8;
+	static final int ADJUDICATE_DRAW_START = 80; // plies
+
+	static final double ELO0 = 0;
+	static final double ELO1 = 5;
+	static final double ALPHA = 0.05;
+	static final double BETA = 0.05;
+
+	int[] configs;
+	long baseMillis;
+	long incMillis;
+	List<String[]> openings; // SAN move lists, or a single FEN
+	EvalCache cache;
+	ExecutorService searchPool;
+	BufferedWriter pgn;
+
+	// from engine A's point of view
+	int wins;
+	int draws;
+	int losses;
+	int unfinished;
+
+	public MatchRunner(int configA, int configB, long baseMillis, long incMillis, List<String[]> openings) {
+		this.configs = new int[] {configA, configB};
+		this.baseMillis = baseMillis;
+		this.incMillis = incMillis;
+		this.openings = openings;
+		this.cache = new EvalCache(64);
+		int cores = Runtime.getRuntime().availableProcessors();
+		this.searchPool = Executors.newFixedThreadPool(cores);
+	}
+
+	public static void main(String[] args) throws Exception {
+		int games = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+		String tc = args.length > 1 ? args[1] : "2000+20";
+		int configA = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		int configB = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		String pgnFile = args.length > 4 ? args[4] : "match.pgn";
+		List<String[]> openings = new ArrayList<String[]>();
+		if (args.length > 5) {
+			for (String line : Files.readAllLines(Paths.get(args[5]))) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] opening = line.contains("/") ? new String[] {line} : line.split("\\s+");
+				startPosition(opening); // throws on an illegal move
+				openings.add(opening);
+			}
+		} else {
+			for (String[] moves : Bench.POSITIONS) {
+				openings.add(moves);
+			}
+		}
+		String[] t = tc.split("\\+");
+		MatchRunner runner = new MatchRunner(configA, configB, Long.parseLong(t[0]),
+			t.length > 1 ? Long.parseLong(t[1]) : 0, openings);
+		runner.run(games, pgnFile);
+	}
+
+	public void run(int games, String pgnFile) throws IOException, InterruptedException {
+		ExecutorService gameThreads = gameExecutor();
+		// enough games in flight to keep every pool thread busy while other games are between moves
+		Semaphore inFlight = new Semaphore(2 * Runtime.getRuntime().availableProcessors());
+		long start = System.nanoTime();
+		try (BufferedWriter out = new BufferedWriter(new FileWriter(pgnFile))) {
+			pgn = out;
+			for (int g = 0; g < games; ++g) {
+				inFlight.acquire();
+				int round = g;
+				gameThreads.execute(() -> {
+					try {
+						play(round, start);
+					} finally {
+						inFlight.release();
+					}
+				});
+			}
+			gameThreads.shutdown();
+			gameThreads.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		}
+		searchPool.shutdown();
+		System.out.println(summary(start));
+	}
+
+	// one thread per game: virtual threads through reflection so this still runs on JDKs without them
+	static ExecutorService gameExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	void play(int round, long matchStart) {
+		// games 2k and 2k+1 play the same opening with colours reversed
+		String[] opening = openings.get((round/2) % openings.size());
+		int white = round%2; // index into configs of the engine playing white
+		Position pos = startPosition(opening);
+		String fen = pos.toFen();
+		Search[] players = new Search[2]; // [white, black]
+		for (int side = 0; side < 2; ++side) {
+			players[side] = new Search(cache);
+			Bench.configure(players[side], configs[side == 0 ? white : 1-white]);
+			players[side].newGame();
+		}
+
+		List<String> sanMoves = new ArrayList<String>();
+		Map<Long, Integer> seen = new HashMap<Long, Integer>();
+		long[] clocks = {baseMillis, baseMillis}; // [white, black]
+		int[] lastScores = {0, 0};
+		int winStreak = 0;
+		int drawStreak = 0;
+		String result = "*";
+		String termination = "unterminated";
+		try {
+			seen.put(pos.hash, 1);
+			while (true) {
+				int side = pos.halfTurnNumber%2 == 1 ? 0 : 1;
+				List<Move> legal = pos.getLegalMoves();
+				if (legal.isEmpty()) {
+					result = pos.nchecks == 0 ? "1/2-1/2" : side == 0 ? "0-1" : "1-0";
+					termination = pos.nchecks == 0 ? "stalemate" : "checkmate";
+					break;
+				}
+				if (pos.movesWithoutCaptureOrPawn >= 100) {
+					result = "1/2-1/2";
+					termination = "50-move rule";
+					break;
+				}
+				if (seen.get(pos.hash) >= 3) {
+					result = "1/2-1/2";
+					termination = "threefold repetition";
+					break;
+				}
+				if (insufficientMaterial(pos)) {
+					result = "1/2-1/2";
+					termination = "insufficient material";
+					break;
+				}
+				if (sanMoves.size() >= MAX_PLIES) {
+					result = "1/2-1/2";
+					termination = "move limit";
+					break;
+				}
+
+				Search s = players[side];
+				long budget = Uci.moveTime(clocks[side], incMillis, 30);
+				Position root = new Position(pos);
+				long[] reply = searchPool.submit(() -> {
+					long t0 = System.nanoTime();
+					Move best = s.search(root, Search.MAX_PLY, Long.MAX_VALUE, budget);
+					long used = (System.nanoTime() - t0) / 1000000;
+					return new long[] {best == null ? -1 : best.pack(), s.getBestScore(), used};
+				}).get();
+				clocks[side] -= reply[2];
+				if (clocks[side] < 0) {
+					result = side == 0 ? "0-1" : "1-0";
+					termination = "time forfeit";
+					break;
+				}
+				clocks[side] += incMillis;
+
+				Move m = null;
+				for (int i = 0; i < legal.size(); ++i) {
+					if (legal.get(i).pack() == reply[0]) m = legal.get(i);
+				}
+				if (m == null) throw new IllegalStateException("engine returned an illegal move");
+
+				// adjudication, on scores converted to white's point of view
+				int score = (int) reply[1] * (side == 0 ? 1 : -1);
+				lastScores[side] = score;
+				if (Math.abs(lastScores[0]) >= ADJUDICATE_WIN && Math.abs(lastScores[1]) >= ADJUDICATE_WIN
+						&& Integer.signum(lastScores[0]) == Integer.signum(lastScores[1])) {
+					winStreak++;
+				} else {
+					winStreak = 0;
+				}
+				if (sanMoves.size() >= ADJUDICATE_DRAW_START && Math.abs(lastScores[0]) <= ADJUDICATE_DRAW
+						&& Math.abs(lastScores[1]) <= ADJUDICATE_DRAW) {
+					drawStreak++;
+				} else {
+					drawStreak = 0;
+				}
+
+				sanMoves.add(Pgn.san(pos, m, legal));
+				pos.move(m);
+				seen.merge(pos.hash, 1, Integer::sum);
+
+				if (winStreak >= 2*ADJUDICATE_WIN_MOVES) {
+					result = lastScores[0] > 0 ? "1-0" : "0-1";
+					termination = "adjudication";
+					break;
+				}
+				if (drawStreak >= 2*ADJUDICATE_DRAW_MOVES) {
+					result = "1/2-1/2";
+					termination = "adjudication";
+					break;
+				}
+			}
+		} catch (Exception e) {
+			// the position code can still get into states it cannot continue from; such games are not counted
+			result = "*";
+			termination = "abandoned: " + e;
+		}
+		record(round, white, fen, sanMoves, result, termination, matchStart);
+	}
+
+	// the position a FEN or SAN move list opening starts from
+	static Position startPosition(String[] opening) {
+		Position pos = new Position();
+		if (opening.length == 1 && opening[0].contains("/")) {
+			pos.setFen(opening[0]);
+			return pos;
+		}
+		pos.setNew();
+		for (int i = 0; i < opening.length; ++i) {
+			Move m = Pgn.parseSan(pos, opening[i]);
+			if (m == null) {
+				throw new IllegalArgumentException("illegal move " + opening[i] + " in opening " + String.join(" ", opening));
+			}
+			pos.move(m);
+		}
+		return pos;
+	}
+
+	// bare kings, or a single minor piece against a bare king
+	static boolean insufficientMaterial(Position pos) {
+		int minors = 0;
+		for (int i = 0; i < 64; ++i) {
+			if (pos.board[i] < 0) continue;
+			int type = pos.pieces[pos.board[i]].getType();
+			if (type == 1 || type == 4 || type == 5) return false;
+			if (type == 2 || type == 3) minors++;
+		}
+		return minors <= 1;
+	}
+
+	synchronized void record(int round, int white, String fen, List<String> sanMoves, String result,
+			String termination, long matchStart) {
+		Map<String, String> tags = new LinkedHashMap<String, String>();
+		tags.put("Event", "Self-play");
+		tags.put("Site", "MatchRunner");
+		tags.put("Date", LocalDate.now().toString().replace('-', '.'));
+		tags.put("Round", Integer.toString(round+1));
+		tags.put("White", Bench.CONFIG_NAMES[configs[white]]);
+		tags.put("Black", Bench.CONFIG_NAMES[configs[1-white]]);
+		tags.put("TimeControl", (baseMillis/1000.0) + "+" + (incMillis/1000.0));
+		tags.put("Termination", termination);
+		try {
+			pgn.write(Pgn.game(tags, fen, sanMoves, result));
+			pgn.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		if (result.equals("*")) {
+			unfinished++;
+		} else if (result.equals("1/2-1/2")) {
+			draws++;
+		} else if (result.equals("1-0") == (white == 0)) {
+			wins++;
+		} else {
+			losses++;
+		}
+		int played = wins + draws + losses + unfinished;
+		if (played % 10 == 0) System.out.println(summary(matchStart));
+	}
+
+	synchronized String summary(long matchStart) {
+		int n = wins + draws + losses;
+		double hours = (System.nanoTime() - matchStart) / 3.6e12;
+		String s = String.format(Locale.ROOT, "%s vs %s: +%d =%d -%d (%d abandoned)  %.0f games/hour",
+			Bench.CONFIG_NAMES[configs[0]], Bench.CONFIG_NAMES[configs[1]], wins, draws, losses, unfinished,
+			(n + unfinished) / Math.max(hours, 1e-9));
+		if (n == 0) return s;
+		double score = (wins + draws/2.0) / n;
+		double lower = Math.log(BETA / (1-ALPHA));
+		double upper = Math.log((1-BETA) / ALPHA);
+		double llr = llr(wins, draws, losses);
+		s += String.format(Locale.ROOT, "  Elo %.1f  LLR %.2f [%.2f, %.2f]%s", elo(score), llr, lower, upper,
+			llr >= upper ? " H1 accepted" : llr <= lower ? " H0 accepted" : "");
+		return s;
+	}
+
+	static double elo(double score) {
+		score = Math.min(Math.max(score, 1e-6), 1 - 1e-6);
+		return -400 * Math.log10(1/score - 1);
+	}
+
+	// log-likelihood ratio of elo1 against elo0 in the normal approximation to the trinomial model
+	static double llr(int w, int d, int l) {
+		int n = w + d + l;
+		if (w == 0 || l == 0) return 0;
+		double score = (w + d/2.0) / n;
+		double variance = ((w + d/4.0) / n - score*score) / n;
+		double s0 = 1 / (1 + Math.pow(10, -ELO0/400));
+		double s1 = 1 / (1 + Math.pow(10, -ELO1/400));
+		return (s1 - s0) * (2*score - s0 - s1) / (2*variance);
+	}
+
+}
@@ -0,0 +1,186 @@
+package model;
+
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hot path counters for running engines, without a profiler attached. Every call of an instrumented method is
+ * counted, and one call in SAMPLE_RATE is timed with nanoTime into a histogram of power of 2 buckets.
+ *
+ * Instrumentation is off unless the JVM is started with -Dchess.metrics=true. ENABLED is static final, so call
+ * sites written as
+ *
+ *   long t = Metrics.ENABLED ? Metrics.start(Metrics.GET_MOVES) : 0;
+ *   ...
+ *   if (Metrics.ENABLED) Metrics.end(Metrics.GET_MOVES, t);
+ *
+ * are folded away by the JIT when it is off. Some probes are plain counters without timings, such as the eval
+ * cache's hits and misses. Counters are LongAdders, which stripe under contention, so search
+ * threads do not fight over one cache line. With -Dchess.metrics.dump=n the counts of the last n seconds are
+ * printed to stderr every n seconds; stdout is left alone since UCI talks over it.
+ */
+public class Metrics {
+
+	public static final boolean ENABLED = Boolean.getBoolean("chess.metrics");
+	static final int SAMPLE_RATE = 64;
+	static final int BUCKETS = 64; // bucket b holds times below 2^b ns
+
+	public static final int GET_MOVES = 0;
+	public static final int MOVE = 1;
+	public static final int IS_ATTACKED = 2;
+	public static final int MODIFY_MOVES = 3;
+	public static final int EVALUATE = 4;
+	public static final int EVAL_CACHE = 5;
+	public static final int PAWN_HASH = 6;
+	public static final int TABLEBASE = 7;
+	public static final int TRANSPOSITION_TABLE = 8;
+	public static final int EVAL_CACHE_HIT = 9;
+	public static final int EVAL_CACHE_MISS = 10;
+	static final String[] NAMES = {"getMoves", "move", "isAttacked", "modifyMovesAtSquare", "evaluate",
+		"evalCache", "pawnHash", "tablebase", "transpositionTable", "evalCacheHit", "evalCacheMiss"};
+
+	static final long EPOCH = System.nanoTime();
+	static final LongAdder[] calls = new LongAdder[NAMES.length];
+	static final LongAdder[][] histograms = new LongAdder[NAMES.length][BUCKETS];
+
+	static {
+		for (int i = 0; i < NAMES.length; ++i) {
+			calls[i] = new LongAdder();
+			for (int b = 0; b < BUCKETS; ++b) {
+				histograms[i][b] = new LongAdder();
+			}
+		}
+		long seconds = Long.getLong("chess.metrics.dump", 0);
+		if (ENABLED && seconds > 0) startDumps(seconds * 1000, System.err);
+	}
+
+	// counts a call; returns the start time when this call is sampled, otherwise 0
+	public static long start(int probe) {
+		calls[probe].increment();
+		return ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0 ? System.nanoTime() : 0;
+	}
+
+	public static void end(int probe, long start) {
+		if (start != 0) histograms[probe][64 - Long.numberOfLeadingZeros(System.nanoTime() - start)].increment();
+	}
+
+	// counts a call without timing it, for probes too short to be worth the nanoTime calls
+	public static void count(int probe) {
+		calls[probe].increment();
+	}
+
+	public static Snapshot snapshot() {
+		Snapshot s = new Snapshot();
+		for (int i = 0; i < NAMES.length; ++i) {
+			s.calls[i] = calls[i].sum();
+			for (int b = 0; b < BUCKETS; ++b) {
+				s.histograms[i][b] = histograms[i][b].sum();
+			}
+		}
+		s.nanoTime = System.nanoTime() - EPOCH;
+		return s;
+	}
+
+	// prints what happened since the previous dump every periodMillis, on a daemon thread
+	public static ScheduledExecutorService startDumps(long periodMillis, PrintStream out) {
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "metrics");
+			t.setDaemon(true);
+			return t;
+		});
+		Snapshot[] last = {snapshot()};
+		timer.scheduleAtFixedRate(() -> {
+			Snapshot now = snapshot();
+			out.print(now.minus(last[0]));
+			last[0] = now;
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+		return timer;
+	}
+
+	/**
+	 * Counter values at one point in time. Two snapshots subtract to the activity in between.
+	 */
+	public static class Snapshot {
+
+		long[] calls = new long[NAMES.length];
+		long[][] histograms = new long[NAMES.length][BUCKETS];
+		long nanoTime; // since Metrics was loaded, or between the two snapshots of a difference
+
+		public Snapshot minus(Snapshot earlier) {
+			Snapshot d = new Snapshot();
+			for (int i = 0; i < NAMES.length; ++i) {
+				d.calls[i] = calls[i] - earlier.calls[i];
+				for (int b = 0; b < BUCKETS; ++b) {
+					d.histograms[i][b] = histograms[i][b] - earlier.histograms[i][b];
+				}
+			}
+			d.nanoTime = nanoTime - earlier.nanoTime;
+			return d;
+		}
+
+		public long getCalls(int probe) {
+			return calls[probe];
+		}
+
+		// percentage of eval cache probes that hit, 0 when there were none
+		public double getEvalCacheHitRate() {
+			long total = calls[EVAL_CACHE_HIT] + calls[EVAL_CACHE_MISS];
+			return total == 0 ? 0 : (100.0 * calls[EVAL_CACHE_HIT]) / total;
+		}
+
+		// upper bound in ns of the bucket holding quantile q of the sampled times, 0 if nothing was sampled
+		public long percentile(int probe, double q) {
+			long total = 0;
+			for (int b = 0; b < BUCKETS; ++b) {
+				total += histograms[probe][b];
+			}
+			if (total == 0) return 0;
+			long rank = (long) Math.ceil(q * total);
+			long seen = 0;
+			for (int b = 0; b < BUCKETS; ++b) {
+				seen += histograms[probe][b];
+				if (seen >= Math.max(1, rank)) return 1L << b;
+			}
+			return Long.MAX_VALUE;
+		}
+
+		public String toJson() {
+			StringBuilder sb = new StringBuilder("{");
+			for (int i = 0; i < NAMES.length; ++i) {
+				if (i > 0) sb.append(',');
+				sb.append('"').append(NAMES[i]).append("\":{\"calls\":").append(calls[i]);
+				if (percentile(i, 1) > 0) {
+					sb.append(",\"p50ns\":").append(percentile(i, 0.50)).append(",\"p99ns\":").append(percentile(i, 0.99));
+				}
+				sb.append('}');
+			}
+			sb.append(",\"evalCacheHitRate\":").append(String.format(Locale.ROOT, "%.1f", getEvalCacheHitRate()));
+			return sb.append('}').toString();
+		}
+
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			double seconds = Math.max(1, nanoTime) / 1e9;
+			for (int i = 0; i < NAMES.length; ++i) {
+				if (calls[i] == 0) continue;
+				sb.append(String.format(Locale.ROOT, "%-20s %12d calls %12.0f/s", NAMES[i], calls[i], calls[i] / seconds));
+				if (percentile(i, 1) > 0) {
+					sb.append(String.format(Locale.ROOT, "  p50 < %dns  p99 < %dns", percentile(i, 0.50), percentile(i, 0.99)));
+				}
+				sb.append(System.lineSeparator());
+			}
+			if (calls[EVAL_CACHE_HIT] + calls[EVAL_CACHE_MISS] > 0) {
+				sb.append(String.format(Locale.ROOT, "%-20s %11.1f%%", "evalCache hit rate", getEvalCacheHitRate()));
+				sb.append(System.lineSeparator());
+			}
+			return sb.toString();
+		}
+
+	}
+
+}
@@ -87,6 +87,18 @@ public class Move {
 		return s;
 	}
 
+	// long algebraic notation as used by UCI: e2e4, e7e8q
+	public String getUciName() {
+		String s = Position.squareName(start) + Position.squareName(end);
+		if (special > 3 && special < 8) s += "qrbn".charAt(special-4);
+		return s;
+	}
+
+	// 16 bits: start in bits 0-5, end in bits 6-11, special in bits 12-15
+	public int pack() {
+		return start | (end << 6) | (special << 12);
+	}
+
 	public String getDescription() {
 		String s = "Move\n";
 		s += ("   PieceIndex: " + pieceIndex + "\n");
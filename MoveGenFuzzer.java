@@ -0,0 +1,221 @@
+package model;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Differential fuzzing of the move generator. Every thread plays random games, from the start position or a seed
+ * FEN. At every ply the getMoves() move set is compared with ReferenceMoves, and the next move is drawn from the
+ * reference moves. A difference, or an exception from Position, ends the game. The failing move sequence is then
+ * shrunk by dropping runs of moves for as long as the shorter sequence still fails, and is printed as a UCI
+ * position command with the missing and extra moves.
+ *
+ * Identical shrunk cases are only printed once, and only the first MAX_REPORTS failures are shrunk at all. Run
+ * it before and after any change to the incremental move updates; a clean run prints no cases.
+ *
+ * Usage: MoveGenFuzzer [seconds] [threads] [fen file, one seed per line]
+ */
+public class MoveGenFuzzer {
+
+	static final int MAX_PLIES = 300;
+	static final int MAX_REPORTS = 20;
+	static final String[] SEEDS = {
+		"r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq - 0 1",
+		"8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - - 0 1",
+		"r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq - 0 1",
+		"rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ - 1 8",
+		"r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - - 0 10",
+	};
+
+	String[] seeds;
+	LongAdder positions = new LongAdder();
+	LongAdder games = new LongAdder();
+	LongAdder failures = new LongAdder();
+	Set<String> reported = ConcurrentHashMap.newKeySet();
+
+	public MoveGenFuzzer(String[] seeds) {
+		this.seeds = seeds;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+		String[] seeds = SEEDS;
+		if (args.length > 2) seeds = readSeeds(args[2]);
+		MoveGenFuzzer fuzzer = new MoveGenFuzzer(seeds);
+
+		long start = System.nanoTime();
+		long deadline = start + seconds * 1000000000L;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		for (int i = 0; i < threads; ++i) {
+			long seed = start + i;
+			pool.execute(() -> fuzzer.run(new Random(seed), deadline));
+		}
+		pool.shutdown();
+		pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+
+		double minutes = (System.nanoTime() - start) / 6e10;
+		System.out.println(String.format("%d games, %d positions (%.0f per minute), %d failures",
+			fuzzer.games.sum(), fuzzer.positions.sum(), fuzzer.positions.sum() / minutes, fuzzer.failures.sum()));
+	}
+
+	static String[] readSeeds(String file) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for (String line : Files.readAllLines(Paths.get(file))) {
+			if (!line.trim().isEmpty() && !line.startsWith("#")) lines.add(line.trim());
+		}
+		return lines.toArray(new String[0]);
+	}
+
+	void run(Random random, long deadline) {
+		while (System.nanoTime() < deadline) {
+			String fen = random.nextBoolean() ? null : seeds[random.nextInt(seeds.length)];
+			List<String> line = new ArrayList<String>();
+			Position pos = start(fen);
+			games.increment();
+			for (int ply = 0; ply <= MAX_PLIES; ++ply) {
+				TreeSet<String> expected = ReferenceMoves.legalMoves(pos);
+				positions.increment();
+				if (!matches(pos, expected)) {
+					fail(fen, line);
+					break;
+				}
+				if (expected.isEmpty() || ply == MAX_PLIES) break;
+				String uci = pick(expected, random);
+				line.add(uci);
+				try {
+					pos.move(Uci.parseMove(pos, uci));
+				} catch (RuntimeException e) {
+					fail(fen, line);
+					break;
+				}
+			}
+		}
+	}
+
+	static Position start(String fen) {
+		Position pos = new Position();
+		if (fen == null) pos.setNew();
+		else pos.setFen(fen);
+		return pos;
+	}
+
+	static String pick(TreeSet<String> moves, Random random) {
+		int n = random.nextInt(moves.size());
+		for (String m : moves) {
+			if (n-- == 0) return m;
+		}
+		return null;
+	}
+
+	// getMoves() as UCI names, each only once; a duplicate counts as a difference
+	static boolean matches(Position pos, TreeSet<String> expected) {
+		try {
+			List<Move> moves = pos.getMoves();
+			TreeSet<String> actual = new TreeSet<String>();
+			for (int i = 0; i < moves.size(); ++i) {
+				actual.add(moves.get(i).getUciName());
+			}
+			return actual.size() == moves.size() && actual.equals(expected);
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Replays line from fen and returns the number of moves played before the first failing position, or -1 if
+	 * every position matches. A move the reference does not allow makes the line invalid, which is -2.
+	 */
+	static int firstFailure(String fen, List<String> line) {
+		Position pos;
+		try {
+			pos = start(fen);
+		} catch (RuntimeException e) {
+			return -2;
+		}
+		for (int i = 0; ; ++i) {
+			TreeSet<String> expected = ReferenceMoves.legalMoves(pos);
+			if (!matches(pos, expected)) return i;
+			if (i == line.size()) return -1;
+			if (!expected.contains(line.get(i))) return -2;
+			try {
+				pos.move(Uci.parseMove(pos, line.get(i)));
+			} catch (RuntimeException e) {
+				return i+1; // counted as failing in the position after the move
+			}
+		}
+	}
+
+	// drops runs of moves, halving the run length, while the line still fails
+	static List<String> shrink(String fen, List<String> line) {
+		int end = firstFailure(fen, line);
+		List<String> best = new ArrayList<String>(line.subList(0, Math.max(0, Math.min(end, line.size()))));
+		if (end < 0) return line; // not reproducible, e.g. a failure that depends on timing
+		int run = Math.max(1, best.size()/2);
+		while (true) {
+			boolean reduced = false;
+			for (int i = 0; i + run <= best.size(); ) {
+				List<String> candidate = new ArrayList<String>(best.subList(0, i));
+				candidate.addAll(best.subList(i + run, best.size()));
+				int f = firstFailure(fen, candidate);
+				if (f >= 0) {
+					best = new ArrayList<String>(candidate.subList(0, Math.min(f, candidate.size())));
+					reduced = true;
+				} else {
+					i += run;
+				}
+			}
+			if (!reduced) {
+				if (run == 1) break;
+				run /= 2;
+			}
+		}
+		return best;
+	}
+
+	// shrinking replays the line many times, so it stops once enough cases have been printed
+	void fail(String fen, List<String> line) {
+		failures.increment();
+		if (reported.size() < MAX_REPORTS) report(fen, shrink(fen, line));
+	}
+
+	void report(String fen, List<String> line) {
+		String text = "position " + (fen == null ? "startpos" : "fen " + fen) + " moves " + String.join(" ", line);
+		if (!reported.add(text) || reported.size() > MAX_REPORTS) return;
+		Position pos = start(fen);
+		String detail;
+		try {
+			for (String uci : line) {
+				pos.move(Uci.parseMove(pos, uci));
+			}
+			TreeSet<String> expected = ReferenceMoves.legalMoves(pos);
+			TreeSet<String> actual = new TreeSet<String>();
+			for (Move m : pos.getMoves()) {
+				actual.add(m.getUciName());
+			}
+			TreeSet<String> missing = new TreeSet<String>(expected);
+			missing.removeAll(actual);
+			TreeSet<String> extra = new TreeSet<String>(actual);
+			extra.removeAll(expected);
+			detail = "missing " + missing + " extra " + extra;
+		} catch (RuntimeException e) {
+			detail = "exception " + e + (e.getStackTrace().length > 0 ? " at " + e.getStackTrace()[0] : "");
+		}
+		synchronized (System.out) {
+			System.out.println(text);
+			System.out.println("  " + detail);
+		}
+	}
+
+}
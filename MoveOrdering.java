@@ -0,0 +1,181 @@
+package model;
+
+import java.util.List;
+
+/**
+ * Move ordering for the search. getMoves() hands back moves in wpI/bpI order, which is close to the worst case
+ * for alpha-beta, so before a node's moves are searched they get a score here and are pulled out best first.
+ *
+ * Order of preference:
+ *   1. the hash move, if the caller has one
+ *   2. captures and queen promotions, by MVV-LVA (most valuable victim, then least valuable attacker)
+ *   3. the two killer moves stored for this ply
+ *   4. the countermove to the opponent's previous move
+ *   5. everything else by the butterfly history table, history[color][start][end]
+ *
+ * Moves are compared by Move.pack() so that a killer found in one branch matches the same move generated as a
+ * new object in a sibling branch.
+ *
+ * One instance belongs to one search thread. Nothing here is synchronized, and killers and history are only
+ * meaningful to the thread that filled them. History and countermoves carry over from one search to the next,
+ * since the next move of a game is searched on much the same positions; clear() is for a new game.
+ */
+public class MoveOrdering {
+
+	static final int MAX_PLY = 128;
+	static final int MAX_MOVES = 256;
+
+	static final int HASH_MOVE_SCORE = 1 << 30;
+	static final int CAPTURE_SCORE = 1 << 28;
+	static final int KILLER_1_SCORE = (1 << 27) + 1;
+	static final int KILLER_2_SCORE = 1 << 27;
+	static final int COUNTER_MOVE_SCORE = (1 << 27) - 1;
+	static final int HISTORY_MAX = 1 << 26; // history stays below the countermove score
+
+	// MVV_LVA[victim type][attacker type], types as in Piece (1 pawn ... 6 king)
+	static final int[][] MVV_LVA = new int[7][7];
+	static {
+		for (int v = 1; v < 7; ++v) {
+			for (int a = 1; a < 7; ++a) {
+				MVV_LVA[v][a] = v*8 + (7-a);
+			}
+		}
+	}
+
+	int[][] killers;       // [ply][2], packed moves, 0 when empty (a1 to a1 is never a real move)
+	int[][][] history;     // [color][start][end], 0 = white
+	int[][][] counterMoves; // [color to move][previous start][previous end], packed reply
+	int[][] scores;        // [ply][move], scratch buffer reused at every node
+
+	public MoveOrdering() {
+		killers = new int[MAX_PLY][2];
+		history = new int[2][64][64];
+		counterMoves = new int[2][64][64];
+		scores = new int[MAX_PLY][MAX_MOVES];
+	}
+
+	public void clear() {
+		for (int i = 0; i < MAX_PLY; ++i) {
+			killers[i][0] = 0;
+			killers[i][1] = 0;
+		}
+		for (int c = 0; c < 2; ++c) {
+			for (int s = 0; s < 64; ++s) {
+				for (int e = 0; e < 64; ++e) {
+					history[c][s][e] = 0;
+					counterMoves[c][s][e] = 0;
+				}
+			}
+		}
+	}
+
+	// killers are tied to plies, which shift by one or two from one search to the next, so only they are reset
+	public void newSearch() {
+		for (int i = 0; i < MAX_PLY; ++i) {
+			killers[i][0] = 0;
+			killers[i][1] = 0;
+		}
+		age();
+	}
+
+	public static boolean isCapture(Move m) {
+		return m.endPieceIndex > -1 || m.special == 1;
+	}
+
+	// quiet = does not change material, so eligible for killers and history
+	public static boolean isQuiet(Move m) {
+		return !isCapture(m) && (m.special < 4 || m.special > 7);
+	}
+
+	// previous is the opponent's last move, null at the root. hashMove is a packed move or 0.
+	public int[] scoreMoves(Position pos, List<Move> moves, int ply, Move previous, int hashMove) {
+		int[] buf = scores[ply];
+		int color = pos.halfTurnNumber%2 == 1 ? 0 : 1;
+		int k1 = killers[ply][0];
+		int k2 = killers[ply][1];
+		int counter = previous == null ? 0 : counterMoves[color][previous.start][previous.end];
+		int n = Math.min(moves.size(), MAX_MOVES);
+		for (int i = 0; i < n; ++i) {
+			Move m = moves.get(i);
+			int key = m.pack();
+			int score;
+			if (key == hashMove) {
+				score = HASH_MOVE_SCORE;
+			} else if (isCapture(m)) {
+				int victim = m.special == 1 ? 1 : pos.pieces[m.endPieceIndex].getType();
+				int attacker = pos.pieces[m.pieceIndex].getType();
+				score = CAPTURE_SCORE + MVV_LVA[victim][attacker];
+				if (m.special == 4) score += 64;
+			} else if (m.special == 4) {
+				score = CAPTURE_SCORE;
+			} else if (key == k1) {
+				score = KILLER_1_SCORE;
+			} else if (key == k2) {
+				score = KILLER_2_SCORE;
+			} else if (key == counter) {
+				score = COUNTER_MOVE_SCORE;
+			} else {
+				score = history[color][m.start][m.end];
+			}
+			buf[i] = score;
+		}
+		return buf;
+	}
+
+	/**
+	 * Partial selection sort: finds the best scored move in [index, size) and swaps it into index. Nodes that
+	 * cut off early never pay for sorting the rest of the list.
+	 */
+	public Move next(List<Move> moves, int[] buf, int index) {
+		int n = Math.min(moves.size(), MAX_MOVES);
+		int best = index;
+		for (int i = index+1; i < n; ++i) {
+			if (buf[i] > buf[best]) best = i;
+		}
+		if (best != index) {
+			int s = buf[best];
+			buf[best] = buf[index];
+			buf[index] = s;
+			Move m = moves.get(best);
+			moves.set(best, moves.get(index));
+			moves.set(index, m);
+		}
+		return moves.get(index);
+	}
+
+	// call on a beta cutoff; only quiet moves update killers, history and countermoves
+	public void recordCutoff(Position pos, Move m, int ply, int depth, Move previous) {
+		if (!isQuiet(m)) return;
+		int key = m.pack();
+		int color = pos.halfTurnNumber%2 == 1 ? 0 : 1;
+		if (killers[ply][0] != key) {
+			killers[ply][1] = killers[ply][0];
+			killers[ply][0] = key;
+		}
+		int h = history[color][m.start][m.end] + depth*depth;
+		history[color][m.start][m.end] = h;
+		if (h >= HISTORY_MAX) age();
+		if (previous != null) {
+			counterMoves[color][previous.start][previous.end] = key;
+		}
+	}
+
+	// halve history so old results count for less than recent ones
+	public void age() {
+		for (int c = 0; c < 2; ++c) {
+			for (int s = 0; s < 64; ++s) {
+				for (int e = 0; e < 64; ++e) {
+					history[c][s][e] >>= 1;
+				}
+			}
+		}
+	}
+
+	public void clearKillers(int ply) {
+		if (ply < MAX_PLY) {
+			killers[ply][0] = 0;
+			killers[ply][1] = 0;
+		}
+	}
+
+}
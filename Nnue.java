@@ -0,0 +1,276 @@
+package model;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * An efficiently updatable neural network evaluation. The input layer has a feature for every colour, type and
+ * square (768), seen from each side: from black's side the board is flipped and the colours swapped. The first
+ * layer's output for the current pieces is kept in an Accumulator per side, which move(Move) updates by adding
+ * and subtracting one weight column per piece that leaves or reaches a square. That is two columns for a quiet
+ * move, three for a capture and four for castling; a promotion is the pawn's column out and the new piece's in.
+ * The score is then one clipped ReLU layer from the two accumulators, the side to move's first, to a single
+ * output.
+ *
+ * There is no unmake: the search copies the Position for each child, and the copy constructor copies the
+ * accumulator with it, so the positions on the search path are the accumulator stack and going back up a ply
+ * recomputes nothing.
+ *
+ * The network is read from the file named by -Dchess.nnue when the class loads, and Evaluation then scores with
+ * it instead of its own terms. The file is little-endian, as trainers usually write raw weights:
+ *
+ *   int    MAGIC, int hidden size H
+ *   short  input weights [768][H], feature-major so each column is contiguous
+ *   short  input biases [H]
+ *   short  output weights [2H], side to move first
+ *   int    output bias
+ *
+ * Input weights are quantized by QA and output weights by QB. The loops over H are plain counted loops over
+ * arrays, which C2 vectorizes.
+ *
+ * Usage: Nnue random <file> [hidden]   writes a network with small random weights, for testing
+ *        Nnue bench <file> [games]     checks incremental against refreshed accumulators and times both
+ */
+public class Nnue {
+
+	static final int MAGIC = 0x43484E4E; // "CHNN"
+	static final int FEATURES = 768;
+	static final int QA = 255;
+	static final int QB = 64;
+	static final int SCALE = 400;
+
+	// null when no network is configured
+	static final Nnue NETWORK = load(System.getProperty("chess.nnue"));
+
+	final int hidden;
+	final short[] inputWeights;
+	final short[] inputBiases;
+	final short[] outputWeights;
+	final int outputBias;
+
+	Nnue(int hidden, short[] inputWeights, short[] inputBiases, short[] outputWeights, int outputBias) {
+		this.hidden = hidden;
+		this.inputWeights = inputWeights;
+		this.inputBiases = inputBiases;
+		this.outputWeights = outputWeights;
+		this.outputBias = outputBias;
+	}
+
+	static Nnue load(String file) {
+		if (file == null) return null;
+		try {
+			return read(file);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public static Nnue read(String file) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(file))).order(ByteOrder.LITTLE_ENDIAN);
+		if (in.getInt() != MAGIC) throw new IOException("Not a network file: " + file);
+		int hidden = in.getInt();
+		if (hidden <= 0 || in.remaining() != 2 * (FEATURES*hidden + 3*hidden) + 4) {
+			throw new IOException("Bad network size in " + file);
+		}
+		short[] inputWeights = new short[FEATURES * hidden];
+		short[] inputBiases = new short[hidden];
+		short[] outputWeights = new short[2 * hidden];
+		in.asShortBuffer().get(inputWeights);
+		in.position(in.position() + 2*inputWeights.length);
+		in.asShortBuffer().get(inputBiases);
+		in.position(in.position() + 2*inputBiases.length);
+		in.asShortBuffer().get(outputWeights);
+		in.position(in.position() + 2*outputWeights.length);
+		return new Nnue(hidden, inputWeights, inputBiases, outputWeights, in.getInt());
+	}
+
+	public void write(String file) throws IOException {
+		ByteBuffer out = ByteBuffer.allocate(8 + 2 * (FEATURES*hidden + 3*hidden) + 4).order(ByteOrder.LITTLE_ENDIAN);
+		out.putInt(MAGIC).putInt(hidden);
+		for (short w : inputWeights) out.putShort(w);
+		for (short w : inputBiases) out.putShort(w);
+		for (short w : outputWeights) out.putShort(w);
+		out.putInt(outputBias);
+		Files.write(Paths.get(file), out.array());
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 2 && args[0].equals("random")) {
+			int hidden = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+			Random random = new Random(1);
+			short[] inputWeights = new short[FEATURES * hidden];
+			for (int i = 0; i < inputWeights.length; ++i) {
+				inputWeights[i] = (short) (random.nextGaussian() * 8);
+			}
+			short[] inputBiases = new short[hidden];
+			for (int i = 0; i < hidden; ++i) {
+				inputBiases[i] = (short) (QA/2 + random.nextGaussian() * 16);
+			}
+			short[] outputWeights = new short[2 * hidden];
+			for (int i = 0; i < outputWeights.length; ++i) {
+				outputWeights[i] = (short) (random.nextGaussian() * 16);
+			}
+			new Nnue(hidden, inputWeights, inputBiases, outputWeights, 0).write(args[1]);
+		} else if (args.length >= 2 && args[0].equals("bench")) {
+			bench(read(args[1]), args.length > 2 ? Integer.parseInt(args[2]) : 1000);
+		} else {
+			System.out.println("Usage: Nnue random <file> [hidden]");
+			System.out.println("       Nnue bench <file> [games]");
+		}
+	}
+
+	// random games, every move made on a copy as the search does and checked against a fresh accumulator
+	static void bench(Nnue net, int games) {
+		Random random = new Random(1);
+		long moves = 0;
+		long withNanos = 0;
+		long withoutNanos = 0;
+		long refreshNanos = 0;
+		long evalNanos = 0;
+		long sum = 0;
+		for (int g = 0; g < games; ++g) {
+			Position pos = new Position();
+			pos.setNew();
+			pos.accumulator = net.accumulate(pos);
+			for (int ply = 0; ply < 200; ++ply) {
+				List<Move> legal = pos.getLegalMoves();
+				if (legal.isEmpty()) break;
+				Move m = legal.get(random.nextInt(legal.size()));
+				Position plain = new Position(pos);
+				plain.accumulator = null;
+				long t0 = System.nanoTime();
+				Position child = new Position(pos);
+				child.move(m);
+				long t1 = System.nanoTime();
+				Position other = new Position(plain);
+				other.move(m);
+				long t2 = System.nanoTime();
+				Accumulator fresh = net.accumulate(child);
+				long t3 = System.nanoTime();
+				sum += net.evaluate(child.accumulator, child.halfTurnNumber%2 == 1);
+				long t4 = System.nanoTime();
+				if (!fresh.equals(child.accumulator)) {
+					throw new IllegalStateException("accumulator differs after " + m.getUciName() + " to " + child.toFen());
+				}
+				withNanos += t1 - t0;
+				withoutNanos += t2 - t1;
+				refreshNanos += t3 - t2;
+				evalNanos += t4 - t3;
+				moves++;
+				pos = child;
+			}
+		}
+		System.out.println(String.format("%d moves, hidden size %d, all accumulators match (checksum %d)", moves,
+			net.hidden, sum));
+		System.out.println(String.format("copy + move            %6.0f ns", (double) withoutNanos / moves));
+		System.out.println(String.format("copy + move + update   %6.0f ns", (double) withNanos / moves));
+		System.out.println(String.format("refresh                %6.0f ns", (double) refreshNanos / moves));
+		System.out.println(String.format("evaluate               %6.0f ns", (double) evalNanos / moves));
+	}
+
+	// features for the piece from white's side and from black's side
+	static int whiteFeature(Piece p, int square) {
+		return ((p.getColor() ? 0 : 6) + p.getType()-1) * 64 + square;
+	}
+
+	static int blackFeature(Piece p, int square) {
+		return ((p.getColor() ? 6 : 0) + p.getType()-1) * 64 + (square ^ 56);
+	}
+
+	// from scratch
+	public Accumulator accumulate(Position pos) {
+		Accumulator acc = new Accumulator(this);
+		System.arraycopy(inputBiases, 0, acc.white, 0, hidden);
+		System.arraycopy(inputBiases, 0, acc.black, 0, hidden);
+		for (int sq = 0; sq < 64; ++sq) {
+			if (pos.board[sq] > -1) acc.add(pos.pieces[pos.board[sq]], sq);
+		}
+		return acc;
+	}
+
+	// from the side to move's point of view, in centipawns
+	public int evaluate(Accumulator acc, boolean whiteToMove) {
+		short[] us = whiteToMove ? acc.white : acc.black;
+		short[] them = whiteToMove ? acc.black : acc.white;
+		int sum = 0;
+		for (int i = 0; i < hidden; ++i) {
+			sum += Math.min(Math.max(us[i], 0), QA) * outputWeights[i];
+		}
+		for (int i = 0; i < hidden; ++i) {
+			sum += Math.min(Math.max(them[i], 0), QA) * outputWeights[hidden + i];
+		}
+		return (int) ((sum + (long) outputBias) * SCALE / (QA * QB));
+	}
+
+	/**
+	 * The first layer's output for both sides. Accumulators belong to one Position and are copied with it.
+	 */
+	public static class Accumulator {
+
+		final Nnue net;
+		final short[] white;
+		final short[] black;
+
+		Accumulator(Nnue net) {
+			this.net = net;
+			white = new short[net.hidden];
+			black = new short[net.hidden];
+		}
+
+		Accumulator(Accumulator other) {
+			net = other.net;
+			white = other.white.clone();
+			black = other.black.clone();
+		}
+
+		public Accumulator copy() {
+			return new Accumulator(this);
+		}
+
+		void add(Piece p, int square) {
+			add(white, net.inputWeights, whiteFeature(p, square) * net.hidden);
+			add(black, net.inputWeights, blackFeature(p, square) * net.hidden);
+		}
+
+		void sub(Piece p, int square) {
+			sub(white, net.inputWeights, whiteFeature(p, square) * net.hidden);
+			sub(black, net.inputWeights, blackFeature(p, square) * net.hidden);
+		}
+
+		// the same piece from one square to another, for the castling rook
+		void move(Piece p, int from, int to) {
+			sub(p, from);
+			add(p, to);
+		}
+
+		static void add(short[] acc, short[] weights, int offset) {
+			for (int i = 0; i < acc.length; ++i) {
+				acc[i] += weights[offset + i];
+			}
+		}
+
+		static void sub(short[] acc, short[] weights, int offset) {
+			for (int i = 0; i < acc.length; ++i) {
+				acc[i] -= weights[offset + i];
+			}
+		}
+
+		public boolean equals(Object o) {
+			return o instanceof Accumulator && Arrays.equals(white, ((Accumulator) o).white)
+				&& Arrays.equals(black, ((Accumulator) o).black);
+		}
+
+		public int hashCode() {
+			return Arrays.hashCode(white);
+		}
+
+	}
+
+}
@@ -0,0 +1,314 @@
+package model;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Opening book: a file of 16-byte records (Zobrist key, Move.pack(), weight), big-endian, sorted by key and then
+ * move, with one record per distinct (position, move). The key is Zobrist.canonical(), so a position reached in
+ * a game and the same position set up from its FEN find the same entries. Moves are matched on start, end and
+ * promotion only, since the other specials depend on castling state that a FEN does not carry either.
+ *
+ * The reader memory-maps the file, so opening even a book of several GB costs no heap; the OS pages in the parts
+ * that are probed. Lookups are a binary search on the mapping and probe() allocates nothing. Files over 2 GB are
+ * mapped as several segments, since a single MappedByteBuffer is limited to an int index.
+ *
+ * The compiler reads PGN, plays every game up to maxPly plies and counts each move played from each position,
+ * weighted by how the game went for the side that played it: 2 for a win, 1 for a draw or unknown result, 0 for
+ * a loss. Occurrences are collected in flat arrays that are sorted and merged whenever they fill up, so memory
+ * grows with the number of distinct entries rather than with the number of games.
+ *
+ * Usage: OpeningBook compile <book> <max ply> <pgn files...>
+ *        OpeningBook probe <book> [fen]
+ */
+public class OpeningBook implements Closeable {
+
+	static final int RECORD_SIZE = 16;
+	static final int SEGMENT_SHIFT = 26; // 2^26 records = 1 GB per mapped segment
+	static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+	FileChannel channel;
+	MappedByteBuffer[] segments;
+	long size; // records
+
+	public OpeningBook(String file) throws IOException {
+		channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		long bytes = channel.size();
+		if (bytes % RECORD_SIZE != 0) throw new IOException("Not an opening book: " + file);
+		size = bytes / RECORD_SIZE;
+		segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+		for (int i = 0; i < segments.length; ++i) {
+			long start = ((long) i << SEGMENT_SHIFT) * RECORD_SIZE;
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(bytes - start,
+				(SEGMENT_MASK + 1) * RECORD_SIZE));
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length >= 4 && args[0].equals("compile")) {
+			long start = System.nanoTime();
+			Compiler c = new Compiler(Integer.parseInt(args[2]));
+			for (int i = 3; i < args.length; ++i) {
+				c.addPgn(args[i]);
+			}
+			long records = c.write(args[1]);
+			System.out.println(c.games + " games (" + c.skipped + " skipped), " + records + " records, "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		} else if (args.length >= 2 && args[0].equals("probe")) {
+			Position pos = new Position();
+			if (args.length > 2) {
+				StringBuilder fen = new StringBuilder(args[2]);
+				for (int i = 3; i < args.length; ++i) {
+					fen.append(' ').append(args[i]);
+				}
+				pos.setFen(fen.toString());
+			} else {
+				pos.setNew();
+			}
+			try (OpeningBook book = new OpeningBook(args[1])) {
+				int[] moves = new int[256];
+				int[] weights = new int[256];
+				int n = book.probe(Zobrist.canonical(pos), moves, weights);
+				List<Move> legal = pos.getMoves();
+				for (int i = 0; i < n; ++i) {
+					Move m = find(legal, moves[i]);
+					System.out.println((m == null ? "? " + moves[i] : m.getUciName()) + " " + weights[i]);
+				}
+				System.out.println(n + " moves, " + book.size() + " records in book");
+			}
+		} else {
+			System.out.println("Usage: OpeningBook compile <book> <max ply> <pgn files...>");
+			System.out.println("       OpeningBook probe <book> [fen]");
+		}
+	}
+
+	public long size() {
+		return size;
+	}
+
+	long key(long record) {
+		return segments[(int) (record >>> SEGMENT_SHIFT)].getLong((int) (record & SEGMENT_MASK) * RECORD_SIZE);
+	}
+
+	int intAt(long record, int offset) {
+		return segments[(int) (record >>> SEGMENT_SHIFT)].getInt((int) (record & SEGMENT_MASK) * RECORD_SIZE + offset);
+	}
+
+	// index of the first record for key, or -1
+	public long first(long key) {
+		long lo = 0;
+		long hi = size;
+		while (lo < hi) {
+			long mid = (lo + hi) >>> 1;
+			if (Long.compareUnsigned(key(mid), key) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo < size && key(lo) == key ? lo : -1;
+	}
+
+	/**
+	 * Fills moves (Move.pack() values) and weights with the book moves for key and returns how many there are, at
+	 * most moves.length. Allocates nothing and is safe to call from any number of threads.
+	 */
+	public int probe(long key, int[] moves, int[] weights) {
+		long r = first(key);
+		if (r < 0) return 0;
+		int n = 0;
+		for (; r < size && n < moves.length && key(r) == key; ++r, ++n) {
+			moves[n] = intAt(r, 8);
+			weights[n] = intAt(r, 12);
+		}
+		return n;
+	}
+
+	// a book move for pos chosen with probability proportional to its weight, or null if pos is not in the book
+	public Move getMove(Position pos, Random random) {
+		long key = Zobrist.canonical(pos);
+		long r = first(key);
+		if (r < 0) return null;
+		long total = 0;
+		for (long i = r; i < size && key(i) == key; ++i) {
+			total += intAt(i, 12);
+		}
+		if (total == 0) return null;
+		long pick = (long) (random.nextDouble() * total);
+		for (long i = r; ; ++i) {
+			pick -= intAt(i, 12);
+			if (pick < 0) return find(pos.getMoves(), intAt(i, 8));
+		}
+	}
+
+	// the move with the start, end and promotion of a Move.pack() value, or null; a stale book or a hash
+	// collision can name a move that is not there
+	static Move find(List<Move> moves, int packed) {
+		int key = withoutState(packed);
+		for (int i = 0; i < moves.size(); ++i) {
+			if (withoutState(moves.get(i).pack()) == key) return moves.get(i);
+		}
+		return null;
+	}
+
+	// a packed move with only the promotion specials (4-7) left in
+	static int withoutState(int packed) {
+		int special = packed >>> 12;
+		return special >= 4 && special <= 7 ? packed : packed & 0xFFF;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Builds a book from PGN. Not thread-safe.
+	 */
+	static class Compiler {
+
+		static final int INITIAL_CAPACITY = 1 << 20;
+
+		int maxPly;
+		long[] keys = new long[INITIAL_CAPACITY];
+		long[] values = new long[INITIAL_CAPACITY]; // move << 32 | weight
+		int n;
+		long games;
+		long skipped;
+
+		Compiler(int maxPly) {
+			this.maxPly = maxPly;
+		}
+
+		void addPgn(String file) throws IOException {
+			try (Pgn.Reader in = new Pgn.Reader(file)) {
+				for (Pgn.Game g = in.next(); g != null; g = in.next()) {
+					addGame(g.tags.get("FEN"), g.tag("Result", "*"), g.movetext);
+				}
+			}
+		}
+
+		void addGame(String fen, String result, CharSequence movetext) {
+			games++;
+			int whiteWeight = result.equals("1-0") ? 2 : result.equals("0-1") ? 0 : 1;
+			Position pos = new Position();
+			try {
+				if (fen == null) pos.setNew();
+				else pos.setFen(fen);
+			} catch (RuntimeException e) {
+				skipped++;
+				return;
+			}
+			List<String> tokens = Pgn.sanTokens(movetext);
+			for (int ply = 0; ply < tokens.size() && ply < maxPly; ++ply) {
+				Move m;
+				try {
+					m = Pgn.parseSan(pos, tokens.get(ply));
+				} catch (RuntimeException e) {
+					m = null;
+				}
+				if (m == null) break; // keep what was read so far
+				boolean white = pos.halfTurnNumber%2 == 1;
+				add(Zobrist.canonical(pos), withoutState(m.pack()), white ? whiteWeight : 2 - whiteWeight);
+				try {
+					pos.move(m);
+				} catch (RuntimeException e) {
+					break;
+				}
+			}
+		}
+
+		void add(long key, int move, int weight) {
+			if (n == keys.length) {
+				n = sortAndMerge(keys, values, n);
+				if (n > keys.length * 3 / 4) {
+					keys = Arrays.copyOf(keys, keys.length * 2);
+					values = Arrays.copyOf(values, values.length * 2);
+				}
+			}
+			keys[n] = key;
+			values[n] = ((long) move << 32) | weight;
+			n++;
+		}
+
+		// returns the number of records written
+		long write(String file) throws IOException {
+			n = sortAndMerge(keys, values, n);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+				for (int i = 0; i < n; ++i) {
+					out.writeLong(keys[i]);
+					out.writeLong(values[i]);
+				}
+			}
+			return n;
+		}
+
+		// sorts the first n entries by (unsigned key, move) and sums the weights of equal entries
+		static int sortAndMerge(long[] keys, long[] values, int n) {
+			sort(keys, values, 0, n - 1);
+			int out = 0;
+			for (int i = 0; i < n; ++i) {
+				if (out > 0 && keys[out-1] == keys[i] && (values[out-1] >>> 32) == (values[i] >>> 32)) {
+					long weight = Math.min(Integer.MAX_VALUE, (values[out-1] & 0xFFFFFFFFL) + (values[i] & 0xFFFFFFFFL));
+					values[out-1] = (values[out-1] & 0xFFFFFFFF00000000L) | weight;
+				} else {
+					keys[out] = keys[i];
+					values[out] = values[i];
+					out++;
+				}
+			}
+			return out;
+		}
+
+		static int compare(long[] keys, long[] values, int a, int b) {
+			int c = Long.compareUnsigned(keys[a], keys[b]);
+			return c != 0 ? c : Long.compare(values[a] >>> 32, values[b] >>> 32);
+		}
+
+		static void swap(long[] keys, long[] values, int a, int b) {
+			long k = keys[a];
+			keys[a] = keys[b];
+			keys[b] = k;
+			long v = values[a];
+			values[a] = values[b];
+			values[b] = v;
+		}
+
+		// quicksort of the two arrays together, partitioning three ways since a popular (position, move) occurs
+		// many times; recurses into the smaller side so the stack stays O(log n)
+		static void sort(long[] keys, long[] values, int lo, int hi) {
+			while (hi - lo > 16) {
+				swap(keys, values, lo, (lo + hi) >>> 1);
+				int lt = lo;
+				int gt = hi;
+				int i = lo + 1;
+				while (i <= gt) {
+					int c = compare(keys, values, i, lt);
+					if (c < 0) swap(keys, values, i++, lt++);
+					else if (c > 0) swap(keys, values, i, gt--);
+					else i++;
+				}
+				if (lt - lo < hi - gt) {
+					sort(keys, values, lo, lt - 1);
+					lo = gt + 1;
+				} else {
+					sort(keys, values, gt + 1, hi);
+					hi = lt - 1;
+				}
+			}
+			for (int i = lo + 1; i <= hi; ++i) {
+				for (int j = i; j > lo && compare(keys, values, j-1, j) > 0; --j) {
+					swap(keys, values, j-1, j);
+				}
+			}
+		}
+
+	}
+
+}
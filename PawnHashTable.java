@@ -0,0 +1,62 @@
+package model;
+
+/**
+ * Cache of pawn structure evaluations keyed by Position.pawnHash. Pawns move in only a small share of the moves
+ * in a search tree, so nearly every probe is a hit.
+ *
+ * Entries also keep the pawn bitboards they were computed from. Terms that depend on pawns and something else
+ * (the king's pawn shield) can then be computed cheaply outside the cache.
+ *
+ * Direct mapped, always replace. One table per search thread, so no synchronization.
+ */
+public class PawnHashTable {
+
+	long[] keys;
+	int[] scores;       // white minus black, in centipawns
+	long[] whitePawns;
+	long[] blackPawns;
+	int mask;
+
+	long hits;
+	long misses;
+
+	// size is rounded down to a power of 2
+	public PawnHashTable(int entries) {
+		int size = Integer.highestOneBit(Math.max(entries, 1));
+		keys = new long[size];
+		scores = new int[size];
+		whitePawns = new long[size];
+		blackPawns = new long[size];
+		mask = size - 1;
+	}
+
+	// index of the entry for key, or -1 on a miss
+	public int probe(long key) {
+		if (Metrics.ENABLED) Metrics.count(Metrics.PAWN_HASH);
+		int i = (int) key & mask;
+		if (keys[i] == key && (whitePawns[i] | blackPawns[i]) != 0) {
+			hits++;
+			return i;
+		}
+		misses++;
+		return -1;
+	}
+
+	public int store(long key, int score, long white, long black) {
+		int i = (int) key & mask;
+		keys[i] = key;
+		scores[i] = score;
+		whitePawns[i] = white;
+		blackPawns[i] = black;
+		return i;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+}
@@ -0,0 +1,257 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reading and writing games as PGN. Move.getName() is enough for the GUI but not valid SAN: it never disambiguates
+ * ("Nbd2"), drops the capture mark on first king and rook moves and has no check marks, so san() builds the
+ * name from the position instead.
+ */
+public class Pgn {
+
+	static final int LINE_LENGTH = 80;
+
+	// m must be one of legal, which are pos.getLegalMoves()
+	public static String san(Position pos, Move m, List<Move> legal) {
+		String s;
+		int type = pos.pieces[m.pieceIndex].getType();
+		boolean capture = m.endPieceIndex > -1 || m.special == 1;
+		if (m.special == 2) {
+			s = "O-O";
+		} else if (m.special == 3) {
+			s = "O-O-O";
+		} else if (type == 1) {
+			s = capture ? Position.squareName(m.start).substring(0, 1) + "x" : "";
+			s += Position.squareName(m.end);
+			if (m.special > 3 && m.special < 8) s += "=" + "QRBN".charAt(m.special-4);
+		} else {
+			s = "" + " PNBRQK".charAt(type);
+			boolean ambiguous = false;
+			boolean sameFile = false;
+			boolean sameRank = false;
+			for (int i = 0; i < legal.size(); ++i) {
+				Move o = legal.get(i);
+				if (o.end != m.end || o.start == m.start || pos.pieces[o.pieceIndex].getType() != type) continue;
+				ambiguous = true;
+				sameFile |= o.start%8 == m.start%8;
+				sameRank |= o.start/8 == m.start/8;
+			}
+			if (ambiguous) {
+				String from = Position.squareName(m.start);
+				if (!sameFile) s += from.charAt(0);
+				else if (!sameRank) s += from.charAt(1);
+				else s += from;
+			}
+			s += (capture ? "x" : "") + Position.squareName(m.end);
+		}
+		Position child = new Position(pos);
+		child.move(m);
+		if (child.nchecks > 0) s += child.getLegalMoves().isEmpty() ? "#" : "+";
+		return s;
+	}
+
+	// the move san names, matched against the moves' squares rather than parsed by hand; null if there is none
+	public static Move parseSan(Position pos, String san) {
+		String s = san.replaceAll("[+#!?]", "");
+		List<Move> moves = pos.getMoves();
+		if (s.equals("O-O") || s.equals("O-O-O") || s.equals("0-0") || s.equals("0-0-0")) {
+			int special = s.length() == 3 ? 2 : 3;
+			for (int i = 0; i < moves.size(); ++i) {
+				if (moves.get(i).special == special) return moves.get(i);
+			}
+			return null;
+		}
+		int promotion = 0;
+		int eq = s.indexOf('=');
+		if (eq > 0 && eq+1 < s.length()) {
+			promotion = 4 + "QRBN".indexOf(s.charAt(eq+1));
+			s = s.substring(0, eq);
+		}
+		if (s.length() < 2) return null;
+		int type = 1 + " NBRQK".indexOf(s.charAt(0));
+		if (type < 2) type = 1;
+		String target = s.substring(s.length()-2);
+		String from = s.substring(type == 1 ? 0 : 1, s.length()-2).replace("x", "");
+		int fromFile = -1;
+		int fromRank = -1;
+		for (int i = 0; i < from.length(); ++i) {
+			char c = from.charAt(i);
+			if (c >= 'a' && c <= 'h') fromFile = c - 'a';
+			else if (c >= '1' && c <= '8') fromRank = c - '1';
+		}
+
+		List<Move> candidates = new ArrayList<Move>(2);
+		for (int i = 0; i < moves.size(); ++i) {
+			Move m = moves.get(i);
+			if (pos.pieces[m.pieceIndex].getType() != type || !Position.squareName(m.end).equals(target)) continue;
+			if ((fromFile > -1 && m.start%8 != fromFile) || (fromRank > -1 && m.start/8 != fromRank)) continue;
+			boolean promotes = m.special > 3 && m.special < 8;
+			if (promotes ? m.special != promotion : promotion != 0) continue;
+			candidates.add(m);
+		}
+		if (candidates.size() == 1) return candidates.get(0);
+		// SAN only disambiguates between legal moves, so a pinned piece may share the name
+		Move found = null;
+		for (int i = 0; i < candidates.size(); ++i) {
+			Position child = new Position(pos);
+			child.move(candidates.get(i));
+			if (Search.capturesKing(child.getMoves())) continue;
+			if (found != null) return null;
+			found = candidates.get(i);
+		}
+		return found;
+	}
+
+	/**
+	 * One game, tags in the given order; Seven Tag Roster tags missing from tags are written as "?". If fen is not
+	 * null the game starts from it.
+	 */
+	public static String game(Map<String, String> tags, String fen, List<String> sanMoves, String result) {
+		StringBuilder sb = new StringBuilder();
+		for (String tag : new String[] {"Event", "Site", "Date", "Round", "White", "Black"}) {
+			if (!tags.containsKey(tag)) sb.append('[').append(tag).append(" \"?\"]\n");
+		}
+		for (Map.Entry<String, String> e : tags.entrySet()) {
+			sb.append('[').append(e.getKey()).append(" \"").append(e.getValue().replace("\"", "'")).append("\"]\n");
+		}
+		sb.append("[Result \"").append(result).append("\"]\n");
+		int firstPly = 0;
+		if (fen != null) {
+			sb.append("[SetUp \"1\"]\n[FEN \"").append(fen).append("\"]\n");
+			firstPly = fen.contains(" b ") ? 1 : 0;
+		}
+		sb.append('\n');
+
+		int fullMove = fen == null ? 1 : Integer.parseInt(fen.substring(fen.lastIndexOf(' ') + 1));
+		int lineStart = sb.length();
+		for (int i = 0; i < sanMoves.size(); ++i) {
+			int ply = firstPly + i;
+			String token = "";
+			if (ply%2 == 0) token = (fullMove + ply/2) + ". ";
+			else if (i == 0) token = fullMove + "... ";
+			token += sanMoves.get(i);
+			if (sb.length() - lineStart + token.length() + 1 > LINE_LENGTH) {
+				sb.append('\n');
+				lineStart = sb.length();
+			} else if (sb.length() > lineStart) {
+				sb.append(' ');
+			}
+			sb.append(token);
+		}
+		if (sb.length() > lineStart) sb.append(' ');
+		sb.append(result).append("\n\n");
+		return sb.toString();
+	}
+
+	/**
+	 * The SAN moves of movetext, with comments, variations, NAGs, move numbers and the result left out. Moves are
+	 * not checked here.
+	 */
+	public static List<String> sanTokens(CharSequence movetext) {
+		List<String> tokens = new ArrayList<String>();
+		int depth = 0; // of comments and variations
+		int i = 0;
+		int len = movetext.length();
+		while (i < len) {
+			char c = movetext.charAt(i);
+			if (c == '{' || c == '(') {
+				depth++;
+				i++;
+				continue;
+			}
+			if (c == '}' || c == ')') {
+				depth--;
+				i++;
+				continue;
+			}
+			if (c == ';') {
+				while (i < len && movetext.charAt(i) != '\n') i++;
+				continue;
+			}
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			int j = i;
+			while (j < len && !Character.isWhitespace(movetext.charAt(j)) && "{}();".indexOf(movetext.charAt(j)) < 0) {
+				j++;
+			}
+			String token = movetext.subSequence(i, j).toString();
+			i = j;
+			if (depth > 0 || token.startsWith("$")) continue;
+			int dot = token.lastIndexOf('.');
+			if (dot >= 0) token = token.substring(dot+1); // "12.e4" or "12..."
+			if (token.isEmpty() || Character.isDigit(token.charAt(0)) || token.equals("*")) continue;
+			tokens.add(token);
+		}
+		return tokens;
+	}
+
+	/**
+	 * One game as read from a PGN file: the tags in file order and the movetext as it stands.
+	 */
+	public static class Game {
+
+		public Map<String, String> tags = new LinkedHashMap<String, String>();
+		public StringBuilder movetext = new StringBuilder();
+
+		public String tag(String name, String otherwise) {
+			String v = tags.get(name);
+			return v == null ? otherwise : v;
+		}
+
+	}
+
+	/**
+	 * Streams the games of a PGN file one at a time, so files of any size can be read.
+	 */
+	public static class Reader implements Closeable {
+
+		BufferedReader in;
+		String pending; // first line of the next game, already read
+
+		public Reader(String file) throws IOException {
+			in = new BufferedReader(new InputStreamReader(
+				new BufferedInputStream(Files.newInputStream(Paths.get(file)), 1 << 16), StandardCharsets.ISO_8859_1));
+		}
+
+		// the next game, or null at the end of the file
+		public Game next() throws IOException {
+			Game g = new Game();
+			String line = pending != null ? pending : in.readLine();
+			pending = null;
+			for (; line != null; line = in.readLine()) {
+				if (line.startsWith("[")) {
+					if (g.movetext.length() > 0) {
+						pending = line;
+						return g;
+					}
+					int a = line.indexOf('"');
+					int b = line.lastIndexOf('"');
+					int space = line.indexOf(' ');
+					if (space > 1) g.tags.put(line.substring(1, space), a < b ? line.substring(a+1, b) : "");
+				} else if (!line.isBlank()) {
+					g.movetext.append(line).append('\n');
+				}
+			}
+			return g.movetext.length() > 0 || !g.tags.isEmpty() ? g : null;
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
@@ -14,6 +14,14 @@ public class Piece {
 	 */
 	int encoding;
 	
+	// MOVE_COUNTS[x] = sum of the four 3-bit fields in the 12-bit value x, so two lookups add up all 8 directions
+	static final byte[] MOVE_COUNTS = new byte[4096];
+	static {
+		for (int i = 0; i < 4096; ++i) {
+			MOVE_COUNTS[i] = (byte) ((i & 7) + ((i >>> 3) & 7) + ((i >>> 6) & 7) + ((i >>> 9) & 7));
+		}
+	}
+	
 	public Piece(int val) {
 		this.encoding = val;
 	}
@@ -59,6 +67,17 @@ public class Piece {
 		
 	}
 	
+	// number of moves in the upper 24 bits, without decoding them into an array like getMoves().
+	// A pinned piece only counts the moves along its pin, towards the king and towards the pinning piece.
+	public int getMobility() {
+		int mvs = encoding >>> 8;
+		if ((encoding & 16) != 0) {
+			int pin = (encoding >>> 5) & 7;
+			return getType() == 2 ? 0 : ((mvs >>> (3*pin)) & 7) + ((mvs >>> (3*((pin+4)%8))) & 7);
+		}
+		return MOVE_COUNTS[mvs & 4095] + MOVE_COUNTS[mvs >>> 12];
+	}
+	
 	public String getMovesInfo() {
 		String s = "";
 		int[] moves = getMoves();
@@ -69,8 +88,9 @@ public class Piece {
 		return s;
 	}
 	
+	// also drops the pawn's moves; a bishop or rook would otherwise keep them in directions it never updates
 	public void promoteTo(int newType) {
-		this.encoding &= ~(14);
+		this.encoding &= 241; // 0b11110001
 		this.encoding |= (newType << 1);
 	}
 
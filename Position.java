@@ -19,6 +19,8 @@ import java.util.List;
  * wpI (white piece indices) and bpI (black piece indices). These arrays contain a list of remaining pieces of that 
  * color and their associated position in the board array. The first index in each array is the king of that color. 
  * wpI[0] is the location in board of the white king; the piece itself is found at pieces[board[wpI[0]]]. 
+ * The live pieces are kept at the front: the first nWhitePieces entries of wpI are used and the rest are -1, and a
+ * captured piece's slot is filled with the last one. slotOf gives the other direction, square to slot.
  * 
  * Some other information is stored as well to retain data move to move. wAttacks and bAttacks are arrays that contain
  * the number of attacks by each color on each square. A 2 in bAttacks[3] indicates that 2 black pieces are attacking the 
@@ -51,12 +53,37 @@ public class Position {
 	int halfTurnNumber;
 	int movesWithoutCaptureOrPawn;
 	Piece[] pieces;
-	int nWhitePieces;
+	int nWhitePieces; // live pieces, king included
 	int nBlackPieces;
 	int[] wpI;
 	int[] bpI;
+	int[] slotOf; // index in wpI or bpI of the piece on each square, -1 for empty squares
 	int nchecks;
 	int[] checkSquares;
+	long hash;     // Zobrist key of the whole position, see Zobrist
+	long pawnHash; // Zobrist key of the pawns alone, see PawnHashTable
+	Nnue.Accumulator accumulator; // null without a network, see Nnue
+
+	// -Dchess.verify=true checks the incremental state against computeDerivedState() after every move, see verify()
+	static final boolean VERIFY = Boolean.getBoolean("chess.verify");
+	String line; // only kept when verifying: the UCI position command that reaches this position
+
+	// RAYS[square][direction]: the squares from square (exclusive) to the edge of the board, directions as in lsteps
+	static final long[][] RAYS = new long[64][8];
+	static {
+		int[][] deltas = {{0,1},{1,1},{1,0},{1,-1},{0,-1},{-1,-1},{-1,0},{-1,1}}; // {file, rank}
+		for (int sq = 0; sq < 64; ++sq) {
+			for (int d = 0; d < 8; ++d) {
+				int f = sq%8 + deltas[d][0];
+				int r = sq/8 + deltas[d][1];
+				while (f >= 0 && f < 8 && r >= 0 && r < 8) {
+					RAYS[sq][d] |= 1L << (r*8 + f);
+					f += deltas[d][0];
+					r += deltas[d][1];
+				}
+			}
+		}
+	}
 	
 	//TODO - make castling rights reversible with special moves for first rook (k/q) and king moves
 	//TODO - wAttacks and bAttacks arrays
@@ -72,10 +99,35 @@ public class Position {
 		nBlackPieces = 16;
 		wpI = new int[16];
 		bpI = new int[16];
+		slotOf = new int[64];
 		nchecks = 0;
 		checkSquares = new int[8];
 	}
-	
+
+	// deep copy, Piece objects included, so that moves played on the copy leave this position alone
+	public Position(Position other) {
+		board = other.board.clone();
+		enPassent = other.enPassent;
+		castlingRights = other.castlingRights;
+		halfTurnNumber = other.halfTurnNumber;
+		movesWithoutCaptureOrPawn = other.movesWithoutCaptureOrPawn;
+		pieces = new Piece[32];
+		for (int i = 0; i < 32; ++i) {
+			if (other.pieces[i] != null) pieces[i] = new Piece(other.pieces[i].encoding);
+		}
+		nWhitePieces = other.nWhitePieces;
+		nBlackPieces = other.nBlackPieces;
+		wpI = other.wpI.clone();
+		bpI = other.bpI.clone();
+		slotOf = other.slotOf.clone();
+		nchecks = other.nchecks;
+		checkSquares = other.checkSquares.clone();
+		hash = other.hash;
+		pawnHash = other.pawnHash;
+		accumulator = other.accumulator == null ? null : other.accumulator.copy();
+		line = other.line;
+	}
+
 	public static void main(String[] args) {
 
 //		String[] mate = {"f4","e6","g4","Qh4"};
@@ -99,6 +151,13 @@ public class Position {
 	
 	public void setNew() {
 		
+		// a pooled or reused Position may come here from the middle of a game
+		enPassent = -1;
+		castlingRights = 63;
+		halfTurnNumber = 1;
+		movesWithoutCaptureOrPawn = 0;
+		nchecks = 0;
+		
 		Piece wk = new Piece(13);
 		Piece wq = new Piece(11);
 		Piece wr0 = new Piece(9);
@@ -162,12 +221,258 @@ public class Position {
 		for (int i = 0; i < 8; ++i) {
 			bpI[i+8] = 48+i;
 		}
+		nWhitePieces = 16;
+		nBlackPieces = 16;
+		indexSlots();
+		if (VERIFY) line = "position startpos moves";
 		for (int i = 0; i < 8; ++i) {
 			checkSquares[i] = -1;
 		}
+		hash = Zobrist.hash(this);
+		pawnHash = Zobrist.pawnHash(this);
+		if (Nnue.NETWORK != null) accumulator = Nnue.NETWORK.accumulate(this);
 		
 	}
-	
+
+	/**
+	 * Sets up the position from a FEN string. Kings get pieces[0] and pieces[16]; rooks on their original squares
+	 * get 2, 3, 18 and 19 like in setNew(), since the castling specials identify rooks by those indices. Everything
+	 * else is numbered in board order. Moves, pins and checks are then computed from scratch.
+	 */
+	public void setFen(String fen) {
+		String[] fields = fen.trim().split("\\s+");
+		if (fields.length < 4) throw new IllegalArgumentException("Invalid FEN: " + fen);
+
+		for (int i = 0; i < 64; ++i) {
+			board[i] = -1;
+		}
+		for (int i = 0; i < 32; ++i) {
+			pieces[i] = null;
+		}
+		for (int i = 0; i < 16; ++i) {
+			wpI[i] = -1;
+			bpI[i] = -1;
+		}
+
+		int rank = 7;
+		int file = 0;
+		for (int i = 0; i < fields[0].length(); ++i) {
+			char c = fields[0].charAt(i);
+			if (c == '/') {
+				rank--;
+				file = 0;
+			} else if (c >= '1' && c <= '8') {
+				file += c - '0';
+			} else {
+				int type = "pnbrqk".indexOf(Character.toLowerCase(c)) + 1;
+				if (type == 0 || rank < 0 || file > 7) throw new IllegalArgumentException("Invalid FEN: " + fen);
+				boolean white = Character.isUpperCase(c);
+				board[rank*8 + file] = (type << 1) | (white ? 1 : 0); // encoding for now, replaced below
+				file++;
+			}
+		}
+
+		castlingRights = 0;
+		if (!fields[2].equals("-")) {
+			for (int i = 0; i < fields[2].length(); ++i) {
+				switch (fields[2].charAt(i)) {
+				case 'K': castlingRights |= 3; break;
+				case 'Q': castlingRights |= 5; break;
+				case 'k': castlingRights |= 24; break;
+				case 'q': castlingRights |= 40; break;
+				}
+			}
+		}
+
+		// number the pieces: kings first, then the original rooks, then the rest
+		int[] nextIndex = {1, 17}; // [white, black]
+		int[] nextSlot = {1, 1};
+		int[] encodings = board.clone();
+		for (int i = 0; i < 64; ++i) {
+			board[i] = -1;
+		}
+		for (int pass = 0; pass < 3; ++pass) {
+			for (int i = 0; i < 64; ++i) {
+				int e = encodings[i];
+				if (e < 0 || board[i] > -1) continue;
+				int type = e >>> 1;
+				int c = (e & 1) == 1 ? 0 : 1;
+				int index = -1;
+				if (pass == 0) {
+					if (type != 6) continue;
+					if (pieces[16*c] != null) throw new IllegalArgumentException("Invalid FEN: " + fen);
+					index = 16*c;
+				} else if (pass == 1) {
+					if (type != 4) continue;
+					if (i == (c == 0 ? 0 : 56)) index = 16*c + 2;
+					else if (i == (c == 0 ? 7 : 63)) index = 16*c + 3;
+					else continue;
+				} else {
+					// skip the rook indices only when the original rooks took them
+					while (nextIndex[c] < 16*(c+1) && pieces[nextIndex[c]] != null) nextIndex[c]++;
+					index = nextIndex[c]++;
+					if (index >= 16*(c+1)) throw new IllegalArgumentException("Invalid FEN: " + fen);
+				}
+				pieces[index] = new Piece(e);
+				board[i] = index;
+				if (type == 6) {
+					(c == 0 ? wpI : bpI)[0] = i;
+				} else {
+					(c == 0 ? wpI : bpI)[nextSlot[c]++] = i;
+				}
+			}
+		}
+		if (pieces[0] == null || pieces[16] == null) throw new IllegalArgumentException("Invalid FEN: " + fen);
+		nWhitePieces = nextSlot[0];
+		nBlackPieces = nextSlot[1];
+		indexSlots();
+
+		// drop castling rights the pieces cannot back up
+		if (board[7] != 3) castlingRights &= ~2;
+		if (board[0] != 2) castlingRights &= ~4;
+		if (board[63] != 19) castlingRights &= ~16;
+		if (board[56] != 18) castlingRights &= ~32;
+		if (wpI[0] != 4 || (castlingRights & 6) == 0) castlingRights &= ~7;
+		if (bpI[0] != 60 || (castlingRights & 48) == 0) castlingRights &= ~56;
+
+		enPassent = -1;
+		if (!fields[3].equals("-")) {
+			enPassent = (fields[3].charAt(1) - '1')*8 + (fields[3].charAt(0) - 'a');
+		}
+		movesWithoutCaptureOrPawn = fields.length > 4 ? Integer.parseInt(fields[4]) : 0;
+		int fullMoves = fields.length > 5 ? Integer.parseInt(fields[5]) : 1;
+		halfTurnNumber = 2*(fullMoves-1) + (fields[1].equals("w") ? 1 : 2);
+
+		computeDerivedState();
+		if (VERIFY) line = "position fen " + toFen() + " moves";
+	}
+
+	public String toFen() {
+		StringBuilder sb = new StringBuilder();
+		for (int rank = 7; rank >= 0; --rank) {
+			int empty = 0;
+			for (int file = 0; file < 8; ++file) {
+				int i = board[rank*8 + file];
+				if (i < 0) {
+					empty++;
+					continue;
+				}
+				if (empty > 0) sb.append(empty);
+				empty = 0;
+				char c = "pnbrqk".charAt(pieces[i].getType() - 1);
+				sb.append(pieces[i].getColor() ? Character.toUpperCase(c) : c);
+			}
+			if (empty > 0) sb.append(empty);
+			if (rank > 0) sb.append('/');
+		}
+		sb.append(halfTurnNumber%2 == 1 ? " w " : " b ");
+		String castling = "";
+		if ((castlingRights & 3) == 3) castling += "K";
+		if ((castlingRights & 5) == 5) castling += "Q";
+		if ((castlingRights & 24) == 24) castling += "k";
+		if ((castlingRights & 40) == 40) castling += "q";
+		sb.append(castling.isEmpty() ? "-" : castling);
+		sb.append(' ').append(enPassent < 0 ? "-" : squareName(enPassent));
+		sb.append(' ').append(movesWithoutCaptureOrPawn);
+		sb.append(' ').append((halfTurnNumber+1)/2);
+		return sb.toString();
+	}
+
+	/**
+	 * Recomputes everything that move(Move) otherwise maintains incrementally, from board, pieces' types,
+	 * halfTurnNumber and enPassent alone: every piece's moves, pins, nchecks/checkSquares and the Zobrist keys.
+	 */
+	public void computeDerivedState() {
+
+		int[] lsteps = {8,9,1,-7,-8,-9,-1,7};
+
+		for (int i = 0; i < 64; ++i) {
+			if (board[i] > -1) {
+				Piece p = pieces[board[i]];
+				p.encoding &= 15;
+				setMovesForPiece(p, i);
+			}
+		}
+
+		// en passent captures, as set in move(Move) after a double pawn move
+		if (enPassent > -1) {
+			boolean whitePushed = enPassent < 32;
+			int pawnSquare = whitePushed ? enPassent + 8 : enPassent - 8;
+			if (pawnSquare % 8 > 0 && board[pawnSquare-1] > -1) {
+				Piece pc = pieces[board[pawnSquare-1]];
+				if (pc.getType() == 1 && pc.getColor() != whitePushed) pc.setNMovesInDir(whitePushed ? 3 : 1, 1);
+			}
+			if (pawnSquare % 8 < 7 && board[pawnSquare+1] > -1) {
+				Piece pc = pieces[board[pawnSquare+1]];
+				if (pc.getType() == 1 && pc.getColor() != whitePushed) pc.setNMovesInDir(whitePushed ? 5 : 7, 1);
+			}
+		}
+
+		// pins: own piece, then an opposing slider along the same line from the king
+		for (int c = 0; c < 2; ++c) {
+			int king = c == 0 ? wpI[0] : bpI[0];
+			boolean color = c == 0;
+			for (int dir = 0; dir < 8; ++dir) {
+				int first = getPieceIndexInLineDirection(king, dir);
+				if (first < 0 || pieces[board[first]].getColor() != color) continue;
+				int second = getPieceIndexInLineDirection(first, dir);
+				if (second < 0) continue;
+				Piece p2 = pieces[board[second]];
+				if (p2.getColor() == color) continue;
+				if (p2.getType() == 5 || p2.getType() == (dir%2 == 0 ? 4 : 3)) {
+					pieces[board[first]].setIsPinned(true);
+					pieces[board[first]].setPinDirection(dir);
+				}
+			}
+		}
+
+		// checks on the side to move
+		boolean turn = halfTurnNumber%2 == 1;
+		int king = turn ? wpI[0] : bpI[0];
+		nchecks = 0;
+		for (int i = 0; i < 8; ++i) {
+			checkSquares[i] = -1;
+		}
+		for (int dir = 0; dir < 8; ++dir) {
+			int sq = getPieceIndexInLineDirection(king, dir);
+			if (sq < 0) continue;
+			Piece p = pieces[board[sq]];
+			if (p.getColor() == turn) continue;
+			if (p.getType() == 5 || p.getType() == (dir%2 == 0 ? 4 : 3)) {
+				nchecks++;
+				if (nchecks == 1) setCheckSquares(sq, king, (dir+4)%8);
+			}
+		}
+		for (int dir = 0; dir < 8; ++dir) {
+			int sq = getPieceIndexInKnightDirection(king, dir);
+			if (sq > -1 && pieces[board[sq]].getType() == 2 && pieces[board[sq]].getColor() != turn) {
+				nchecks++;
+				if (nchecks == 1) {
+					checkSquares[0] = sq;
+					checkSquares[1] = -1;
+				}
+			}
+		}
+		int[] pawnDirs = turn ? new int[] {1, 7} : new int[] {3, 5};
+		for (int d : pawnDirs) {
+			int sq = king + lsteps[d];
+			if (sq < 0 || sq > 63 || Math.abs(sq%8 - king%8) != 1 || board[sq] < 0) continue;
+			Piece p = pieces[board[sq]];
+			if (p.getType() == 1 && p.getColor() != turn) {
+				nchecks++;
+				if (nchecks == 1) {
+					checkSquares[0] = sq;
+					checkSquares[1] = -1;
+				}
+			}
+		}
+
+		hash = Zobrist.hash(this);
+		pawnHash = Zobrist.pawnHash(this);
+		Nnue net = accumulator != null ? accumulator.net : Nnue.NETWORK;
+		if (net != null) accumulator = net.accumulate(this);
+	}
+
 	// n: 0 = wk, 1 = wkr, 2 = wqr, 3 = bk, 4 = bkr, 5 = bqr
 	public boolean getCastlingRights(int n) {
 		return (((castlingRights >>> n) & 1) == 1);
@@ -209,293 +514,152 @@ public class Position {
 		checkSquares[index] = -1;
 	}
 	
+	// getMoves() without the moves that leave the mover's king capturable; slower, for callers outside the search
+	public List<Move> getLegalMoves() {
+		List<Move> moves = getMoves();
+		List<Move> legal = new ArrayList<Move>(moves.size());
+		for (int i = 0; i < moves.size(); ++i) {
+			Position child = new Position(this);
+			child.move(moves.get(i));
+			if (!Search.capturesKing(child.getMoves())) legal.add(moves.get(i));
+		}
+		return legal;
+	}
+
+	/**
+	 * Moves for the side to move. Legality is applied with two masks instead of per-branch code: evasions holds
+	 * the squares that answer a single check (capture the checker or block; all squares when not in check, none
+	 * in double check), and a pinned piece is further limited to the line through its king and pinner, RAYS in
+	 * its pin direction and the opposite one. A target is kept when its bit is in both. King moves are checked
+	 * square by square with isAttacked, and castling is only possible out of check.
+	 */
 	public List<Move> getMoves() {
 		
 		int[] lsteps = {8,9,1,-7,-8,-9,-1,7};
 		int[] nsteps = {17,10,-6,-15,-17,-10,6,15};
 		
+		long time = Metrics.ENABLED ? Metrics.start(Metrics.GET_MOVES) : 0;
+		EngineEvents.MoveGeneration event = EngineEvents.sample() ? new EngineEvents.MoveGeneration() : null;
+		if (event != null) event.begin();
 		List<Move> moves = new ArrayList<Move>();
 		boolean turn = halfTurnNumber%2 == 1;
 		int[] pcs = turn ? wpI : bpI;
-			
+		int npcs = turn ? nWhitePieces : nBlackPieces;
+
+		long evasions = -1L;
 		if (nchecks == 2) {
-			Piece p = pieces[board[pcs[0]]];
-			int special = (turn ? getCastlingRights(0) : getCastlingRights(3)) ? 8 : 0; // if first king move or not
-			int[] mvs = p.getMoves();
-			for (int i = 0; i < 8; ++i) {
-				if (mvs[i] > 0) {
-					int end = pcs[0] + lsteps[i];
-					if (!isAttacked(end,!turn,(i+4)%8)) {
-						moves.add(new Move(board[pcs[0]],pcs[0],end,board[end],special));
-					}
-				}
-			}
+			evasions = 0;
 		} else if (nchecks == 1) {
-			boolean[] validSquares = new boolean[64];
-			for (int i = 0; i < 8; ++i) {
-				int val = checkSquares[i];
-				if (val == -1) break;
-				validSquares[val] = true;
-			}
-			Piece k = pieces[board[pcs[0]]];
-			int kspecial = (turn ? getCastlingRights(0) : getCastlingRights(3)) ? 8 : 0; // if first king move or not
-			int[] kmvs = k.getMoves();
-			for (int i = 0; i < 8; ++i) {
-				if (kmvs[i] > 0) {
-					int end = pcs[0] + lsteps[i];
-					if (!isAttacked(end,!turn,(i+4)%8)) {
-						moves.add(new Move(board[pcs[0]],pcs[0],end,board[end],kspecial));
-					}
-				}
-			}
-			for (int i = 1; i < pcs.length; ++i) {
-				if (pcs[i] > -1) {
-					int index = pcs[i];
-					int pieceIndex = board[index];
-					Piece p = pieces[pieceIndex];
-					int special = 0;
-					int type = p.getType();
-					int[] mvs = p.getMoves();
-					int pinDir = p.getPinDirection();
-					if (pinDir > -1) {
-						if (type != 2) {
-							int currSquare = index;
-							int step = lsteps[pinDir];
-							for (int n = 0; n < mvs[pinDir]; ++n) {
-								currSquare+=step;
-								if (validSquares[currSquare]) {
-									int endIndex = board[currSquare];
-									if (type == 1) {
-										if (currSquare == enPassent) {
-											special = 1;
-										} else if (turn ? currSquare>55 : currSquare < 8) {
-											moves.add(new Move(pieceIndex,index,currSquare,endIndex,4));
-											moves.add(new Move(pieceIndex,index,currSquare,endIndex,5));
-											moves.add(new Move(pieceIndex,index,currSquare,endIndex,6));
-											special = 7;
-										}
-									} else if (type == 4) {
-										if (turn) {
-											if (pieceIndex == 3) {
-												if (getCastlingRights(1)) special = 9;
-											} else if (pieceIndex == 2) {
-												if (getCastlingRights(2)) special = 10;
-											}
-										} else {
-											if (pieceIndex == 19) {
-												if (getCastlingRights(4)) special = 9;
-											} else if (pieceIndex == 18) {
-												if (getCastlingRights(5)) special = 10;
-											}
-										}
-									} else if (type == 6) {
-										if (Math.abs(currSquare-index) == 2) {
-											if (currSquare == 6 || currSquare == 62) {
-												special = 2;
-											} else {
-												special = 3;
-											}
-										} 
-									}
-									moves.add(new Move(pieceIndex,index,currSquare,endIndex,special));
-								}
-							}
-						}
-					} else {
-						for (int j = 0; j < 8; ++j) {
-							if (mvs[j] > 0) {
-								int currSquare = index;
-								int step = p.getType() == 2 ? nsteps[j] : lsteps[j];
-								for (int n = 0; n < mvs[j]; ++n) {
-									currSquare+=step;
-									if (validSquares[currSquare]) {
-										int endIndex = board[currSquare];
-										if (type == 1) {
-											if (currSquare == enPassent) {
-												special = 1;
-											} else if (turn ? currSquare>55 : currSquare < 8) {
-												moves.add(new Move(pieceIndex,index,currSquare,endIndex,4));
-												moves.add(new Move(pieceIndex,index,currSquare,endIndex,5));
-												moves.add(new Move(pieceIndex,index,currSquare,endIndex,6));
-												special = 7;
-											}
-										} else if (type == 4) {
-											if (turn) {
-												if (pieceIndex == 3) {
-													if (getCastlingRights(1)) special = 9;
-												} else if (pieceIndex == 2) {
-													if (getCastlingRights(2)) special = 10;
-												}
-											} else {
-												if (pieceIndex == 19) {
-													if (getCastlingRights(4)) special = 9;
-												} else if (pieceIndex == 18) {
-													if (getCastlingRights(5)) special = 10;
-												}
-											}
-										}
-										moves.add(new Move(pieceIndex,index,currSquare,endIndex,special));
-									}
-								}
-							}
-						}
-					}
-				}
+			evasions = 0;
+			for (int i = 0; i < 8 && checkSquares[i] != -1; ++i) {
+				evasions |= 1L << checkSquares[i];
 			}
-			
-		// No checks
-		} else {
-			
-			Piece k = pieces[board[pcs[0]]];
-			int kspecial = (turn ? getCastlingRights(0) : getCastlingRights(3)) ? 8 : 0; // if first king move or not
-			int[] kmvs = k.getMoves();
-			boolean ksc = false; // kingside castle
-			boolean qsc = false; // queenside castle
+		}
+
+		Piece k = pieces[board[pcs[0]]];
+		int kspecial = (turn ? getCastlingRights(0) : getCastlingRights(3)) ? 8 : 0; // if first king move or not
+		int[] kmvs = k.getMoves();
+		boolean ksc = false; // kingside castle
+		boolean qsc = false; // queenside castle
+		if (nchecks == 0) {
 			if (turn) {
 				if (getCastlingRights(0)) {
-					if (getCastlingRights(1)) {
-						ksc = true;
-					}
-					if (getCastlingRights(2)) {
-						qsc = true;
-					}
+					ksc = getCastlingRights(1);
+					qsc = getCastlingRights(2);
 				}
 			} else {
 				if (getCastlingRights(3)) {
-					if (getCastlingRights(4)) {
-						ksc = true;
-					}
-					if (getCastlingRights(5)) {
-						qsc = true;
-					}
+					ksc = getCastlingRights(4);
+					qsc = getCastlingRights(5);
 				}
 			}
-			for (int i = 0; i < 8; ++i) {
-				if (kmvs[i] > 0) {
-					int end = pcs[0] + lsteps[i];
-					if (!isAttacked(end,!turn,(i+4)%8)) {
-						moves.add(new Move(board[pcs[0]],pcs[0],end,board[end],kspecial));
-						if (i == 2 && ksc) {
-							if (turn) {
-								if (board[6] == -1 && !isAttacked(6,false,6)) {
-									moves.add(new Move(board[pcs[0]],pcs[0],6,-1,2));
-								}
-							} else {
-								if (board[62] == -1 && !isAttacked(62,true,6)) {
-									moves.add(new Move(board[pcs[0]],pcs[0],62,-1,2));
-								}
-							}
-						} else if (i == 6 && qsc) {
-							if (turn) {
-								if (board[2] == -1 && !isAttacked(2,false,2)) {
-									moves.add(new Move(board[pcs[0]],pcs[0],2,-1,3));
-								}
-							} else {
-								if (board[58] == -1 && !isAttacked(58,true,2)) {
-									moves.add(new Move(board[pcs[0]],pcs[0],58,-1,3));
-								}
-							}
+		}
+		for (int i = 0; i < 8; ++i) {
+			if (kmvs[i] > 0) {
+				int end = pcs[0] + lsteps[i];
+				if (!isAttacked(end,!turn,(i+4)%8)) {
+					moves.add(new Move(board[pcs[0]],pcs[0],end,board[end],kspecial));
+					if (i == 2 && ksc && board[end] == -1) { // the king step may be a capture
+						int castle = turn ? 6 : 62;
+						if (board[castle] == -1 && !isAttacked(castle,!turn,6)) {
+							moves.add(new Move(board[pcs[0]],pcs[0],castle,-1,2));
+						}
+					} else if (i == 6 && qsc && board[end] == -1 && board[turn ? 1 : 57] == -1) {
+						int castle = turn ? 2 : 58;
+						if (board[castle] == -1 && !isAttacked(castle,!turn,2)) {
+							moves.add(new Move(board[pcs[0]],pcs[0],castle,-1,3));
 						}
 					}
 				}
 			}
-			for (int i = 1; i < pcs.length; ++i) {
-				if (pcs[i] > -1) {
-					int index = pcs[i];
-					int pieceIndex = board[index];
-					Piece p = pieces[pieceIndex];
-					int special = 0;
-					int type = p.getType();
-					int[] mvs = p.getMoves();
-					int pinDir = p.getPinDirection();
-					if (pinDir > -1) {
-						if (type != 2) {
-							int currSquare = index;
-							int step = lsteps[pinDir];
-							for (int n = 0; n < mvs[pinDir]; ++n) {
-								currSquare+=step;
-								int endIndex = board[currSquare];
-								if (type == 1) {
-									if (currSquare == enPassent) {
-										special = 1;
-									} else if (turn ? currSquare>55 : currSquare < 8) {
-										moves.add(new Move(pieceIndex,index,currSquare,endIndex,4));
-										moves.add(new Move(pieceIndex,index,currSquare,endIndex,5));
-										moves.add(new Move(pieceIndex,index,currSquare,endIndex,6));
-										special = 7;
-									}
-								} else if (type == 4) {
-									if (turn) {
-										if (pieceIndex == 3) {
-											if (getCastlingRights(1)) special = 9;
-										} else if (pieceIndex == 2) {
-											if (getCastlingRights(2)) special = 10;
-										}
-									} else {
-										if (pieceIndex == 19) {
-											if (getCastlingRights(4)) special = 9;
-										} else if (pieceIndex == 18) {
-											if (getCastlingRights(5)) special = 10;
-										}
-									}
-								} else if (type == 6) {
-									if (Math.abs(currSquare-index) == 2) {
-										if (currSquare == 6 || currSquare == 62) {
-											special = 2;
-										} else {
-											special = 3;
-										}
-									} 
-								}
-								moves.add(new Move(pieceIndex,index,currSquare,endIndex,special));
+		}
+		if (evasions == 0) return generated(moves, time, event);
+
+		for (int i = 1; i < npcs; ++i) {
+			int index = pcs[i];
+			int pieceIndex = board[index];
+			Piece p = pieces[pieceIndex];
+			int special = 0;
+			int type = p.getType();
+			int pinDir = p.getPinDirection();
+			// a pinned knight can never stay on the pin ray
+			long allowed = pinDir < 0 ? evasions
+				: type == 2 ? 0 : evasions & (RAYS[index][pinDir] | RAYS[index][(pinDir+4)%8]);
+			if (allowed == 0) continue;
+			int[] mvs = p.getMoves();
+			for (int j = 0; j < 8; ++j) {
+				if (mvs[j] > 0) {
+					int currSquare = index;
+					int step = type == 2 ? nsteps[j] : lsteps[j];
+					for (int n = 0; n < mvs[j]; ++n) {
+						currSquare+=step;
+						if ((allowed & (1L << currSquare)) == 0) continue;
+						int endIndex = board[currSquare];
+						if (type == 1) {
+							special = 0; // a previous target may have been en passent
+							if (currSquare == enPassent) {
+								special = 1;
+							} else if (turn ? currSquare>55 : currSquare < 8) {
+								moves.add(new Move(pieceIndex,index,currSquare,endIndex,4));
+								moves.add(new Move(pieceIndex,index,currSquare,endIndex,5));
+								moves.add(new Move(pieceIndex,index,currSquare,endIndex,6));
+								special = 7;
 							}
-						}
-					} else {
-						for (int j = 0; j < 8; ++j) {
-							if (mvs[j] > 0) {
-								int currSquare = index;
-								int step = p.getType() == 2 ? nsteps[j] : lsteps[j];
-								for (int n = 0; n < mvs[j]; ++n) {
-									currSquare+=step;
-									int endIndex = board[currSquare];
-									if (type == 1) {
-										if (currSquare == enPassent) {
-											special = 1;
-										} else if (turn ? currSquare>55 : currSquare < 8) {
-											moves.add(new Move(pieceIndex,index,currSquare,endIndex,4));
-											moves.add(new Move(pieceIndex,index,currSquare,endIndex,5));
-											moves.add(new Move(pieceIndex,index,currSquare,endIndex,6));
-											special = 7;
-										}
-									} else if (type == 4) {
-										if (turn) {
-											if (pieceIndex == 3) {
-												if (getCastlingRights(1)) {
-													special = 9;
-												}
-											} else if (pieceIndex == 2) {
-												if (getCastlingRights(2)) special = 10;
-											}
-										} else {
-											if (pieceIndex == 19) {
-												if (getCastlingRights(4)) special = 9;
-											} else if (pieceIndex == 18) {
-												if (getCastlingRights(5)) special = 10;
-											}
-										}
-									}
-									moves.add(new Move(pieceIndex,index,currSquare,endIndex,special));
+						} else if (type == 4) {
+							if (turn) {
+								if (pieceIndex == 3) {
+									if (getCastlingRights(1)) special = 9;
+								} else if (pieceIndex == 2) {
+									if (getCastlingRights(2)) special = 10;
+								}
+							} else {
+								if (pieceIndex == 19) {
+									if (getCastlingRights(4)) special = 9;
+								} else if (pieceIndex == 18) {
+									if (getCastlingRights(5)) special = 10;
 								}
 							}
 						}
+						moves.add(new Move(pieceIndex,index,currSquare,endIndex,special));
 					}
 				}
 			}
 		}
 		
-		return moves;
+		return generated(moves, time, event);
 		
 	}
+
+	// the end of getMoves(): closes its timings
+	List<Move> generated(List<Move> moves, long time, EngineEvents.MoveGeneration event) {
+		if (Metrics.ENABLED) Metrics.end(Metrics.GET_MOVES, time);
+		if (event != null && event.shouldCommit()) {
+			event.moves = moves.size();
+			event.checks = nchecks;
+			event.commit();
+		}
+		return moves;
+	}
 	
 	public void move(String s) {
 		
@@ -889,13 +1053,38 @@ public class Position {
 		
 		//TODO - clean up adding/removing piece by wrapping edits at board and pieceIndices
 		
+		long time = Metrics.ENABLED ? Metrics.start(Metrics.MOVE) : 0;
 		nchecks = 0; // i think?
 		
 		Piece p = pieces[m.pieceIndex];
 		boolean whiteTurn = halfTurnNumber%2 == 1;
 		
+		// take the old state out of the key here, the new state goes back in at the end of the move
+		hash ^= Zobrist.CASTLING[castlingRights] ^ Zobrist.enPassent(enPassent) ^ Zobrist.piece(p, m.start);
+		// the accumulator follows the key: the moved piece's old type out here, its new type in at the end
+		if (accumulator != null) accumulator.sub(p, m.start);
+		
+		// the pawn key only changes when a pawn moves, is captured or promotes
+		if (p.getType() == 1) {
+			pawnHash ^= Zobrist.piece(p, m.start);
+			if (m.special < 4 || m.special > 7) pawnHash ^= Zobrist.piece(p, m.end);
+		}
+		int captureSquare = m.special == 1 ? (whiteTurn ? m.end-8 : m.end+8) : m.end;
+		if (board[captureSquare] > -1) {
+			Piece captured = pieces[board[captureSquare]];
+			hash ^= Zobrist.piece(captured, captureSquare);
+			if (accumulator != null) accumulator.sub(captured, captureSquare);
+			if (captured.getType() == 1) pawnHash ^= Zobrist.piece(captured, captureSquare);
+		}
+		
 		if (board[m.end] > -1) {
 			editPieceIndex(m.end,!(whiteTurn), -1);
+			switch (board[m.end]) { // a rook taken before it moved takes its castling rights with it
+			case 2: castlingRights &= 59; break;
+			case 3: castlingRights &= 61; break;
+			case 18: castlingRights &= 31; break;
+			case 19: castlingRights &= 47; break;
+			}
 		}
 		
 		board[m.end] = board[m.start]; // "move" the piece to its end square
@@ -910,7 +1099,7 @@ public class Position {
 					editPieceIndex(m.end-8,!(whiteTurn), -1);
 				} else {
 					board[m.end+8] = -1;
-					editPieceIndex(m.end-8,!(whiteTurn), -1);
+					editPieceIndex(m.end+8,!(whiteTurn), -1);
 				}
 				modifyMovesAtSquare(p.getColor() ? m.end-8 : m.end+8,null);
 				break;
@@ -918,36 +1107,52 @@ public class Position {
 				if (p.getColor()) {
 					board[5] = board[7];
 					board[7] = -1;
+					hash ^= Zobrist.piece(pieces[board[5]], 7) ^ Zobrist.piece(pieces[board[5]], 5);
+					if (accumulator != null) accumulator.move(pieces[board[5]], 7, 5);
 					editPieceIndex(7,true,5);
 					modifyMovesAtSquare(4,null);
 					modifyMovesAtSquare(5,pieces[board[5]]);
 					modifyMovesAtSquare(7,null);
+					setMovesForPiece(pieces[board[5]],5);
+					castlingRights &= 62; //0b111110
 				} else {
 					board[61] = board[63];
 					board[63] = -1;
+					hash ^= Zobrist.piece(pieces[board[61]], 63) ^ Zobrist.piece(pieces[board[61]], 61);
+					if (accumulator != null) accumulator.move(pieces[board[61]], 63, 61);
 					editPieceIndex(63,false,61);
 					modifyMovesAtSquare(60,null);
 					modifyMovesAtSquare(61,pieces[board[61]]);
 					modifyMovesAtSquare(63,null);
+					setMovesForPiece(pieces[board[61]],61);
+					castlingRights &= 55; //0b110111
 				}
 				break;
 			case 3: // queenside castle
 				if (p.getColor()) {
 					board[3] = board[0];
 					board[0] = -1;
+					hash ^= Zobrist.piece(pieces[board[3]], 0) ^ Zobrist.piece(pieces[board[3]], 3);
+					if (accumulator != null) accumulator.move(pieces[board[3]], 0, 3);
 					editPieceIndex(0,true,3);
 					modifyMovesAtSquare(4,null);
 					modifyMovesAtSquare(3,pieces[board[3]]);
 					modifyMovesAtSquare(1,null);
 					modifyMovesAtSquare(0,null);
+					setMovesForPiece(pieces[board[3]],3);
+					castlingRights &= 62; //0b111110
 				} else {
 					board[59] = board[56];
 					board[56] = -1;
+					hash ^= Zobrist.piece(pieces[board[59]], 56) ^ Zobrist.piece(pieces[board[59]], 59);
+					if (accumulator != null) accumulator.move(pieces[board[59]], 56, 59);
 					editPieceIndex(56,false,59);
 					modifyMovesAtSquare(60,null);
 					modifyMovesAtSquare(59,pieces[board[59]]);
 					modifyMovesAtSquare(57,null);
 					modifyMovesAtSquare(56,null);
+					setMovesForPiece(pieces[board[59]],59);
+					castlingRights &= 55; //0b110111
 				}
 				break;
 			case 4: // promote to Q
@@ -1043,14 +1248,56 @@ public class Position {
 		} else {
 			movesWithoutCaptureOrPawn++;
 		}
+		hash ^= Zobrist.piece(p, m.end) ^ Zobrist.CASTLING[castlingRights] ^ Zobrist.enPassent(enPassent) ^ Zobrist.SIDE;
+		if (accumulator != null) accumulator.add(p, m.end);
 		halfTurnNumber++;
+		if (Metrics.ENABLED) Metrics.end(Metrics.MOVE, time);
+		if (VERIFY) {
+			line += " " + m.getUciName();
+			verify();
+		}
 		
 	}
 	
+	// "null move" for the search: the side to move passes. Pieces stay where they are, but an en passent
+	// capture is only available for one move, so the pawns that could have taken lose that diagonal move.
+	// Only valid when the side to move is not in check.
+	public void pass() {
+		hash ^= Zobrist.enPassent(enPassent) ^ Zobrist.SIDE;
+		if (VERIFY) line += " 0000";
+		if (enPassent > -1) {
+			boolean whitePushed = enPassent < 32; // the pawn that double moved
+			int pawnSquare = whitePushed ? enPassent + 8 : enPassent - 8;
+			if (pawnSquare % 8 > 0 && board[pawnSquare-1] > -1) {
+				Piece pc = pieces[board[pawnSquare-1]];
+				if (pc.getType() == 1 && pc.getColor() != whitePushed) {
+					pc.setNMovesInDir(whitePushed ? 3 : 1, 0);
+				}
+			}
+			if (pawnSquare % 8 < 7 && board[pawnSquare+1] > -1) {
+				Piece pc = pieces[board[pawnSquare+1]];
+				if (pc.getType() == 1 && pc.getColor() != whitePushed) {
+					pc.setNMovesInDir(whitePushed ? 5 : 7, 0);
+				}
+			}
+			enPassent = -1;
+		}
+		movesWithoutCaptureOrPawn++;
+		halfTurnNumber++;
+	}
+
 	// white = color of attacker
 	// TODO - make arrays wAttacks, bAttacks and change this method to work on those
 	// retain info move to move on which squares are attacked by each side
 	public boolean isAttacked(int index, boolean white, int exemptDir) {
+		if (!Metrics.ENABLED) return attackedBy(index, white, exemptDir);
+		long time = Metrics.start(Metrics.IS_ATTACKED);
+		boolean attacked = attackedBy(index, white, exemptDir);
+		Metrics.end(Metrics.IS_ATTACKED, time);
+		return attacked;
+	}
+
+	boolean attackedBy(int index, boolean white, int exemptDir) {
 		if (white) {
 			//king
 			if (Math.abs(wpI[0]%8-index%8) < 2 && Math.abs(wpI[0]/8-index/8) < 2) {
@@ -1199,23 +1446,119 @@ public class Position {
 		return false;
 	}
 	
-	//TODO - optimize by only searching at certain piece types indices
+	// moves the piece list entry of the piece on index to val, or removes it when val is -1
 	public void editPieceIndex(int index, boolean white, int val) {
-		if (white) {
-			for (int i = 0; i < 16; ++i) {
-				if (wpI[i] == index) {
-					wpI[i] = val;
-					break;
-				}
-			}
+		int[] pcs = white ? wpI : bpI;
+		int slot = slotOf[index];
+		slotOf[index] = -1;
+		if (val > -1) {
+			pcs[slot] = val;
+			slotOf[val] = slot;
 		} else {
-			for (int i = 0; i < 16; ++i) {
-				if (bpI[i] == index) {
-					bpI[i] = val;
-					break;
-				}
+			int last = (white ? nWhitePieces-- : nBlackPieces--) - 1; // the king is never removed, so slot > 0
+			pcs[slot] = pcs[last];
+			pcs[last] = -1;
+			if (slot != last) slotOf[pcs[slot]] = slot;
+		}
+	}
+
+	/**
+	 * Recomputes the move counts, pins and checks from scratch on a copy and throws an IllegalStateException
+	 * naming the first difference from the incrementally updated state, together with the moves that led here.
+	 * Also checks the keys, the piece lists and that every castling right still has its king and rook at home.
+	 */
+	public void verify() {
+		String error = null;
+		Position fresh = new Position(this);
+		fresh.computeDerivedState();
+		for (int i = 0; i < 64 && error == null; ++i) {
+			if (board[i] < 0) continue;
+			Piece a = pieces[board[i]];
+			Piece b = fresh.pieces[board[i]];
+			if (a.getType() == 6 ? kingSteps(a, i) != kingSteps(b, i) : !sameState(a, b)) {
+				error = "PNBRQK".charAt(a.getType()-1) + " on " + squareName(i) + " has " + describe(a) + ", recomputed " + describe(b);
 			}
 		}
+		if (error == null && nchecks != fresh.nchecks) {
+			error = nchecks + " checks, recomputed " + fresh.nchecks;
+		}
+		if (error == null && nchecks == 1 && squareSet(checkSquares) != squareSet(fresh.checkSquares)) {
+			error = "check squares " + squareList(checkSquares) + ", recomputed " + squareList(fresh.checkSquares);
+		}
+		int[] homes = {4, 7, 0, 60, 63, 56}; // king, kingside rook and queenside rook squares per castling bit
+		int[] indices = {0, 3, 2, 16, 19, 18};
+		for (int i = 0; i < 6 && error == null; ++i) {
+			// a rook's right only counts while its king still has one
+			if (getCastlingRights(i) && getCastlingRights(i/3*3) && board[homes[i]] != indices[i]) {
+				error = "castling right " + i + " without pieces[" + indices[i] + "] on " + squareName(homes[i]);
+			}
+		}
+		if (error == null && hash != Zobrist.hash(this)) error = "hash differs from Zobrist.hash()";
+		if (error == null && pawnHash != Zobrist.pawnHash(this)) error = "pawn hash differs from Zobrist.pawnHash()";
+		if (error == null && accumulator != null && !accumulator.equals(fresh.accumulator)) {
+			error = "NNUE accumulator differs from a refresh";
+		}
+		for (int i = 0; i < 64 && error == null; ++i) {
+			int[] pcs = board[i] > -1 && pieces[board[i]].getColor() ? wpI : bpI;
+			if (board[i] > -1 ? slotOf[i] < 0 || pcs[slotOf[i]] != i : slotOf[i] != -1) {
+				error = "piece lists out of date at " + squareName(i);
+			}
+		}
+		if (error != null) throw new IllegalStateException(error + " after " + line);
+	}
+
+	// king moves are only kept up to date up to attacked squares, which getMoves() filters out anyway, so only the
+	// steps that survive the filter are compared
+	int kingSteps(Piece k, int square) {
+		int[] lsteps = {8,9,1,-7,-8,-9,-1,7};
+		int[] mvs = k.getMoves();
+		int steps = 0;
+		for (int i = 0; i < 8; ++i) {
+			if (mvs[i] > 0 && !isAttacked(square + lsteps[i], !k.getColor(), (i+4)%8)) steps |= 1 << i;
+		}
+		return steps;
+	}
+
+	// the pin direction bits are left over when a pin is lifted, so they only count on pinned pieces
+	static boolean sameState(Piece a, Piece b) {
+		return a.encoding >>> 8 == b.encoding >>> 8 && a.getPinDirection() == b.getPinDirection()
+			&& (a.encoding & 15) == (b.encoding & 15);
+	}
+
+	static String describe(Piece p) {
+		int[] mvs = p.getMoves();
+		String s = "moves";
+		for (int i = 0; i < 8; ++i) {
+			s += (i == 0 ? " " : ",") + mvs[i];
+		}
+		return p.getPinDirection() < 0 ? s : s + " pinned in direction " + p.getPinDirection();
+	}
+
+	static long squareSet(int[] squares) {
+		long set = 0;
+		for (int i = 0; i < squares.length && squares[i] != -1; ++i) {
+			set |= 1L << squares[i];
+		}
+		return set;
+	}
+
+	static String squareList(int[] squares) {
+		String s = "";
+		for (int i = 0; i < squares.length && squares[i] != -1; ++i) {
+			s += (i == 0 ? "" : " ") + squareName(squares[i]);
+		}
+		return s;
+	}
+
+	// rebuilds slotOf from wpI and bpI after a new setup
+	void indexSlots() {
+		for (int i = 0; i < 64; ++i) {
+			slotOf[i] = -1;
+		}
+		for (int i = 0; i < 16; ++i) {
+			if (wpI[i] > -1) slotOf[wpI[i]] = i;
+			if (bpI[i] > -1) slotOf[bpI[i]] = i;
+		}
 	}
 	
 	public void setMovesForPiece(Piece p, int index) {
@@ -1436,6 +1779,8 @@ public class Position {
 					} else {
 						p.setNMovesInDir(i, 0);
 					}
+				} else {
+					p.setNMovesInDir(i, 0); // off the board
 				}
 			}
 			break;
@@ -1448,6 +1793,9 @@ public class Position {
 	//TODO - remove pins on king moves
 	//Optimization - add exemption direction
 	public void modifyMovesAtSquare(int index, Piece p) {
+		long time = Metrics.ENABLED ? Metrics.start(Metrics.MODIFY_MOVES) : 0;
+		EngineEvents.MoveUpdate update = EngineEvents.RECORDING ? new EngineEvents.MoveUpdate() : null;
+		if (update != null) update.begin();
 		
 		if (p != null) {
 			
@@ -1692,9 +2040,8 @@ public class Position {
 				
 				switch (lep[0].getType()) {
 				case 1:
-					if (!lep[0].getColor() && dToA < 3) {
-						if (color) nMoves--; // pawns cannot take vertically
-						lep[0].setNMovesInDir(4, nMoves); 
+					if (!lep[0].getColor() && lei[0]-index <= 16) {
+						lep[0].setNMovesInDir(4, ((lei[0]-index)/8) - 1); // pawns cannot take vertically
 					}
 					break;
 				case 4:
@@ -1725,9 +2072,8 @@ public class Position {
 				
 				switch (lep[4].getType()) {
 				case 1:
-					if (lep[4].getColor() && dToA < 3) {
-						if (!color) nMoves--; // pawns cannot take vertically
-						lep[4].setNMovesInDir(0, nMoves); 
+					if (lep[4].getColor() && index-lei[4] <= 16) {
+						lep[4].setNMovesInDir(0, ((index-lei[4])/8) - 1); // pawns cannot take vertically
 					}
 					break;
 				case 4:
@@ -1760,9 +2106,8 @@ public class Position {
 				
 				switch (lep[1].getType()) {
 				case 1:
-					if (!lep[1].getColor() && dToA == 1) {
-						if (!color) nMoves--; // nMoves is 0 here
-						lep[1].setNMovesInDir(5, nMoves); 
+					if (!lep[1].getColor() && lei[1]-index == 9) {
+						lep[1].setNMovesInDir(5, color ? 1 : 0); // can only take an opposing piece
 					}
 					break;
 				case 3:
@@ -1793,9 +2138,8 @@ public class Position {
 				
 				switch (lep[5].getType()) {
 				case 1:
-					if (lep[5].getColor() && dToA == 1) {
-						if (color) nMoves--; // nMoves would be 0
-						lep[5].setNMovesInDir(1, nMoves); 
+					if (lep[5].getColor() && index-lei[5] == 9) {
+						lep[5].setNMovesInDir(1, color ? 0 : 1);
 					}
 					break;
 				case 3:
@@ -1884,9 +2228,8 @@ public class Position {
 				
 				switch (lep[3].getType()) {
 				case 1:
-					if (lep[3].getColor() && dToA == 1) {
-						if (color) nMoves--; // pawns cannot take vertically
-						lep[3].setNMovesInDir(7, nMoves); 
+					if (lep[3].getColor() && index-lei[3] == 7) {
+						lep[3].setNMovesInDir(7, color ? 0 : 1);
 					}
 					break;
 				case 3:
@@ -1917,9 +2260,8 @@ public class Position {
 				
 				switch (lep[7].getType()) {
 				case 1:
-					if (!lep[7].getColor() && dToA == 1) {
-						if (!color) nMoves--; // pawns cannot take vertically
-						lep[7].setNMovesInDir(3, nMoves); 
+					if (!lep[7].getColor() && lei[7]-index == 7) {
+						lep[7].setNMovesInDir(3, color ? 1 : 0);
 					}
 					break;
 				case 3:
@@ -2054,7 +2396,8 @@ public class Position {
 				switch (lsp[0].getType()) {
 				case 1:
 					if (!lsp[0].getColor() && dToA < 3) {
-						nMoves = lsi[0]/8 == 6 ? 2 : 1;
+						int free = lsp[4] == null ? lsi[0]/8 : (lsi[0]-lsi[4])/8 - 1; // pawns cannot take vertically
+						nMoves = Math.min(lsi[0]/8 == 6 ? 2 : 1, free);
 						lsp[0].setNMovesInDir(4, nMoves); 
 					}
 					break;
@@ -2085,7 +2428,8 @@ public class Position {
 				switch (lsp[4].getType()) {
 				case 1:
 					if (lsp[4].getColor() && dToA < 3) {
-						nMoves = lsi[4]/8 == 1 ? 2 : 1;
+						int free = lsp[0] == null ? 7-(lsi[4]/8) : (lsi[0]-lsi[4])/8 - 1; // pawns cannot take vertically
+						nMoves = Math.min(lsi[4]/8 == 1 ? 2 : 1, free);
 						lsp[4].setNMovesInDir(0, nMoves); 
 					}
 					break;
@@ -2285,6 +2629,12 @@ public class Position {
 			} 
 			
 		}
+		if (Metrics.ENABLED) Metrics.end(Metrics.MODIFY_MOVES, time);
+		if (update != null && update.shouldCommit()) {
+			update.square = squareName(index);
+			update.piece = p == null ? "empty" : "" + (p.getColor() ? "PNBRQK" : "pnbrqk").charAt(p.getType()-1);
+			update.commit();
+		}
 		
 	}
 	
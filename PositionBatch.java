@@ -0,0 +1,308 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * Many positions in a struct-of-arrays layout, with legal move generation for all of them at once. Each position
+ * is its twelve piece bitboards, side to move, castling rights and en passent square, stored field by field:
+ * pieces[code][i] is the bitboard of piece code (type-1, plus 6 for black) in position i. Nothing refers back to
+ * Position, so a batch is a few dense arrays that one pass over the positions reads front to back.
+ *
+ * Moves are generated on the bitboards rather than from Piece encodings: pseudo-legal moves, of which those
+ * that leave the king attacked are dropped. Chunks of CHUNK positions run in parallel on the common fork-join
+ * pool. counts() gives the number of legal moves per position; moves() gives all of them in one flat array with
+ * offsets, each move as from | to << 6 | promotion type << 12.
+ *
+ * Usage: PositionBatch [positions]   checks against ReferenceMoves and compares positions/s with getMoves()
+ */
+public class PositionBatch {
+
+	static final int CHUNK = 1024;
+	static final int[] BISHOP_DIRS = {1, 3, 5, 7};
+	static final int[] ROOK_DIRS = {0, 2, 4, 6};
+	static final long[] KNIGHT = new long[64];
+	static final long[] KING = new long[64];
+	static final long[][] PAWN_ATTACKS = new long[2][64]; // [0 white, 1 black][square]: squares the pawn attacks
+
+	static {
+		int[][] jumps = {{1,2},{2,1},{2,-1},{1,-2},{-1,-2},{-2,-1},{-2,1},{-1,2}};
+		int[][] steps = {{0,1},{1,1},{1,0},{1,-1},{0,-1},{-1,-1},{-1,0},{-1,1}};
+		for (int sq = 0; sq < 64; ++sq) {
+			for (int d = 0; d < 8; ++d) {
+				KNIGHT[sq] |= bit(sq%8 + jumps[d][0], sq/8 + jumps[d][1]);
+				KING[sq] |= bit(sq%8 + steps[d][0], sq/8 + steps[d][1]);
+			}
+			PAWN_ATTACKS[0][sq] = bit(sq%8 - 1, sq/8 + 1) | bit(sq%8 + 1, sq/8 + 1);
+			PAWN_ATTACKS[1][sq] = bit(sq%8 - 1, sq/8 - 1) | bit(sq%8 + 1, sq/8 - 1);
+		}
+	}
+
+	static long bit(int file, int rank) {
+		return file >= 0 && file < 8 && rank >= 0 && rank < 8 ? 1L << (rank*8 + file) : 0;
+	}
+
+	int size;
+	long[][] pieces;
+	boolean[] white; // side to move
+	byte[] castling; // bits 0-3 KQkq
+	byte[] enPassent; // square, or -1
+
+	public PositionBatch(int capacity) {
+		pieces = new long[12][capacity];
+		white = new boolean[capacity];
+		castling = new byte[capacity];
+		enPassent = new byte[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void add(Position pos) {
+		int i = size++;
+		for (int sq = 0; sq < 64; ++sq) {
+			if (pos.board[sq] < 0) continue;
+			Piece p = pos.pieces[pos.board[sq]];
+			pieces[p.getType()-1 + (p.getColor() ? 0 : 6)][i] |= 1L << sq;
+		}
+		white[i] = pos.halfTurnNumber%2 == 1;
+		int rights = Zobrist.canonicalCastling(pos);
+		castling[i] = (byte) (((rights & 3) == 3 ? 1 : 0) | ((rights & 5) == 5 ? 2 : 0) | ((rights & 24) == 24 ? 4 : 0)
+			| ((rights & 40) == 40 ? 8 : 0));
+		enPassent[i] = (byte) pos.enPassent;
+	}
+
+	// legal move counts, per position
+	public int[] counts() {
+		int[] counts = new int[size];
+		IntStream.range(0, (size + CHUNK - 1) / CHUNK).parallel().forEach(c -> {
+			int[] buffer = new int[256];
+			for (int i = c*CHUNK; i < Math.min(size, (c+1)*CHUNK); ++i) {
+				counts[i] = generate(i, buffer);
+			}
+		});
+		return counts;
+	}
+
+	/**
+	 * All legal moves: those of position i are moves[offsets[i]] to moves[offsets[i+1]-1]. Each chunk fills a
+	 * buffer of its own, and the buffers are then copied into place.
+	 */
+	public static class Moves {
+		public int[] moves;
+		public int[] offsets;
+	}
+
+	public Moves moves() {
+		int chunks = (size + CHUNK - 1) / CHUNK;
+		int[][] parts = new int[chunks][];
+		int[] counts = new int[size];
+		IntStream.range(0, chunks).parallel().forEach(c -> {
+			int[] part = new int[CHUNK * 40];
+			int n = 0;
+			for (int i = c*CHUNK; i < Math.min(size, (c+1)*CHUNK); ++i) {
+				if (part.length - n < 256) part = Arrays.copyOf(part, part.length * 2);
+				counts[i] = generate(i, part, n);
+				n += counts[i];
+			}
+			parts[c] = Arrays.copyOf(part, n);
+		});
+		Moves result = new Moves();
+		result.offsets = new int[size + 1];
+		for (int i = 0; i < size; ++i) {
+			result.offsets[i+1] = result.offsets[i] + counts[i];
+		}
+		result.moves = new int[result.offsets[size]];
+		for (int c = 0; c < chunks; ++c) {
+			System.arraycopy(parts[c], 0, result.moves, result.offsets[c*CHUNK], parts[c].length);
+		}
+		return result;
+	}
+
+	public static String uci(int move) {
+		String s = Position.squareName(move & 63) + Position.squareName(move >>> 6 & 63);
+		return (move >>> 12) == 0 ? s : s + " pnbrqk".charAt(move >>> 12);
+	}
+
+	int generate(int i, int[] out) {
+		return generate(i, out, 0);
+	}
+
+	// writes the legal moves of position i to out from index start and returns how many there are
+	int generate(int i, int[] out, int start) {
+		int us = white[i] ? 0 : 6;
+		int them = 6 - us;
+		long own = 0;
+		long opp = 0;
+		for (int t = 0; t < 6; ++t) {
+			own |= pieces[us + t][i];
+			opp |= pieces[them + t][i];
+		}
+		long occ = own | opp;
+		int king = Long.numberOfTrailingZeros(pieces[us + 5][i]);
+		int n = start;
+
+		long pawns = pieces[us][i];
+		int forward = white[i] ? 8 : -8;
+		long lastRank = white[i] ? 0xFF00000000000000L : 0xFFL;
+		long startRank = white[i] ? 0xFF00L : 0xFF000000000000L;
+		int ep = enPassent[i];
+		while (pawns != 0) {
+			int from = Long.numberOfTrailingZeros(pawns);
+			pawns &= pawns - 1;
+			long targets = PAWN_ATTACKS[white[i] ? 0 : 1][from] & (opp | (ep >= 0 ? 1L << ep : 0));
+			int push = from + forward;
+			if ((occ & 1L << push) == 0) {
+				targets |= 1L << push;
+				if ((startRank & 1L << from) != 0 && (occ & 1L << (push + forward)) == 0) targets |= 1L << (push + forward);
+			}
+			while (targets != 0) {
+				int to = Long.numberOfTrailingZeros(targets);
+				targets &= targets - 1;
+				long captured = to == ep ? 1L << (to - forward) : 1L << to & opp;
+				if (!legal(i, us, king, occ, from, to, captured)) continue;
+				if ((lastRank & 1L << to) != 0) {
+					for (int promotion = 5; promotion >= 2; --promotion) {
+						out[n++] = from | to << 6 | promotion << 12;
+					}
+				} else {
+					out[n++] = from | to << 6;
+				}
+			}
+		}
+		for (int t = 1; t < 6; ++t) {
+			long bb = pieces[us + t][i];
+			while (bb != 0) {
+				int from = Long.numberOfTrailingZeros(bb);
+				bb &= bb - 1;
+				long targets = attacks(t+1, from, occ) & ~own;
+				while (targets != 0) {
+					int to = Long.numberOfTrailingZeros(targets);
+					targets &= targets - 1;
+					if (legal(i, us, t == 5 ? to : king, occ, from, to, 1L << to & opp)) out[n++] = from | to << 6;
+				}
+			}
+		}
+
+		// castling: king and rook home are implied by the rights, which add() takes canonical
+		int rights = castling[i] >> (us == 0 ? 0 : 2);
+		int home = us == 0 ? 4 : 60;
+		if ((rights & 3) != 0 && !attacked(home, them, occ, i, 0)) {
+			if ((rights & 1) != 0 && (occ & 3L << (home+1)) == 0 && !attacked(home+1, them, occ, i, 0)
+					&& !attacked(home+2, them, occ, i, 0)) {
+				out[n++] = home | (home+2) << 6;
+			}
+			if ((rights & 2) != 0 && (occ & 7L << (home-3)) == 0 && !attacked(home-1, them, occ, i, 0)
+					&& !attacked(home-2, them, occ, i, 0)) {
+				out[n++] = home | (home-2) << 6;
+			}
+		}
+		return n - start;
+	}
+
+	// whether the king, on kingSquare after the move, is safe once from has moved to to and captured is gone
+	boolean legal(int i, int us, int kingSquare, long occ, int from, int to, long captured) {
+		occ = (occ & ~(1L << from) & ~captured) | 1L << to;
+		return !attacked(kingSquare, 6 - us, occ, i, captured);
+	}
+
+	// whether square is attacked by the pieces from code them on, leaving out the captured ones
+	boolean attacked(int square, int them, long occ, int i, long captured) {
+		long pawns = pieces[them][i] & ~captured;
+		if ((PAWN_ATTACKS[them == 0 ? 1 : 0][square] & pawns) != 0) return true;
+		if ((KNIGHT[square] & pieces[them + 1][i] & ~captured) != 0) return true;
+		if ((KING[square] & pieces[them + 5][i]) != 0) return true;
+		long queens = pieces[them + 4][i];
+		if ((attacks(3, square, occ) & (pieces[them + 2][i] | queens) & ~captured) != 0) return true;
+		return (attacks(4, square, occ) & (pieces[them + 3][i] | queens) & ~captured) != 0;
+	}
+
+	// squares a piece of type 2-6 on square attacks
+	static long attacks(int type, int square, long occ) {
+		switch (type) {
+		case 2: return KNIGHT[square];
+		case 3: return slide(square, occ, BISHOP_DIRS);
+		case 4: return slide(square, occ, ROOK_DIRS);
+		case 5: return slide(square, occ, BISHOP_DIRS) | slide(square, occ, ROOK_DIRS);
+		default: return KING[square];
+		}
+	}
+
+	// along each direction up to and including the first piece; directions 0-2 and 7 run towards higher squares
+	static long slide(int square, long occ, int[] dirs) {
+		long bits = 0;
+		for (int d : dirs) {
+			long ray = Position.RAYS[square][d];
+			long blockers = ray & occ;
+			if (blockers != 0) {
+				int b = d <= 2 || d == 7 ? Long.numberOfTrailingZeros(blockers) : 63 - Long.numberOfLeadingZeros(blockers);
+				ray ^= Position.RAYS[b][d];
+			}
+			bits |= ray;
+		}
+		return bits;
+	}
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		List<Position> positions = new ArrayList<Position>();
+		Random random = new Random(1);
+		while (positions.size() < n) {
+			Position pos = new Position();
+			pos.setNew();
+			for (int ply = 0; ply < 150 && positions.size() < n; ++ply) {
+				List<Move> legal = pos.getLegalMoves();
+				if (legal.isEmpty()) break;
+				pos.move(legal.get(random.nextInt(legal.size())));
+				positions.add(new Position(pos));
+			}
+		}
+		PositionBatch batch = new PositionBatch(n);
+		for (Position pos : positions) {
+			batch.add(pos);
+		}
+
+		Moves moves = batch.moves();
+		int wrong = 0;
+		int differFromGetMoves = 0;
+		for (int i = 0; i < n; ++i) {
+			TreeSet<String> generated = new TreeSet<String>();
+			for (int j = moves.offsets[i]; j < moves.offsets[i+1]; ++j) {
+				generated.add(uci(moves.moves[j]));
+			}
+			TreeSet<String> expected = ReferenceMoves.legalMoves(positions.get(i));
+			if (!generated.equals(expected) || generated.size() != moves.offsets[i+1] - moves.offsets[i]) {
+				if (wrong++ < 5) System.out.println("differs from ReferenceMoves: " + positions.get(i).toFen());
+			}
+			if (positions.get(i).getMoves().size() != expected.size()) differFromGetMoves++;
+		}
+		System.out.println(String.format("%d positions, %d differ from ReferenceMoves (getMoves() differs in %d)", n,
+			wrong, differFromGetMoves));
+
+		for (int round = 0; round < 5; ++round) { // the first rounds warm up the JIT
+			long t0 = System.nanoTime();
+			long total = 0;
+			for (int i = 0; i < n; ++i) {
+				total += positions.get(i).getMoves().size();
+			}
+			long t1 = System.nanoTime();
+			int[] counts = batch.counts();
+			long t2 = System.nanoTime();
+			Moves m = batch.moves();
+			long t3 = System.nanoTime();
+			if (round == 4) {
+				System.out.println(String.format("getMoves() loop  %8.0f positions/s  (%d moves)", n * 1e9 / (t1-t0), total));
+				System.out.println(String.format("batch counts     %8.0f positions/s  (%d moves)", n * 1e9 / (t2-t1),
+					Arrays.stream(counts).asLongStream().sum()));
+				System.out.println(String.format("batch move lists %8.0f positions/s  (%d moves), %d threads",
+					n * 1e9 / (t3-t2), m.moves.length, Runtime.getRuntime().availableProcessors()));
+			}
+		}
+	}
+
+}
@@ -0,0 +1,468 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index from position to the games of a GameArchive that reach it. It is kept next to the archive as segment files
+ * <archive>.pos.0, .pos.1, ... Each segment covers a range of game numbers and holds
+ *
+ *   header    magic, version, first game, end game (ints), number of keys (long)
+ *   keys      16-byte records, key and offset of its postings, sorted by key; keys are Zobrist.canonical()
+ *             rather than Position.hash, so a position set up from FEN finds the games that played into it
+ *   postings  per key the numbers of the games reaching it, ascending, as varint deltas
+ *
+ * The key table is memory-mapped, so a lookup is a binary search on the mapping followed by a single read of the
+ * postings. Keys in more than one segment are concatenated in segment order, which keeps the result ascending.
+ *
+ * Building replays every game through Position on several threads. Each thread collects (key, game) pairs,
+ * sorts them and writes them to a run file whenever its buffer is full, and the runs are merged into the segment.
+ * Memory therefore stays bounded however large the archive gets. Games appended to the archive later are
+ * indexed into a new segment without touching the old ones.
+ *
+ * Usage: PositionIndex build <archive> [threads]
+ *        PositionIndex append <archive> [threads]   index games added to the archive since the last build
+ *        PositionIndex query <archive> [fen]        games reaching the position, the start position by default
+ */
+public class PositionIndex implements Closeable {
+
+	static final int MAGIC = 0x43484950; // "CHIP"
+	static final int VERSION = 1;
+	static final int HEADER = 24;
+	static final int RECORD_SIZE = 16;
+	static final int SEGMENT_SHIFT = 26; // 2^26 records = 1 GB per mapping, as in OpeningBook
+	static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	static final int PRINTED_GAMES = 20;
+
+	List<Segment> segments = new ArrayList<Segment>();
+
+	public PositionIndex(String archive) throws IOException {
+		for (int i = 0; Files.exists(segmentFile(archive, i)); ++i) {
+			segments.add(new Segment(segmentFile(archive, i)));
+		}
+	}
+
+	static Path segmentFile(String archive, int n) {
+		return Paths.get(archive + ".pos." + n);
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length >= 2 && (args[0].equals("build") || args[0].equals("append"))) {
+			int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			long start = System.nanoTime();
+			int from = 0;
+			int n = 0;
+			if (args[0].equals("append")) {
+				try (PositionIndex index = new PositionIndex(args[1])) {
+					from = index.indexedGames();
+					n = index.segments.size();
+				}
+			} else {
+				int i = 0;
+				while (Files.deleteIfExists(segmentFile(args[1], i))) {
+					i++;
+				}
+			}
+			int to;
+			try (GameArchive archive = new GameArchive(args[1])) {
+				to = archive.size();
+			}
+			if (from == to) {
+				System.out.println("No new games");
+				return;
+			}
+			long keys = build(args[1], from, to, threads, segmentFile(args[1], n));
+			System.out.println(String.format("games %d to %d: %d keys, %d bytes, %d ms", from, to, keys,
+				Files.size(segmentFile(args[1], n)), (System.nanoTime() - start) / 1000000));
+		} else if (args.length >= 2 && args[0].equals("query")) {
+			Position pos = new Position();
+			if (args.length > 2) pos.setFen(String.join(" ", Arrays.copyOfRange(args, 2, args.length)));
+			else pos.setNew();
+			try (PositionIndex index = new PositionIndex(args[1])) {
+				long start = System.nanoTime();
+				int[] games = index.find(pos);
+				long micros = (System.nanoTime() - start) / 1000;
+				StringBuilder sb = new StringBuilder();
+				for (int i = 0; i < Math.min(games.length, PRINTED_GAMES); ++i) {
+					sb.append(' ').append(games[i]);
+				}
+				if (games.length > PRINTED_GAMES) sb.append(" ...");
+				System.out.println(games.length + " games in " + micros + " us:" + sb);
+			}
+		} else {
+			System.out.println("Usage: PositionIndex build <archive> [threads]");
+			System.out.println("       PositionIndex append <archive> [threads]");
+			System.out.println("       PositionIndex query <archive> [fen]");
+		}
+	}
+
+	// games [0, indexedGames()) are in the index
+	public int indexedGames() {
+		return segments.isEmpty() ? 0 : segments.get(segments.size()-1).endGame;
+	}
+
+	public int[] find(Position pos) throws IOException {
+		return find(Zobrist.canonical(pos));
+	}
+
+	// numbers of the games reaching the position with this key (see Zobrist.canonical), ascending
+	public int[] find(long key) throws IOException {
+		int[] games = new int[0];
+		for (Segment s : segments) {
+			int[] more = s.find(key);
+			if (more.length == 0) continue;
+			int n = games.length;
+			games = Arrays.copyOf(games, n + more.length);
+			System.arraycopy(more, 0, games, n, more.length);
+		}
+		return games;
+	}
+
+	public void close() throws IOException {
+		for (Segment s : segments) {
+			s.channel.close();
+		}
+	}
+
+	/**
+	 * One segment file, with its key table mapped.
+	 */
+	static class Segment {
+
+		FileChannel channel;
+		MappedByteBuffer[] keys;
+		int firstGame;
+		int endGame;
+		long size; // keys
+		long postings; // file offset of the postings
+		long end;
+
+		Segment(Path file) throws IOException {
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			channel.read(header, 0);
+			if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) throw new IOException("Not a position index: " + file);
+			firstGame = header.getInt(8);
+			endGame = header.getInt(12);
+			size = header.getLong(16);
+			postings = HEADER + size * RECORD_SIZE;
+			end = channel.size();
+			keys = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+			for (int i = 0; i < keys.length; ++i) {
+				long start = ((long) i << SEGMENT_SHIFT) * RECORD_SIZE;
+				keys[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + start,
+					Math.min(size * RECORD_SIZE - start, (SEGMENT_MASK + 1) * RECORD_SIZE));
+			}
+		}
+
+		long key(long i) {
+			return keys[(int) (i >>> SEGMENT_SHIFT)].getLong((int) (i & SEGMENT_MASK) * RECORD_SIZE);
+		}
+
+		// where the postings of key i start, relative to the postings; i == size gives their end
+		long offset(long i) {
+			if (i == size) return end - postings;
+			return keys[(int) (i >>> SEGMENT_SHIFT)].getLong((int) (i & SEGMENT_MASK) * RECORD_SIZE + 8);
+		}
+
+		int[] find(long key) throws IOException {
+			long lo = 0;
+			long hi = size - 1;
+			while (lo <= hi) {
+				long mid = (lo + hi) >>> 1;
+				long k = key(mid);
+				if (k < key) lo = mid + 1;
+				else if (k > key) hi = mid - 1;
+				else return postings(offset(mid), offset(mid + 1));
+			}
+			return new int[0];
+		}
+
+		int[] postings(long from, long to) throws IOException {
+			ByteBuffer bytes = ByteBuffer.allocate((int) (to - from));
+			while (bytes.hasRemaining()) {
+				if (channel.read(bytes, postings + from + bytes.position()) < 0) throw new EOFException();
+			}
+			bytes.flip();
+			int[] games = new int[bytes.remaining()]; // at least a byte per game
+			int n = 0;
+			int game = 0;
+			while (bytes.hasRemaining()) {
+				game += GameArchive.readVarint(bytes);
+				games[n++] = game;
+			}
+			return Arrays.copyOf(games, n);
+		}
+
+	}
+
+	/**
+	 * Indexes games [from, to) of archive into file and returns the number of distinct keys. Threads take the
+	 * archive's blocks one at a time.
+	 */
+	static long build(String archive, int from, int to, int threads, Path file) throws IOException, InterruptedException {
+		Path tmp = Files.createTempDirectory(file.getParent() == null ? Paths.get(".") : file.getParent(), "index");
+		int[] firstGames;
+		try (GameArchive a = new GameArchive(archive)) {
+			firstGames = a.firstGames;
+		}
+		// 12 bytes per pair; leave most of the heap to the merge and the JVM
+		int runPairs = (int) Math.min(1 << 26, Runtime.getRuntime().maxMemory() / 4 / 12 / threads);
+		AtomicInteger nextBlock = new AtomicInteger();
+		AtomicInteger nextRun = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<List<Path>>> results = new ArrayList<Future<List<Path>>>();
+		for (int t = 0; t < threads; ++t) {
+			results.add(pool.submit(() -> {
+				Runs runs = new Runs(runPairs, tmp, nextRun);
+				try (GameArchive a = new GameArchive(archive)) {
+					for (int b = nextBlock.getAndIncrement(); b < firstGames.length - 1; b = nextBlock.getAndIncrement()) {
+						int first = Math.max(from, firstGames[b]);
+						int last = Math.min(to, firstGames[b+1]);
+						for (int g = first; g < last; ++g) {
+							runs.addGame(g, (g == first ? a.get(g) : a.next()).keys());
+						}
+					}
+				}
+				runs.spill();
+				return runs.files;
+			}));
+		}
+		pool.shutdown();
+		List<Path> files = new ArrayList<Path>();
+		try {
+			for (Future<List<Path>> f : results) {
+				files.addAll(f.get());
+			}
+			return merge(files, from, to, file, tmp);
+		} catch (ExecutionException e) {
+			throw new IOException("Index build failed", e.getCause());
+		} finally {
+			pool.shutdownNow();
+			for (Path p : files) {
+				Files.deleteIfExists(p);
+			}
+			Files.deleteIfExists(tmp.resolve("keys"));
+			Files.deleteIfExists(tmp.resolve("postings"));
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * The (key, game) pairs of one build thread, written out as sorted run files whenever the buffer fills up.
+	 */
+	static class Runs {
+
+		long[] keys;
+		int[] games;
+		int n;
+		Path dir;
+		AtomicInteger nextRun;
+		List<Path> files = new ArrayList<Path>();
+
+		Runs(int capacity, Path dir, AtomicInteger nextRun) {
+			keys = new long[capacity];
+			games = new int[capacity];
+			this.dir = dir;
+			this.nextRun = nextRun;
+		}
+
+		// a position reached more than once in a game is only listed once
+		void addGame(int game, long[] positions) throws IOException {
+			Arrays.sort(positions);
+			if (n + positions.length > keys.length) spill();
+			for (int i = 0; i < positions.length; ++i) {
+				if (i > 0 && positions[i] == positions[i-1]) continue;
+				keys[n] = positions[i];
+				games[n] = game;
+				n++;
+			}
+		}
+
+		void spill() throws IOException {
+			if (n == 0) return;
+			sort(keys, games, 0, n - 1);
+			Path file = dir.resolve("run" + nextRun.getAndIncrement());
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.toFile()), 1 << 16))) {
+				for (int i = 0; i < n; ++i) {
+					out.writeLong(keys[i]);
+					out.writeInt(games[i]);
+				}
+			}
+			files.add(file);
+			n = 0;
+		}
+
+	}
+
+	// quicksort of the pairs by key, then game
+	static void sort(long[] keys, int[] games, int lo, int hi) {
+		while (hi - lo > 16) {
+			int mid = (lo + hi) >>> 1;
+			long pk = keys[mid];
+			int pg = games[mid];
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (keys[i] < pk || (keys[i] == pk && games[i] < pg)) i++;
+				while (keys[j] > pk || (keys[j] == pk && games[j] > pg)) j--;
+				if (i <= j) {
+					long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+					int g = games[i]; games[i] = games[j]; games[j] = g;
+					i++;
+					j--;
+				}
+			}
+			// recurse into the smaller half so the stack stays shallow
+			if (j - lo < hi - i) {
+				sort(keys, games, lo, j);
+				lo = i;
+			} else {
+				sort(keys, games, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; ++i) {
+			long k = keys[i];
+			int g = games[i];
+			int j = i - 1;
+			while (j >= lo && (keys[j] > k || (keys[j] == k && games[j] > g))) {
+				keys[j+1] = keys[j];
+				games[j+1] = games[j];
+				j--;
+			}
+			keys[j+1] = k;
+			games[j+1] = g;
+		}
+	}
+
+	/**
+	 * One sorted run being merged.
+	 */
+	static class RunReader implements Comparable<RunReader> {
+
+		DataInputStream in;
+		long key;
+		int game;
+
+		RunReader(Path file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16));
+		}
+
+		// false at the end of the run, which is then closed
+		boolean advance() throws IOException {
+			try {
+				key = in.readLong();
+				game = in.readInt();
+				return true;
+			} catch (EOFException e) {
+				in.close();
+				return false;
+			}
+		}
+
+		public int compareTo(RunReader o) {
+			return key != o.key ? Long.compare(key, o.key) : Integer.compare(game, o.game);
+		}
+
+	}
+
+	// merges the runs into the key table and postings of a segment file; returns the number of keys
+	static long merge(List<Path> runs, int from, int to, Path file, Path tmp) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		for (Path p : runs) {
+			RunReader r = new RunReader(p);
+			if (r.advance()) queue.add(r);
+		}
+		Path keysFile = tmp.resolve("keys");
+		Path postingsFile = tmp.resolve("postings");
+		long keys = 0;
+		try (DataOutputStream keyOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(keysFile.toFile()), 1 << 16));
+				CountingOutputStream postings = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(postingsFile.toFile()), 1 << 16))) {
+			long key = 0;
+			int game = -1;
+			while (!queue.isEmpty()) {
+				RunReader r = queue.poll();
+				if (game < 0 || r.key != key) {
+					key = r.key;
+					keyOut.writeLong(key);
+					keyOut.writeLong(postings.count);
+					keys++;
+					game = 0;
+					postings.writeVarint(r.game);
+				} else if (r.game != game) {
+					postings.writeVarint(r.game - game);
+				}
+				game = r.game;
+				if (r.advance()) queue.add(r);
+			}
+		}
+
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			header.putInt(MAGIC).putInt(VERSION).putInt(from).putInt(to).putLong(keys).flip();
+			out.write(header);
+			for (Path part : new Path[] {keysFile, postingsFile}) {
+				try (FileChannel in = FileChannel.open(part, StandardOpenOption.READ)) {
+					long n = in.size();
+					for (long done = 0; done < n; ) {
+						done += in.transferTo(done, n - done, out);
+					}
+				}
+			}
+		}
+		return keys;
+	}
+
+	static class CountingOutputStream extends OutputStream {
+
+		OutputStream out;
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			this.out = out;
+		}
+
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		void writeVarint(int v) throws IOException {
+			while ((v & ~0x7F) != 0) {
+				write((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			write(v);
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,183 @@
+package model;
+
+import java.util.TreeSet;
+
+/**
+ * A deliberately simple legal move generator to check Position against. It works on a plain 64 square mailbox,
+ * tries every move on a copy of the board and drops it if it leaves the king attacked. Nothing is incremental
+ * and nothing is cached, so it is slow, but each rule is written out once and can be checked by eye.
+ *
+ * Squares hold signed types as in Piece (1 pawn to 6 king), positive for white. Moves come back as UCI names.
+ */
+public class ReferenceMoves {
+
+	static final int[][] KNIGHT = {{1,2},{2,1},{2,-1},{1,-2},{-1,-2},{-2,-1},{-2,1},{-1,2}};
+	static final int[][] KING = {{0,1},{1,1},{1,0},{1,-1},{0,-1},{-1,-1},{-1,0},{-1,1}};
+	static final int[][] ROOK = {{0,1},{1,0},{0,-1},{-1,0}};
+	static final int[][] BISHOP = {{1,1},{1,-1},{-1,-1},{-1,1}};
+
+	int[] board = new int[64];
+	boolean white;
+	int castling; // 1 white kingside, 2 white queenside, 4 black kingside, 8 black queenside
+	int enPassent;
+
+	// only the board, side to move, castling rights and en passent square are read from pos
+	public ReferenceMoves(Position pos) {
+		for (int i = 0; i < 64; ++i) {
+			if (pos.board[i] > -1) {
+				Piece p = pos.pieces[pos.board[i]];
+				board[i] = p.getColor() ? p.getType() : -p.getType();
+			}
+		}
+		white = pos.halfTurnNumber%2 == 1;
+		// a right is only usable with the king and the rook still on their squares
+		if (pos.getCastlingRights(0) && pos.getCastlingRights(1) && board[4] == 6 && board[7] == 4) castling |= 1;
+		if (pos.getCastlingRights(0) && pos.getCastlingRights(2) && board[4] == 6 && board[0] == 4) castling |= 2;
+		if (pos.getCastlingRights(3) && pos.getCastlingRights(4) && board[60] == -6 && board[63] == -4) castling |= 4;
+		if (pos.getCastlingRights(3) && pos.getCastlingRights(5) && board[60] == -6 && board[56] == -4) castling |= 8;
+		enPassent = pos.enPassent;
+	}
+
+	public static TreeSet<String> legalMoves(Position pos) {
+		return new ReferenceMoves(pos).legalMoves();
+	}
+
+	public TreeSet<String> legalMoves() {
+		TreeSet<String> moves = new TreeSet<String>();
+		int sign = white ? 1 : -1;
+		for (int from = 0; from < 64; ++from) {
+			int type = board[from] * sign;
+			if (type <= 0) continue;
+			int file = from%8;
+			int rank = from/8;
+			switch (type) {
+			case 1:
+				pawnMoves(from, moves);
+				break;
+			case 2:
+				steps(from, KNIGHT, false, moves);
+				break;
+			case 3:
+				steps(from, BISHOP, true, moves);
+				break;
+			case 4:
+				steps(from, ROOK, true, moves);
+				break;
+			case 5:
+				steps(from, BISHOP, true, moves);
+				steps(from, ROOK, true, moves);
+				break;
+			case 6:
+				steps(from, KING, false, moves);
+				if (file == 4 && rank == (white ? 0 : 7) && !attacked(board, from, !white)) {
+					if ((castling & (white ? 1 : 4)) != 0 && board[from+1] == 0 && board[from+2] == 0
+							&& !attacked(board, from+1, !white)) {
+						add(from, from+2, 0, moves);
+					}
+					if ((castling & (white ? 2 : 8)) != 0 && board[from-1] == 0 && board[from-2] == 0
+							&& board[from-3] == 0 && !attacked(board, from-1, !white)) {
+						add(from, from-2, 0, moves);
+					}
+				}
+				break;
+			}
+		}
+		return moves;
+	}
+
+	void pawnMoves(int from, TreeSet<String> moves) {
+		int sign = white ? 1 : -1;
+		int file = from%8;
+		int rank = from/8;
+		int ahead = from + 8*sign;
+		if (board[ahead] == 0) {
+			promotions(from, ahead, moves);
+			int start = white ? 1 : 6;
+			if (rank == start && board[ahead + 8*sign] == 0) add(from, ahead + 8*sign, 0, moves);
+		}
+		for (int df = -1; df <= 1; df += 2) {
+			if (file + df < 0 || file + df > 7) continue;
+			int to = ahead + df;
+			if (board[to] * sign < 0 || to == enPassent) promotions(from, to, moves);
+		}
+	}
+
+	void promotions(int from, int to, TreeSet<String> moves) {
+		if (to/8 == 0 || to/8 == 7) {
+			for (int type = 5; type >= 2; --type) {
+				add(from, to, type, moves);
+			}
+		} else {
+			add(from, to, 0, moves);
+		}
+	}
+
+	void steps(int from, int[][] deltas, boolean slide, TreeSet<String> moves) {
+		int sign = white ? 1 : -1;
+		for (int[] d : deltas) {
+			int file = from%8 + d[0];
+			int rank = from/8 + d[1];
+			while (file >= 0 && file < 8 && rank >= 0 && rank < 8) {
+				int to = rank*8 + file;
+				if (board[to] * sign > 0) break;
+				add(from, to, 0, moves);
+				if (board[to] != 0 || !slide) break;
+				file += d[0];
+				rank += d[1];
+			}
+		}
+	}
+
+	// adds the move if it does not leave the mover's king attacked; promotion is the type promoted to, or 0
+	void add(int from, int to, int promotion, TreeSet<String> moves) {
+		int[] b = board.clone();
+		int piece = b[from];
+		b[to] = promotion == 0 ? piece : (white ? promotion : -promotion);
+		b[from] = 0;
+		if (Math.abs(piece) == 1 && to == enPassent) b[to - (white ? 8 : -8)] = 0;
+		if (Math.abs(piece) == 6 && Math.abs(to - from) == 2) { // castling: the rook jumps over the king
+			int rook = to > from ? from+3 : from-4;
+			b[(from + to)/2] = b[rook];
+			b[rook] = 0;
+		}
+		int king = -1;
+		for (int i = 0; i < 64; ++i) {
+			if (b[i] == (white ? 6 : -6)) king = i;
+		}
+		if (attacked(b, king, !white)) return;
+		String s = Position.squareName(from) + Position.squareName(to);
+		if (promotion != 0) s += " pnbrqk".charAt(promotion);
+		moves.add(s);
+	}
+
+	// whether square is attacked by a piece of the given color
+	static boolean attacked(int[] b, int square, boolean byWhite) {
+		int sign = byWhite ? 1 : -1;
+		int file = square%8;
+		int rank = square/8;
+		int pawnRank = rank - sign; // attacking pawns stand one rank behind, seen from their side
+		for (int df = -1; df <= 1; df += 2) {
+			if (pawnRank >= 0 && pawnRank < 8 && file+df >= 0 && file+df < 8 && b[pawnRank*8 + file+df] == sign) return true;
+		}
+		if (hits(b, file, rank, KNIGHT, false, sign, 2, 2)) return true;
+		if (hits(b, file, rank, KING, false, sign, 6, 6)) return true;
+		if (hits(b, file, rank, BISHOP, true, sign, 3, 5)) return true;
+		return hits(b, file, rank, ROOK, true, sign, 4, 5);
+	}
+
+	static boolean hits(int[] b, int file, int rank, int[][] deltas, boolean slide, int sign, int type1, int type2) {
+		for (int[] d : deltas) {
+			int f = file + d[0];
+			int r = rank + d[1];
+			while (f >= 0 && f < 8 && r >= 0 && r < 8) {
+				int p = b[r*8 + f] * sign;
+				if (p == type1 || p == type2) return true;
+				if (p != 0 || !slide) break;
+				f += d[0];
+				r += d[1];
+			}
+		}
+		return false;
+	}
+
+}
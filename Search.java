@@ -0,0 +1,515 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Alpha-beta search over Position. There is no unmake yet, so children are searched on copies made with the
+ * Position copy constructor ("copy-make"); the parent is never modified.
+ *
+ * Pruning and reductions, each of which can be switched off for A/B testing:
+ *   null move  - let the opponent move twice; if we are still above beta the node is very likely a cutoff
+ *   LMR        - late, quiet moves in the ordered list are searched shallower first and re-searched if they
+ *                turn out to be better than expected
+ *   futility   - at the last two plies, quiet moves are skipped when the static evaluation plus a margin
+ *                cannot reach alpha
+ *   razoring   - at the last two plies, nodes far below alpha drop straight into quiescence
+ *
+ * With endgame tables set, positions they cover are scored from the tables at every node, and at the root the
+ * table move is played without searching.
+ *
+ * Moves after the first are searched with a null window (principal variation search), so most nodes are
+ * non-PV nodes where the pruning above is allowed.
+ *
+ * With a transposition table set, every alphaBeta node stores its result and best move, and later visits take
+ * the move as their first move and cut off on a deep enough bound outside PV nodes.
+ *
+ * With multiPv above 1 each iteration searches the root again once per line, leaving out the moves of the lines
+ * already found, so pass k finds the k-th best move with an exact score. The later passes mostly revisit
+ * positions the first one stored in the transposition table and cost far less than a search of their own.
+ * getLines() has the lines of the last completed iteration, best first, with principal variations read back
+ * from the table.
+ *
+ * A search ends at its depth, node or time limit, or when another thread calls stop(). The stop flag is read at
+ * every node, so the search unwinds within microseconds; the result is that of the last completed iteration.
+ * A search started without a time limit, such as pondering on the opponent's time, can be given one later with
+ * ponderhit().
+ *
+ * The move ordering history and the transposition table are kept from one search to the next, so the search
+ * for the next move of a game starts from what the previous ones learned. Call newGame() between games.
+ *
+ * One Search belongs to one thread: it owns its MoveOrdering and SearchStats. Only stop() may be called from
+ * other threads.
+ */
+public class Search {
+
+	static final int INFINITY = 1000000;
+	static final int MATE = 100000;
+	static final int MAX_PLY = MoveOrdering.MAX_PLY;
+
+	static final int NULL_MOVE_REDUCTION = 2;
+	static final int[] FUTILITY_MARGINS = {0, 200, 500};
+	static final int[] RAZOR_MARGINS = {0, 300, 550};
+
+	public boolean useNullMove = true;
+	public boolean useLmr = true;
+	public boolean useFutility = true;
+	public boolean useRazoring = true;
+	public int multiPv = 1;
+	boolean agesTable = true; // false when the table's owner ages it, as for a table other searches use meanwhile
+	public List<Move> searchMoves; // the root moves to consider, as "go searchmoves" gives them; null = all
+
+	// notified after every completed iteration of iterative deepening
+	public interface Listener {
+		void iterationComplete(int depth, int score, long nodes, long nanos, Move best);
+	}
+
+	MoveOrdering ordering;
+	SearchStats stats;
+	Evaluation eval;
+	Listener listener;
+	Tablebase tablebase; // null = none
+	TranspositionTable table; // null = none
+
+	Move bestMove;
+	int bestScore;
+	int completedDepth;
+	List<Line> lines;
+
+	volatile boolean stopped;
+	long nodeLimit;
+	volatile long deadline; // System.nanoTime(), or Long.MAX_VALUE
+	volatile boolean ponderhit; // set by ponderhit(), cleared by the caller before a search like stopped
+	volatile long ponderDeadline; // the deadline ponderhit() set
+
+	public Search() {
+		this(null);
+	}
+
+	public Search(EvalCache cache) {
+		this(cache, null);
+	}
+
+	// cache and table may be shared with other Search instances, or null
+	public Search(EvalCache cache, TranspositionTable table) {
+		ordering = new MoveOrdering();
+		stats = new SearchStats();
+		eval = new Evaluation(cache);
+		this.table = table;
+		lines = new ArrayList<Line>();
+	}
+
+	public SearchStats getStats() {
+		return stats;
+	}
+
+	public Move getBestMove() {
+		return bestMove;
+	}
+
+	public int getBestScore() {
+		return bestScore;
+	}
+
+	public int getCompletedDepth() {
+		return completedDepth;
+	}
+
+	// best first; empty before the first iteration completes or when there are no legal moves
+	public List<Line> getLines() {
+		return lines;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	// may be called from any thread
+	public void stop() {
+		stopped = true;
+	}
+
+	// may be called from any thread; the running search gets maxMillis from now. A ponderhit that arrives before
+	// iterate() has started is kept: iterate() writes its own deadline before it reads the flag, and the flag is
+	// set before the deadline here, so whichever runs last leaves this deadline in place.
+	public void ponderhit(long maxMillis) {
+		long d = maxMillis == Long.MAX_VALUE ? Long.MAX_VALUE : System.nanoTime() + maxMillis * 1000000;
+		ponderDeadline = d;
+		ponderhit = true;
+		deadline = d;
+	}
+
+	// forgets the move ordering history; a shared table has to be cleared by its owner
+	public void newGame() {
+		ordering.clear();
+	}
+
+	// iterative deepening to a fixed depth; returns null if there are no legal moves
+	public Move search(Position pos, int maxDepth) {
+		return search(pos, maxDepth, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	// returns null if there are no legal moves
+	public Move search(Position pos, int maxDepth, long maxNodes, long maxMillis) {
+		stopped = false;
+		ponderhit = false;
+		return iterate(pos, maxDepth, maxNodes, maxMillis);
+	}
+
+	// as search(), but a stop() or ponderhit() that arrived before the call is honoured; the caller clears stopped
+	// and ponderhit beforehand
+	Move iterate(Position pos, int maxDepth, long maxNodes, long maxMillis) {
+		long start = System.nanoTime();
+		nodeLimit = maxNodes;
+		deadline = maxMillis == Long.MAX_VALUE ? Long.MAX_VALUE : start + maxMillis * 1000000;
+		if (ponderhit) deadline = ponderDeadline;
+		stats.clear();
+		ordering.newSearch();
+		if (table != null && agesTable) table.newSearch();
+		bestMove = null;
+		bestScore = 0;
+		completedDepth = 0;
+		lines = new ArrayList<Line>();
+		for (int depth = 1; depth <= Math.min(maxDepth, MAX_PLY-1); ++depth) {
+			EngineEvents.SearchIteration event = new EngineEvents.SearchIteration();
+			boolean recording = event.isEnabled() && eval.cache != null;
+			long hits = recording ? eval.cache.getHits() : 0;
+			long misses = recording ? eval.cache.getMisses() : 0;
+			boolean recordingTable = event.isEnabled() && table != null;
+			long tableHits = recordingTable ? table.getHits() : 0;
+			long tableMisses = recordingTable ? table.getMisses() : 0;
+			event.begin();
+			searchRoot(pos, depth);
+			if (stopped) break;
+			completedDepth = depth;
+			if (event.shouldCommit()) {
+				long nanos = System.nanoTime() - start;
+				event.depth = depth;
+				event.score = bestScore;
+				event.nodes = stats.nodes;
+				event.nps = stats.nodes * 1000000000L / Math.max(1, nanos);
+				event.bestMove = bestMove == null ? null : bestMove.getUciName();
+				if (recording) {
+					hits = eval.cache.getHits() - hits;
+					misses = eval.cache.getMisses() - misses;
+					event.evalCacheHitRate = hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+				}
+				if (recordingTable) {
+					tableHits = table.getHits() - tableHits;
+					tableMisses = table.getMisses() - tableMisses;
+					event.transpositionTableHitRate = tableHits + tableMisses == 0 ? 0
+						: (double) tableHits / (tableHits + tableMisses);
+				}
+				event.commit();
+			}
+			if (listener != null) {
+				listener.iterationComplete(depth, bestScore, stats.nodes, System.nanoTime() - start, bestMove);
+			}
+			if (bestMove == null || Math.abs(bestScore) > MATE - MAX_PLY) break;
+		}
+		return bestMove;
+	}
+
+	// called at every node; the clock is only read every 256 nodes
+	boolean outOfTime() {
+		if (stopped) return true;
+		if (stats.nodes >= nodeLimit || ((stats.nodes & 255) == 0 && System.nanoTime() > deadline)) {
+			stopped = true;
+		}
+		return stopped;
+	}
+
+	void searchRoot(Position pos, int depth) {
+		List<Move> moves = pos.getMoves();
+		if (searchMoves != null) moves = restrict(moves, searchMoves);
+		if (moves.isEmpty()) {
+			bestMove = null;
+			bestScore = pos.nchecks > 0 ? -MATE : 0;
+			lines = new ArrayList<Line>();
+			return;
+		}
+		if (tablebase != null && searchMoves == null) {
+			int v = tablebase.probe(pos);
+			Move m = v == Tablebase.NONE ? null : tablebase.bestMove(pos, pos.getLegalMoves());
+			if (m != null) {
+				bestMove = m;
+				bestScore = Tablebase.score(v, 0);
+				lines = new ArrayList<Line>();
+				lines.add(new Line(m, bestScore, pv(pos, m, 1)));
+				return;
+			}
+		}
+		int n = Math.min(moves.size(), MoveOrdering.MAX_MOVES);
+		List<Line> found = new ArrayList<Line>();
+		for (int k = 0; k < Math.min(multiPv, n); ++k) {
+			// the previous iteration's move for this line goes first, or at depth 1 the table's move
+			int hashMove = k < lines.size() ? lines.get(k).move.pack()
+				: k == 0 && table != null ? TranspositionTable.move(table.probe(pos.hash)) : 0;
+			int[] scores = ordering.scoreMoves(pos, moves, 0, null, hashMove);
+			for (int i = 0; i < n; ++i) {
+				if (contains(found, moves.get(i))) scores[i] = Integer.MIN_VALUE; // sorted behind all the others
+			}
+			int alpha = -INFINITY;
+			Move best = null;
+			for (int i = 0; i < n - k; ++i) {
+				Move m = ordering.next(moves, scores, i);
+				Position child = new Position(pos);
+				child.move(m);
+				int score;
+				if (i == 0) {
+					score = -alphaBeta(child, depth-1, -INFINITY, -alpha, 1, m, true);
+				} else {
+					score = -alphaBeta(child, depth-1, -alpha-1, -alpha, 1, m, true);
+					if (score > alpha) {
+						score = -alphaBeta(child, depth-1, -INFINITY, -alpha, 1, m, true);
+					}
+				}
+				if (stopped) {
+					// an unfinished iteration only counts if there was nothing to fall back on
+					if (bestMove == null) bestMove = k > 0 ? found.get(0).move : best == null ? m : best;
+					return;
+				}
+				if (score > alpha) {
+					alpha = score;
+					best = m;
+				}
+			}
+			found.add(new Line(best, alpha, null));
+		}
+		// a later pass can come out above an earlier one when the search is not quite consistent
+		found.sort((a, b) -> b.score - a.score);
+		// only the best line is the root's exact result; the later passes each searched without the better moves
+		Line first = found.get(0);
+		if (table != null) table.store(pos.hash, first.move.pack(), depth, TranspositionTable.EXACT, first.score, 0);
+		for (int k = 0; k < found.size(); ++k) {
+			Line l = found.get(k);
+			found.set(k, new Line(l.move, l.score, pv(pos, l.move, depth)));
+		}
+		lines = found;
+		bestMove = found.get(0).move;
+		bestScore = found.get(0).score;
+	}
+
+	// the moves that are also in allowed
+	static List<Move> restrict(List<Move> moves, List<Move> allowed) {
+		List<Move> kept = new ArrayList<Move>(allowed.size());
+		for (int i = 0; i < moves.size(); ++i) {
+			if (OpeningBook.find(allowed, moves.get(i).pack()) != null) kept.add(moves.get(i));
+		}
+		return kept;
+	}
+
+	static boolean contains(List<Line> lines, Move m) {
+		for (int i = 0; i < lines.size(); ++i) {
+			if (lines.get(i).move.pack() == m.pack()) return true;
+		}
+		return false;
+	}
+
+	// first and then the best moves stored in the table, as long as they are legal, at most length moves
+	List<Move> pv(Position pos, Move first, int length) {
+		List<Move> pv = new ArrayList<Move>();
+		pv.add(first);
+		if (table == null) return pv;
+		Position p = new Position(pos);
+		p.move(first);
+		while (pv.size() < length) {
+			long data = table.probe(p.hash);
+			if (data == TranspositionTable.MISS || TranspositionTable.move(data) == 0) break;
+			Move m = OpeningBook.find(p.getLegalMoves(), TranspositionTable.move(data));
+			if (m == null) break;
+			pv.add(m);
+			p.move(m);
+		}
+		return pv;
+	}
+
+	int alphaBeta(Position pos, int depth, int alpha, int beta, int ply, Move previous, boolean allowNull) {
+
+		if (depth <= 0) return quiesce(pos, alpha, beta, ply);
+
+		stats.nodes++;
+		if (outOfTime()) return 0;
+		if (ply >= MAX_PLY-1) return eval.evaluate(pos);
+		if (tablebase != null) {
+			int v = tablebase.probe(pos);
+			if (v != Tablebase.NONE) return Tablebase.score(v, ply);
+		}
+
+		boolean turn = pos.halfTurnNumber%2 == 1;
+		boolean inCheck = pos.nchecks > 0;
+		boolean pvNode = beta - alpha > 1;
+
+		int hashMove = 0;
+		if (table != null) {
+			long data = table.probe(pos.hash);
+			if (data != TranspositionTable.MISS) {
+				hashMove = TranspositionTable.move(data);
+				// PV nodes are searched anyway, so the principal variation comes from a search and not the table
+				if (!pvNode && TranspositionTable.depth(data) >= depth) {
+					int score = TranspositionTable.score(data, ply);
+					int bound = TranspositionTable.bound(data);
+					if (bound == TranspositionTable.EXACT || (bound == TranspositionTable.LOWER && score >= beta)
+							|| (bound == TranspositionTable.UPPER && score <= alpha)) {
+						return score;
+					}
+				}
+			}
+		}
+
+		int staticEval = inCheck ? -INFINITY : eval.evaluate(pos);
+
+		// razoring
+		if (useRazoring && !pvNode && !inCheck && depth <= 2 && staticEval + RAZOR_MARGINS[depth] < alpha) {
+			int score = quiesce(pos, alpha, beta, ply);
+			if (score < alpha) return score;
+		}
+
+		// null move
+		if (useNullMove && allowNull && !pvNode && !inCheck && depth >= 3 && staticEval >= beta
+				&& eval.hasNonPawnMaterial(pos, turn)) {
+			Position child = new Position(pos);
+			child.pass();
+			int score = -alphaBeta(child, depth-1-NULL_MOVE_REDUCTION, -beta, -beta+1, ply+1, null, false);
+			if (stopped) return 0;
+			if (score >= beta) return beta;
+		}
+
+		List<Move> moves = pos.getMoves();
+		if (moves.isEmpty()) {
+			return inCheck ? -MATE + ply : 0;
+		}
+		if (capturesKing(moves)) return MATE - ply;
+
+		boolean futile = useFutility && !pvNode && !inCheck && depth <= 2
+			&& staticEval + FUTILITY_MARGINS[depth] <= alpha;
+
+		ordering.clearKillers(ply+1);
+		int[] scores = ordering.scoreMoves(pos, moves, ply, previous, hashMove);
+		int n = Math.min(moves.size(), MoveOrdering.MAX_MOVES);
+		int originalAlpha = alpha;
+		int best = -INFINITY;
+		Move bestHere = null;
+		int searched = 0;
+		for (int i = 0; i < n; ++i) {
+			Move m = ordering.next(moves, scores, i);
+			boolean quiet = MoveOrdering.isQuiet(m);
+
+			if (futile && quiet && searched > 0) continue;
+
+			Position child = new Position(pos);
+			child.move(m);
+			boolean givesCheck = child.nchecks > 0;
+
+			// principal variation search: the first move gets the full window, later ones a null window
+			// (reduced if LMR applies) and are only re-searched if they beat alpha
+			int score;
+			if (searched == 0) {
+				score = -alphaBeta(child, depth-1, -beta, -alpha, ply+1, m, true);
+			} else {
+				int reduction = 0;
+				if (useLmr && quiet && !inCheck && !givesCheck && depth >= 3 && i >= 3) {
+					reduction = i >= 6 ? 2 : 1;
+				}
+				score = -alphaBeta(child, depth-1-reduction, -alpha-1, -alpha, ply+1, m, true);
+				if (score > alpha && reduction > 0) {
+					score = -alphaBeta(child, depth-1, -alpha-1, -alpha, ply+1, m, true);
+				}
+				if (score > alpha && score < beta) {
+					score = -alphaBeta(child, depth-1, -beta, -alpha, ply+1, m, true);
+				}
+			}
+			searched++;
+			if (stopped) return 0;
+
+			if (score > best) {
+				best = score;
+				bestHere = m;
+			}
+			if (score > alpha) alpha = score;
+			if (alpha >= beta) {
+				stats.recordCutoff(i);
+				ordering.recordCutoff(pos, m, ply, depth, previous);
+				break;
+			}
+		}
+		int result = searched == 0 ? alpha : best;
+		if (table != null) {
+			int bound = result >= beta ? TranspositionTable.LOWER
+				: result > originalAlpha ? TranspositionTable.EXACT : TranspositionTable.UPPER;
+			// after a fail low no move is known to be best; store() then keeps the one the entry had
+			int move = bound == TranspositionTable.UPPER || bestHere == null ? 0 : bestHere.pack();
+			table.store(pos.hash, move, depth, bound, result, ply);
+		}
+		return result;
+	}
+
+	// the move that led here was illegal. Should not happen, but the incremental move generation still has
+	// gaps, and this keeps a king capture from corrupting the search.
+	static boolean capturesKing(List<Move> moves) {
+		for (int i = 0; i < moves.size(); ++i) {
+			int victim = moves.get(i).endPieceIndex;
+			if (victim == 0 || victim == 16) return true;
+		}
+		return false;
+	}
+
+	int quiesce(Position pos, int alpha, int beta, int ply) {
+
+		stats.nodes++;
+		if (outOfTime()) return 0;
+		if (ply >= MAX_PLY-1) return eval.evaluate(pos);
+
+		boolean inCheck = pos.nchecks > 0;
+		if (!inCheck) {
+			int standPat = eval.evaluate(pos);
+			if (standPat >= beta) return standPat;
+			if (standPat > alpha) alpha = standPat;
+		}
+
+		List<Move> moves = pos.getMoves();
+		if (moves.isEmpty()) {
+			return inCheck ? -MATE + ply : 0;
+		}
+		if (capturesKing(moves)) return MATE - ply;
+
+		int[] scores = ordering.scoreMoves(pos, moves, ply, null, 0);
+		int n = Math.min(moves.size(), MoveOrdering.MAX_MOVES);
+		for (int i = 0; i < n; ++i) {
+			Move m = ordering.next(moves, scores, i);
+			// in check every evasion is searched, otherwise only captures and queen promotions
+			if (!inCheck && MoveOrdering.isQuiet(m)) break; // captures are ordered first
+			if (!inCheck && m.special > 4 && m.special < 8) continue;
+			Position child = new Position(pos);
+			child.move(m);
+			int score = -quiesce(child, -beta, -alpha, ply+1);
+			if (stopped) return 0;
+			if (score > alpha) {
+				alpha = score;
+				if (alpha >= beta) {
+					stats.recordCutoff(i);
+					break;
+				}
+			}
+		}
+		return alpha;
+	}
+
+	/**
+	 * A root move with its score and principal variation, which starts with the move.
+	 */
+	public static class Line {
+
+		public final Move move;
+		public final int score;
+		public final List<Move> pv;
+
+		Line(Move move, int score, List<Move> pv) {
+			this.move = move;
+			this.score = score;
+			this.pv = pv;
+		}
+
+	}
+
+}
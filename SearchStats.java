@@ -0,0 +1,47 @@
+package model;
+
+/**
+ * Counters collected by a single search thread. Kept as plain longs since each thread owns its own instance;
+ * merge them with add() when reporting across threads.
+ *
+ * The ordering quality metric is the share of beta cutoffs that happened on the first move searched. A well
+ * ordered search should see 90% or more here.
+ */
+public class SearchStats {
+
+	long nodes;
+	long betaCutoffs;
+	long firstMoveCutoffs;
+
+	public void clear() {
+		nodes = 0;
+		betaCutoffs = 0;
+		firstMoveCutoffs = 0;
+	}
+
+	// moveNumber is the 0-based position in the ordered list of the move that caused the cutoff
+	public void recordCutoff(int moveNumber) {
+		betaCutoffs++;
+		if (moveNumber == 0) firstMoveCutoffs++;
+	}
+
+	public void add(SearchStats other) {
+		nodes += other.nodes;
+		betaCutoffs += other.betaCutoffs;
+		firstMoveCutoffs += other.firstMoveCutoffs;
+	}
+
+	public long getNodes() {
+		return nodes;
+	}
+
+	public double getFirstMoveCutoffRate() {
+		return betaCutoffs == 0 ? 0 : (100.0 * firstMoveCutoffs) / betaCutoffs;
+	}
+
+	public String toString() {
+		return "nodes " + nodes + " cutoffs " + betaCutoffs + " first move cutoffs "
+			+ String.format("%.1f", getFirstMoveCutoffRate()) + "%";
+	}
+
+}
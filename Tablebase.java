@@ -0,0 +1,588 @@
+package model;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/**
+ * Distance-to-mate tables for endings of up to four pieces, kings included, generated locally by retrograde
+ * analysis.
+ *
+ * A table covers one material signature such as "KQvK" (white's pieces, then black's) and holds one byte per
+ * (side to move, square of each piece): 0 for a draw, n > 0 when the side to move mates in n plies, -(n+1) when
+ * it is mated in n plies, and ILLEGAL where the side not to move is in check or pieces overlap. Files are these
+ * bytes, nothing else, in index order, and are memory-mapped when probed. Identical pieces and board symmetries
+ * are not folded out, so a four-piece table is 2 * 64^4 bytes = 32 MB; simple to index, and still mapped rather
+ * than read.
+ *
+ * Generation first visits every index with Position's own move generator. That finds mates and stalemates,
+ * counts each position's moves that stay within the table, and looks up captures and promotions in the smaller
+ * tables they lead to, which are generated first. Then it works outwards level by level: positions lost in n
+ * plies make their predecessors wins in n+1, and a position whose every move reaches a win for the opponent is
+ * lost. Predecessors come from an un-move generator, which only has to retract non-captures, since captures and
+ * promotions change the material and so lead out of the table. Both passes run in parallel over slices of the
+ * index; the move counters are decremented atomically.
+ *
+ * Tables ignore castling and en passent, so probe() only answers for positions with neither.
+ *
+ * Usage: Tablebase <directory> <signature...>, e.g. Tablebase tb KQvK KRvK KPvK KBNvK
+ */
+public class Tablebase {
+
+	public static final int MAX_PIECES = 4;
+	public static final int NONE = Integer.MIN_VALUE; // probe() result when no table covers the position
+
+	static final byte ILLEGAL = -128;
+	static final byte UNKNOWN = 127; // only during generation; unresolved positions end up draws
+	static final byte CANNOT_LOSE = -1; // in lossAt: some move draws or wins
+	static final int MAX_DTM = 125;
+
+	static final String LETTERS = " PNBRQK"; // by Piece type
+	static final int KNIGHT = 1 << 3; // one knight in a side's signature
+	static final int BISHOP = 1 << 6;
+	static final int SLICE = 1 << 14;
+
+	static final int[][] KING_STEPS = {{0,1},{1,1},{1,0},{1,-1},{0,-1},{-1,-1},{-1,0},{-1,1}};
+	static final int[][] KNIGHT_STEPS = {{1,2},{2,1},{2,-1},{1,-2},{-1,-2},{-2,-1},{-2,1},{-1,2}};
+
+	Path directory;
+	boolean generate;
+	ConcurrentHashMap<Integer, Table> tables;
+
+	// generate = false only probes tables already in directory
+	public Tablebase(String directory, boolean generate) {
+		this.directory = Paths.get(directory);
+		this.generate = generate;
+		this.tables = new ConcurrentHashMap<Integer, Table>();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: Tablebase <directory> <signature...>");
+			return;
+		}
+		Files.createDirectories(Paths.get(args[0]));
+		Tablebase tb = new Tablebase(args[0], true);
+		for (int i = 1; i < args.length; ++i) {
+			tb.table(parseSignature(args[i]));
+		}
+	}
+
+	/**
+	 * Value of pos for the side to move, as stored in the tables (0 draw, n mate in n plies, -(n+1) mated in n
+	 * plies), or NONE. Endings without mating material are draws without a table.
+	 */
+	public int probe(Position pos) {
+		if (pos.castlingRights != 0 || pos.enPassent >= 0) return NONE;
+		if (pos.nWhitePieces + pos.nBlackPieces > MAX_PIECES) return NONE;
+		int white = signature(pos, true);
+		int black = signature(pos, false);
+		if (insufficient(white, black)) return 0;
+		long time = Metrics.ENABLED ? Metrics.start(Metrics.TABLEBASE) : 0; // only probes that reach a table
+		int code = white | (black << 15);
+		Table t = lookup(code);
+		boolean mirrored = false;
+		if (t == null) {
+			t = lookup(mirror(code));
+			mirrored = true;
+		}
+		int v = t == null ? ILLEGAL : t.get(t.index(pos, mirrored));
+		if (Metrics.ENABLED) Metrics.end(Metrics.TABLEBASE, time);
+		return v == ILLEGAL ? NONE : v;
+	}
+
+	// a search score for a probe() value at the given ply
+	public static int score(int value, int ply) {
+		if (value > 0) return Search.MATE - ply - value;
+		if (value < 0) return -(Search.MATE - ply - (-value - 1));
+		return 0;
+	}
+
+	/**
+	 * The move that keeps the best table value: the fastest mate when winning, a draw when drawing, the longest
+	 * resistance when losing. Null if any reply is outside the tables.
+	 */
+	public Move bestMove(Position pos, List<Move> legal) {
+		Move best = null;
+		int bestScore = -Search.INFINITY;
+		for (int i = 0; i < legal.size(); ++i) {
+			Position child = new Position(pos);
+			child.move(legal.get(i));
+			int v = probe(child);
+			if (v == NONE) return null;
+			int score = -score(v, 1);
+			if (score > bestScore) {
+				bestScore = score;
+				best = legal.get(i);
+			}
+		}
+		return best;
+	}
+
+	// piece counts of one side as 3 bits per type (pawn to queen); the king is implied
+	static int signature(Position pos, boolean white) {
+		int[] squares = white ? pos.wpI : pos.bpI;
+		int n = white ? pos.nWhitePieces : pos.nBlackPieces;
+		int sig = 0;
+		for (int i = 1; i < n; ++i) {
+			sig += 1 << (3 * (pos.pieces[pos.board[squares[i]]].getType() - 1));
+		}
+		return sig;
+	}
+
+	// bare kings, or a single knight or bishop against a bare king
+	static boolean insufficient(int white, int black) {
+		if (white != 0 && black != 0) return false;
+		int other = white | black;
+		return other == 0 || other == KNIGHT || other == BISHOP;
+	}
+
+	static int mirror(int code) {
+		return (code >>> 15) | ((code & 0x7FFF) << 15);
+	}
+
+	// "KBNvK" -> white signature | black signature << 15
+	static int parseSignature(String s) {
+		String[] sides = s.toUpperCase().split("V");
+		if (sides.length != 2 || !sides[0].startsWith("K") || !sides[1].startsWith("K")) {
+			throw new IllegalArgumentException("Invalid signature: " + s);
+		}
+		int code = 0;
+		for (int c = 0; c < 2; ++c) {
+			for (int i = 1; i < sides[c].length(); ++i) {
+				int type = LETTERS.indexOf(sides[c].charAt(i));
+				if (type < 1 || type > 5) throw new IllegalArgumentException("Invalid signature: " + s);
+				code += 1 << (3 * (type - 1) + 15 * c);
+			}
+		}
+		if (pieceCount(code) > MAX_PIECES) {
+			throw new IllegalArgumentException("More than " + MAX_PIECES + " pieces: " + s);
+		}
+		return code;
+	}
+
+	static int pieceCount(int code) {
+		int n = 2;
+		for (int i = 0; i < 10; ++i) {
+			n += (code >>> (3 * i)) & 7;
+		}
+		return n;
+	}
+
+	static String name(int code) {
+		StringBuilder sb = new StringBuilder();
+		for (int c = 0; c < 2; ++c) {
+			sb.append(c == 0 ? "K" : "vK");
+			for (int type = 5; type >= 1; --type) {
+				for (int k = (code >>> (3 * (type - 1) + 15 * c)) & 7; k > 0; --k) {
+					sb.append(LETTERS.charAt(type));
+				}
+			}
+		}
+		return sb.toString();
+	}
+
+	// the table for code from memory or disk, without generating; null if there is none
+	Table lookup(int code) {
+		Table t = tables.computeIfAbsent(code, c -> {
+			Table loaded = new Table(c);
+			Path file = directory.resolve(name(c) + ".tb");
+			try {
+				if (Files.exists(file)) loaded.load(file);
+				else loaded.size = 0; // remembered as missing
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return loaded;
+		});
+		return t.size == 0 ? null : t;
+	}
+
+	// the table for code or for its colour-reversed signature, generated with its dependencies if neither exists
+	synchronized Table table(int code) {
+		Table t = lookup(code);
+		if (t == null) t = lookup(mirror(code));
+		if (t != null || !generate) return t;
+		t = new Table(code);
+		new Generator(this, t).run();
+		try {
+			t.save(directory.resolve(name(code) + ".tb"));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		tables.put(code, t);
+		return t;
+	}
+
+	/**
+	 * One material signature. Pieces are ordered white king, white pieces queen to pawn, black king, black pieces;
+	 * index = side to move (0 white) * 64^n + the pieces' squares as base-64 digits, the first piece the most
+	 * significant.
+	 */
+	static class Table {
+
+		int code;
+		int[] encodings; // Piece encodings (type << 1 | color) in index order
+		int blackKing; // its position in encodings
+		int size;
+		ByteBuffer data;
+
+		Table(int code) {
+			this.code = code;
+			int n = pieceCount(code);
+			encodings = new int[n];
+			int k = 0;
+			for (int c = 0; c < 2; ++c) {
+				int color = c == 0 ? 1 : 0;
+				if (c == 1) blackKing = k;
+				encodings[k++] = (6 << 1) | color;
+				for (int type = 5; type >= 1; --type) {
+					for (int j = (code >>> (3 * (type - 1) + 15 * c)) & 7; j > 0; --j) {
+						encodings[k++] = (type << 1) | color;
+					}
+				}
+			}
+			size = 2 << (6 * n);
+		}
+
+		int get(int index) {
+			return data.get(index);
+		}
+
+		// mirrored: the position has the colours of this table reversed, so flip ranks, colours and side to move
+		int index(Position pos, boolean mirrored) {
+			boolean whiteToMove = (pos.halfTurnNumber%2 == 1) != mirrored;
+			long used = 0;
+			int index = 0;
+			for (int i = 0; i < encodings.length; ++i) {
+				int want = encodings[i] ^ (mirrored ? 1 : 0);
+				int[] squares = (want & 1) == 1 ? pos.wpI : pos.bpI;
+				int sq = -1;
+				int n = (want & 1) == 1 ? pos.nWhitePieces : pos.nBlackPieces;
+				for (int j = 0; j < n && sq < 0; ++j) {
+					int s = squares[j];
+					if ((used & (1L << s)) == 0 && (pos.pieces[pos.board[s]].encoding & 15) == want) sq = s;
+				}
+				used |= 1L << sq;
+				index = (index << 6) | (mirrored ? sq ^ 56 : sq);
+			}
+			return whiteToMove ? index : index | (1 << (6 * encodings.length));
+		}
+
+		void load(Path file) throws IOException {
+			try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+				if (ch.size() != size) throw new IOException("Wrong size for " + name(code) + ": " + file);
+				data = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+		}
+
+		void save(Path file) throws IOException {
+			Path tmp = Paths.get(file + ".tmp");
+			try (OutputStream out = new FileOutputStream(tmp.toFile())) {
+				out.write(data.array());
+			}
+			Files.move(tmp, file, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		}
+
+	}
+
+	/**
+	 * Retrograde analysis of one table; see the class comment.
+	 */
+	static class Generator {
+
+		Tablebase tb;
+		Table table;
+		int n;
+		int half; // 64^n, the offset of black-to-move positions
+		byte[] value;
+		AtomicIntegerArray remaining; // moves within the table not yet known to lose
+		byte[] winAt; // plies to the fastest mate through a capture or promotion, 0 if none
+		byte[] lossAt; // plies to mate through the slowest losing move found so far, or CANNOT_LOSE
+
+		Generator(Tablebase tb, Table table) {
+			this.tb = tb;
+			this.table = table;
+			this.n = table.encodings.length;
+			this.half = 1 << (6 * n);
+			value = new byte[table.size];
+			remaining = new AtomicIntegerArray(table.size);
+			winAt = new byte[table.size];
+			lossAt = new byte[table.size];
+		}
+
+		// the tables that captures and promotions lead to; generated first, so the parallel passes only read
+		void generateDependencies() {
+			int code = table.code;
+			for (int c = 0; c < 2; ++c) {
+				for (int type = 1; type <= 5; ++type) {
+					int one = 1 << (3 * (type - 1) + 15 * c);
+					if (((code >>> (3 * (type - 1) + 15 * c)) & 7) == 0) continue;
+					dependency(code - one);
+					if (type == 1) {
+						for (int promotion = 2; promotion <= 5; ++promotion) {
+							dependency(code - one + (1 << (3 * (promotion - 1) + 15 * c)));
+						}
+					}
+				}
+			}
+		}
+
+		void dependency(int code) {
+			if (!insufficient(code & 0x7FFF, code >>> 15)) tb.table(code);
+		}
+
+		void run() {
+			generateDependencies();
+			long start = System.nanoTime();
+			int slices = (table.size + SLICE - 1) / SLICE;
+			IntStream.range(0, slices).parallel().forEach(s -> {
+				for (int i = s * SLICE; i < Math.min(table.size, (s+1) * SLICE); ++i) {
+					initialize(i);
+				}
+			});
+			int maxScheduled = 0;
+			for (int i = 0; i < table.size; ++i) {
+				maxScheduled = Math.max(maxScheduled, Math.max(winAt[i], lossAt[i]));
+			}
+			int level = 0;
+			boolean progress = true;
+			while (level <= MAX_DTM && (progress || level <= maxScheduled)) {
+				int ply = level;
+				progress = IntStream.range(0, slices).parallel().map(s -> resolve(s, ply)).sum() > 0;
+				progress |= IntStream.range(0, slices).parallel().map(s -> propagate(s, ply)).sum() > 0;
+				level++;
+			}
+			int wins = 0;
+			int losses = 0;
+			int draws = 0;
+			int longest = 0;
+			for (int i = 0; i < table.size; ++i) {
+				if (value[i] == UNKNOWN) value[i] = 0;
+				if (value[i] == ILLEGAL) continue;
+				if (value[i] > 0) wins++;
+				else if (value[i] < 0) losses++;
+				else draws++;
+				longest = Math.max(longest, value[i] < 0 ? -value[i] - 1 : value[i]); // -(n+1) is mated in n
+			}
+			table.data = ByteBuffer.wrap(value);
+			System.out.println(name(table.code) + ": " + wins + " wins, " + draws + " draws, " + losses
+				+ " losses, longest mate " + longest + " plies, " + (System.nanoTime() - start) / 1000000 + " ms");
+		}
+
+		int[] squares(int index) {
+			int[] sq = new int[n];
+			for (int i = n-1; i >= 0; --i) {
+				sq[i] = index & 63;
+				index >>>= 6;
+			}
+			return sq;
+		}
+
+		int index(int[] sq, boolean whiteToMove) {
+			int index = 0;
+			for (int i = 0; i < n; ++i) {
+				index = (index << 6) | sq[i];
+			}
+			return whiteToMove ? index : index | half;
+		}
+
+		// the first pass, with Position's move generator
+		void initialize(int index) {
+			boolean whiteToMove = index < half;
+			int[] sq = squares(index);
+			char[] board = new char[64];
+			for (int i = 0; i < n; ++i) {
+				int type = table.encodings[i] >>> 1;
+				if (board[sq[i]] != 0 || (type == 1 && (sq[i] < 8 || sq[i] >= 56))) {
+					value[index] = ILLEGAL;
+					return;
+				}
+				char c = "?pnbrqk".charAt(type);
+				board[sq[i]] = (table.encodings[i] & 1) == 1 ? Character.toUpperCase(c) : c;
+			}
+			// kings side by side are illegal too, but Position never generates king takes king
+			int blackKing = sq[table.blackKing];
+			if (Math.abs(sq[0]%8 - blackKing%8) <= 1 && Math.abs(sq[0]/8 - blackKing/8) <= 1) {
+				value[index] = ILLEGAL;
+				return;
+			}
+			Position pos = new Position();
+			pos.setFen(fen(board, whiteToMove));
+			List<Move> moves = pos.getMoves();
+			if (Search.capturesKing(moves)) {
+				value[index] = ILLEGAL;
+				return;
+			}
+			value[index] = UNKNOWN;
+			int inTable = 0;
+			int win = 0;
+			int loss = 0;
+			boolean legal = false;
+			for (int i = 0; i < moves.size(); ++i) {
+				Move m = moves.get(i);
+				Position child = new Position(pos);
+				child.move(m);
+				if (Search.capturesKing(child.getMoves())) continue;
+				legal = true;
+				if (m.endPieceIndex < 0 && (m.special < 4 || m.special > 7)) {
+					inTable++;
+					continue;
+				}
+				int v = tb.probe(child);
+				if (v == NONE) throw new IllegalStateException("No table for " + child.toFen());
+				if (v < 0) {
+					int plies = -v; // mated in -v-1, so our mate is one ply later
+					if (win == 0 || plies < win) win = plies;
+				} else if (v > 0) {
+					loss = loss == CANNOT_LOSE ? CANNOT_LOSE : Math.max(loss, v + 1);
+				} else {
+					loss = CANNOT_LOSE;
+				}
+			}
+			if (!legal) {
+				// mate, or stalemate, which stays UNKNOWN and so ends up a draw
+				if (pos.nchecks > 0) value[index] = -1;
+				return;
+			}
+			remaining.set(index, inTable);
+			winAt[index] = (byte) Math.min(win, MAX_DTM);
+			lossAt[index] = (byte) (loss == CANNOT_LOSE ? CANNOT_LOSE : Math.min(loss, MAX_DTM));
+		}
+
+		static String fen(char[] board, boolean whiteToMove) {
+			StringBuilder sb = new StringBuilder();
+			for (int rank = 7; rank >= 0; --rank) {
+				int empty = 0;
+				for (int file = 0; file < 8; ++file) {
+					char c = board[rank*8 + file];
+					if (c == 0) {
+						empty++;
+						continue;
+					}
+					if (empty > 0) sb.append(empty);
+					empty = 0;
+					sb.append(c);
+				}
+				if (empty > 0) sb.append(empty);
+				if (rank > 0) sb.append('/');
+			}
+			return sb.append(whiteToMove ? " w - - 0 1" : " b - - 0 1").toString();
+		}
+
+		// positions whose value becomes known at this ply through a capture or promotion, or a last losing move
+		int resolve(int slice, int ply) {
+			int found = 0;
+			for (int i = slice * SLICE; i < Math.min(table.size, (slice+1) * SLICE); ++i) {
+				if (value[i] != UNKNOWN) continue;
+				if (ply%2 == 1 && winAt[i] == ply) {
+					value[i] = (byte) ply;
+					found++;
+				} else if (ply%2 == 0 && ply > 0 && remaining.get(i) == 0 && lossAt[i] == ply) {
+					value[i] = (byte) -(ply + 1);
+					found++;
+				}
+			}
+			return found;
+		}
+
+		// predecessors of the positions decided in exactly ply plies
+		int propagate(int slice, int ply) {
+			byte target = (byte) (ply%2 == 0 ? -(ply + 1) : ply);
+			int[] preds = new int[128];
+			int changed = 0;
+			for (int i = slice * SLICE; i < Math.min(table.size, (slice+1) * SLICE); ++i) {
+				if (value[i] != target) continue;
+				int count = predecessors(i, preds);
+				for (int k = 0; k < count; ++k) {
+					int q = preds[k];
+					if (value[q] != UNKNOWN) continue;
+					if (ply%2 == 0) {
+						// a move into a lost position wins; the fastest such move is the first one found
+						value[q] = (byte) (ply + 1);
+						changed++;
+					} else {
+						if (lossAt[q] != CANNOT_LOSE && lossAt[q] < ply + 1) lossAt[q] = (byte) (ply + 1);
+						if (remaining.decrementAndGet(q) == 0 && lossAt[q] != CANNOT_LOSE) changed++;
+					}
+				}
+			}
+			return changed;
+		}
+
+		/**
+		 * Retracts every non-capturing move of the side that is not to move in index, skipping positions that
+		 * are illegal. Returns the number of predecessor indices written to out.
+		 */
+		int predecessors(int index, int[] out) {
+			boolean whiteToMove = index < half;
+			int moverColor = whiteToMove ? 0 : 1; // the side that made the last move
+			int[] sq = squares(index);
+			long occupied = 0;
+			for (int i = 0; i < n; ++i) {
+				occupied |= 1L << sq[i];
+			}
+			int count = 0;
+			for (int i = 0; i < n; ++i) {
+				if ((table.encodings[i] & 1) != moverColor) continue;
+				int type = table.encodings[i] >>> 1;
+				int to = sq[i];
+				int file = to%8;
+				int rank = to/8;
+				if (type == 6 || type == 2) {
+					int[][] steps = type == 6 ? KING_STEPS : KNIGHT_STEPS;
+					for (int d = 0; d < 8; ++d) {
+						int f = file + steps[d][0];
+						int r = rank + steps[d][1];
+						if (f < 0 || f > 7 || r < 0 || r > 7 || (occupied & (1L << (r*8 + f))) != 0) continue;
+						count = add(sq, i, r*8 + f, !whiteToMove, out, count);
+					}
+				} else if (type == 1) {
+					// one square back, but never from the first rank; two squares back after a double step
+					int step = moverColor == 1 ? 8 : -8;
+					int from = to - step;
+					if (from < 8 || from >= 56 || (occupied & (1L << from)) != 0) continue;
+					count = add(sq, i, from, !whiteToMove, out, count);
+					if (rank == (moverColor == 1 ? 3 : 4) && (occupied & (1L << (from - step))) == 0) {
+						count = add(sq, i, from - step, !whiteToMove, out, count);
+					}
+				} else {
+					for (int d = 0; d < 8; ++d) {
+						boolean diagonal = d%2 == 1;
+						if ((type == 4 && diagonal) || (type == 3 && !diagonal)) continue;
+						int f = file + KING_STEPS[d][0];
+						int r = rank + KING_STEPS[d][1];
+						while (f >= 0 && f <= 7 && r >= 0 && r <= 7 && (occupied & (1L << (r*8 + f))) == 0) {
+							count = add(sq, i, r*8 + f, !whiteToMove, out, count);
+							f += KING_STEPS[d][0];
+							r += KING_STEPS[d][1];
+						}
+					}
+				}
+			}
+			return count;
+		}
+
+		int add(int[] sq, int piece, int from, boolean whiteToMove, int[] out, int count) {
+			int to = sq[piece];
+			sq[piece] = from;
+			int q = index(sq, whiteToMove);
+			sq[piece] = to;
+			if (value[q] == ILLEGAL) return count;
+			out[count] = q;
+			return count + 1;
+		}
+
+	}
+
+}
@@ -0,0 +1,388 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Training data for offline tuning of the evaluation: positions scored by a fixed-depth search, each with the
+ * result of the game it came from. Positions come from self-play at the same depth, or from replaying a PGN file
+ * or game archive. Every thread owns a Search and writes its own shard, <out>.<thread>, so nothing is shared but
+ * the eval cache and the input queue.
+ *
+ * Only quiet positions are kept: the side to move is not in check and the search's best move neither captures
+ * nor promotes, so the static evaluation can be compared with the score. Mate scores, the first MIN_PLY plies
+ * and games without a result are skipped, and of the rest a random sample rate is kept.
+ *
+ * Records are RECORD_BYTES long, big-endian:
+ *
+ *   0   long   occupancy, bit n = square n
+ *   8   16     a nibble per occupied square in ascending order, low nibble first: type (1 pawn .. 6 king),
+ *              plus 8 for black
+ *   24  byte   bit 0 white to move, bits 1-4 castling KQkq
+ *   25  byte   en passent file + 1, or 0; only set when a pawn can take
+ *   26  short  search score in centipawns, from the side to move's point of view
+ *   28  byte   result: 0 black won, 1 draw, 2 white won
+ *   29  byte   halfmove clock, at most 255
+ *   30  short  fullmove number
+ *
+ * Usage: TrainingData selfplay <out> <games> [depth] [sample rate] [threads]
+ *        TrainingData replay <pgn or archive> <out> [depth] [sample rate] [threads]
+ *        TrainingData print <shard> [records]
+ */
+public class TrainingData {
+
+	static final int RECORD_BYTES = 32;
+	static final int MIN_PLY = 8;
+	static final int RANDOM_PLIES = 8; // random moves from the start position before a self-play game
+	static final int MAX_PLIES = 400;
+	static final String[] RESULTS = {"0-1", "1/2-1/2", "1-0"};
+
+	static final GameArchive.Game END = new GameArchive.Game();
+
+	int depth;
+	double sampleRate;
+	EvalCache cache = new EvalCache(64);
+	LongAdder positions = new LongAdder();
+	LongAdder games = new LongAdder();
+	LongAdder abandoned = new LongAdder(); // games the position code threw on, so none of their positions were written
+
+	public TrainingData(int depth, double sampleRate) {
+		this.depth = depth;
+		this.sampleRate = sampleRate;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length >= 3 && (args[0].equals("selfplay") || args[0].equals("replay"))) {
+			int depth = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+			double sampleRate = args.length > 4 ? Double.parseDouble(args[4]) : 0.25;
+			int threads = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+			TrainingData exporter = new TrainingData(depth, sampleRate);
+			if (args[0].equals("selfplay")) exporter.selfPlay(Integer.parseInt(args[2]), args[1], threads);
+			else exporter.replay(args[1], args[2], threads);
+		} else if (args.length >= 2 && args[0].equals("print")) {
+			int n = args.length > 2 ? Integer.parseInt(args[2]) : Integer.MAX_VALUE;
+			byte[] record = new byte[RECORD_BYTES];
+			try (Reader in = new Reader(args[1])) {
+				for (int i = 0; i < n && in.next(record); ++i) {
+					System.out.println(fen(record) + "  " + score(record) + "  " + RESULTS[result(record)]);
+				}
+			}
+		} else {
+			System.out.println("Usage: TrainingData selfplay <out> <games> [depth] [sample rate] [threads]");
+			System.out.println("       TrainingData replay <pgn or archive> <out> [depth] [sample rate] [threads]");
+			System.out.println("       TrainingData print <shard> [records]");
+		}
+	}
+
+	public void selfPlay(int nGames, String out, int threads) throws IOException, InterruptedException {
+		AtomicInteger next = new AtomicInteger();
+		run(out, threads, (search, shard, random) -> {
+			while (next.getAndIncrement() < nGames) {
+				playGame(search, shard, random);
+			}
+		});
+	}
+
+	// a PGN file, or a game archive when the name ends in .cga
+	public void replay(String in, String out, int threads) throws IOException, InterruptedException {
+		BlockingQueue<GameArchive.Game> queue = new ArrayBlockingQueue<GameArchive.Game>(1024);
+		Thread reader = new Thread(() -> {
+			try {
+				read(in, queue);
+			} catch (IOException | InterruptedException e) {
+				throw new RuntimeException(e);
+			} finally {
+				try {
+					for (int i = 0; i < threads; ++i) {
+						queue.put(END);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		reader.start();
+		run(out, threads, (search, shard, random) -> {
+			try {
+				for (GameArchive.Game g = queue.take(); g != END; g = queue.take()) {
+					replayGame(g, search, shard, random);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		reader.join();
+	}
+
+	static void read(String in, BlockingQueue<GameArchive.Game> queue) throws IOException, InterruptedException {
+		if (in.endsWith(".cga")) {
+			try (GameArchive archive = new GameArchive(in)) {
+				for (GameArchive.Game g = archive.next(); g != null; g = archive.next()) {
+					queue.put(g);
+				}
+			}
+		} else {
+			try (Pgn.Reader pgn = new Pgn.Reader(in)) {
+				for (Pgn.Game g = pgn.next(); g != null; g = pgn.next()) {
+					GameArchive.Game game = GameArchive.fromPgn(g);
+					if (game != null) queue.put(game);
+				}
+			}
+		}
+	}
+
+	interface Worker {
+		void work(Search search, DataOutputStream shard, Random random) throws IOException;
+	}
+
+	// runs worker on every thread with its own Search and shard, and reports progress every 10 s
+	void run(String out, int threads, Worker worker) throws IOException, InterruptedException {
+		long start = System.nanoTime();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<DataOutputStream> shards = new ArrayList<DataOutputStream>();
+		for (int i = 0; i < threads; ++i) {
+			DataOutputStream shard = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(out + "." + i), 1 << 16));
+			shards.add(shard);
+			long seed = start + i;
+			pool.execute(() -> {
+				try {
+					worker.work(new Search(cache), shard, new Random(seed));
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
+		pool.shutdown();
+		while (!pool.awaitTermination(10, TimeUnit.SECONDS)) {
+			System.out.println(progress(start));
+		}
+		for (DataOutputStream shard : shards) {
+			shard.close();
+		}
+		System.out.println(progress(start) + ", " + threads + " shards");
+	}
+
+	String progress(long start) {
+		double seconds = (System.nanoTime() - start) / 1e9;
+		return String.format(Locale.ROOT, "%d games (%d abandoned), %d positions, %.0f positions/s", games.sum(),
+			abandoned.sum(), positions.sum(), positions.sum() / seconds);
+	}
+
+	void playGame(Search search, DataOutputStream shard, Random random) throws IOException {
+		Position pos = new Position();
+		pos.setNew();
+		for (int i = 0; i < RANDOM_PLIES; ++i) {
+			List<Move> legal = pos.getLegalMoves();
+			if (legal.isEmpty()) return;
+			pos.move(legal.get(random.nextInt(legal.size())));
+		}
+		List<byte[]> records = new ArrayList<byte[]>();
+		Map<Long, Integer> seen = new HashMap<Long, Integer>();
+		int result;
+		try {
+			for (int ply = RANDOM_PLIES; ; ++ply) {
+				if (seen.merge(pos.hash, 1, Integer::sum) >= 3 || pos.movesWithoutCaptureOrPawn >= 100
+						|| MatchRunner.insufficientMaterial(pos)) {
+					result = 1;
+					break;
+				}
+				if (ply >= MAX_PLIES) return; // no result to label the positions with
+				Move best = search.search(pos, depth);
+				if (best == null) {
+					result = pos.nchecks == 0 ? 1 : pos.halfTurnNumber%2 == 1 ? 0 : 2;
+					break;
+				}
+				byte[] record = sample(pos, best, search.getBestScore(), ply, random);
+				if (record != null) records.add(record);
+				pos.move(best);
+			}
+		} catch (RuntimeException e) {
+			abandoned.increment(); // the position code can still get into states it cannot continue from
+			return;
+		}
+		write(shard, records, result);
+	}
+
+	void replayGame(GameArchive.Game g, Search search, DataOutputStream shard, Random random) throws IOException {
+		int result = g.result.equals("1-0") ? 2 : g.result.equals("0-1") ? 0 : g.result.equals("1/2-1/2") ? 1 : -1;
+		if (result < 0) return;
+		List<byte[]> records = new ArrayList<byte[]>();
+		try {
+			List<Move> moves = g.replay();
+			Position pos = g.start();
+			for (int ply = 0; ply < moves.size(); ++ply) {
+				// the search only runs for positions that pass the cheap checks and the sample
+				if (ply >= MIN_PLY && pos.nchecks == 0 && random.nextDouble() < sampleRate) {
+					Move best = search.search(pos, depth);
+					if (best != null) {
+						byte[] record = sample(pos, best, search.getBestScore(), ply, null);
+						if (record != null) records.add(record);
+					}
+				}
+				pos.move(moves.get(ply));
+			}
+		} catch (RuntimeException e) {
+			abandoned.increment(); // as in playGame(), or a game the move generator no longer replays
+			return;
+		}
+		write(shard, records, result);
+	}
+
+	// the record for pos if it is kept, without its result; random is null when the sample was already drawn
+	byte[] sample(Position pos, Move best, int score, int ply, Random random) {
+		boolean quiet = best.endPieceIndex < 0 && best.special != 1 && (best.special < 4 || best.special > 7);
+		if (ply < MIN_PLY || pos.nchecks > 0 || !quiet) return null;
+		if (Math.abs(score) > Search.MATE - Search.MAX_PLY) return null;
+		if (random != null && random.nextDouble() >= sampleRate) return null;
+		return pack(pos, score);
+	}
+
+	void write(DataOutputStream shard, List<byte[]> records, int result) throws IOException {
+		for (byte[] record : records) {
+			record[28] = (byte) result;
+			shard.write(record);
+		}
+		positions.add(records.size());
+		games.increment();
+	}
+
+	// the record for pos with result 0
+	public static byte[] pack(Position pos, int score) {
+		ByteBuffer b = ByteBuffer.allocate(RECORD_BYTES);
+		long occupancy = 0;
+		byte[] nibbles = new byte[16];
+		int n = 0;
+		for (int i = 0; i < 64; ++i) {
+			if (pos.board[i] < 0) continue;
+			occupancy |= 1L << i;
+			Piece p = pos.pieces[pos.board[i]];
+			int code = p.getType() | (p.getColor() ? 0 : 8);
+			nibbles[n/2] |= n%2 == 0 ? code : code << 4;
+			n++;
+		}
+		b.putLong(occupancy);
+		b.put(nibbles);
+		int rights = Zobrist.canonicalCastling(pos);
+		int flags = pos.halfTurnNumber%2 == 1 ? 1 : 0;
+		if ((rights & 3) == 3) flags |= 2;
+		if ((rights & 5) == 5) flags |= 4;
+		if ((rights & 24) == 24) flags |= 8;
+		if ((rights & 40) == 40) flags |= 16;
+		b.put((byte) flags);
+		int ep = Zobrist.canonicalEnPassent(pos);
+		b.put((byte) (ep < 0 ? 0 : ep%8 + 1));
+		b.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, score)));
+		b.put((byte) 0);
+		b.put((byte) Math.min(255, pos.movesWithoutCaptureOrPawn));
+		b.putShort((short) ((pos.halfTurnNumber+1)/2));
+		return b.array();
+	}
+
+	public static String fen(byte[] record) {
+		ByteBuffer b = ByteBuffer.wrap(record);
+		long occupancy = b.getLong(0);
+		char[] squares = new char[64];
+		int n = 0;
+		for (int i = 0; i < 64; ++i) {
+			if ((occupancy & (1L << i)) == 0) continue;
+			int code = (record[8 + n/2] >>> (n%2 == 0 ? 0 : 4)) & 15;
+			char c = "pnbrqk".charAt((code & 7) - 1);
+			squares[i] = code < 8 ? Character.toUpperCase(c) : c;
+			n++;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int rank = 7; rank >= 0; --rank) {
+			int empty = 0;
+			for (int file = 0; file < 8; ++file) {
+				char c = squares[rank*8 + file];
+				if (c == 0) {
+					empty++;
+					continue;
+				}
+				if (empty > 0) sb.append(empty);
+				empty = 0;
+				sb.append(c);
+			}
+			if (empty > 0) sb.append(empty);
+			if (rank > 0) sb.append('/');
+		}
+		int flags = record[24];
+		boolean white = (flags & 1) != 0;
+		sb.append(white ? " w " : " b ");
+		String castling = "";
+		for (int i = 0; i < 4; ++i) {
+			if ((flags & (2 << i)) != 0) castling += "KQkq".charAt(i);
+		}
+		sb.append(castling.isEmpty() ? "-" : castling);
+		int ep = record[25];
+		sb.append(' ').append(ep == 0 ? "-" : "abcdefgh".charAt(ep-1) + (white ? "6" : "3"));
+		sb.append(' ').append(record[29] & 0xFF);
+		sb.append(' ').append(b.getShort(30));
+		return sb.toString();
+	}
+
+	public static Position position(byte[] record) {
+		Position pos = new Position();
+		pos.setFen(fen(record));
+		return pos;
+	}
+
+	public static int score(byte[] record) {
+		return ByteBuffer.wrap(record).getShort(26);
+	}
+
+	// 0 black won, 1 draw, 2 white won
+	public static int result(byte[] record) {
+		return record[28];
+	}
+
+	/**
+	 * Reads the records of one shard in order.
+	 */
+	public static class Reader implements Closeable {
+
+		DataInputStream in;
+
+		public Reader(String file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		// fills record with the next record; false at the end of the shard
+		public boolean next(byte[] record) throws IOException {
+			try {
+				in.readFully(record, 0, RECORD_BYTES);
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+}
@@ -0,0 +1,140 @@
+package model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Transposition table: search results keyed by Position.hash, shared by all search threads.
+ *
+ * An entry is two longs, the key XORed with the data and the data itself. A reader recomputes the key from the
+ * two and only accepts the entry if it matches, so a torn write from another thread reads as a miss and there
+ * are no locks. The data packs
+ *
+ *   bits 0-15   best move, Move.pack(), 0 when none
+ *   bits 16-23  depth
+ *   bits 24-25  bound: UPPER (the score is at most this), LOWER (at least) or EXACT
+ *   bits 26-31  generation, the count of newSearch() calls when the entry was stored, modulo 64
+ *   bits 32-63  score, from the side to move's point of view, mate scores counted from this node
+ *
+ * Entries come in buckets of two. The first slot keeps the deepest result seen, the second always takes the
+ * newest one, so deep results survive a flood of shallow ones without the table filling up with stale entries.
+ * The table is meant to be kept from one move of a game to the next, where much of the previous search's tree is
+ * still relevant. A deep entry left over from an earlier search still gives way to the current one, though,
+ * since its generation is older.
+ */
+public class TranspositionTable {
+
+	public static final long MISS = 0; // no stored entry has a zero bound
+	public static final int UPPER = 1;
+	public static final int LOWER = 2;
+	public static final int EXACT = 3;
+
+	long[] entries; // [bucket*4 + slot*2] key ^ data, [bucket*4 + slot*2 + 1] data
+	int mask;
+	int generation; // written by whichever search starts next; a stale read only ages an entry less
+
+	LongAdder hits;
+	LongAdder misses;
+
+	// size in MB, rounded down to a power of 2 number of buckets
+	public TranspositionTable(int megabytes) {
+		long n = Math.max(1, ((long) megabytes << 20) / 32);
+		int buckets = (int) Math.min(Long.highestOneBit(n), 1 << 28);
+		entries = new long[buckets * 4];
+		mask = buckets - 1;
+		hits = new LongAdder();
+		misses = new LongAdder();
+	}
+
+	// the data stored for key, or MISS
+	public long probe(long key) {
+		if (Metrics.ENABLED) Metrics.count(Metrics.TRANSPOSITION_TABLE);
+		int i = ((int) key & mask) * 4;
+		for (int slot = i; slot < i + 4; slot += 2) {
+			long data = entries[slot+1];
+			if (data != MISS && (entries[slot] ^ data) == key) {
+				hits.increment();
+				return data;
+			}
+		}
+		misses.increment();
+		return MISS;
+	}
+
+	// score as the search returned it at ply, move packed or 0
+	public void store(long key, int move, int depth, int bound, int score, int ply) {
+		int i = ((int) key & mask) * 4;
+		long old = entries[i+1];
+		// an entry for the same position is replaced in place, whatever its depth
+		int slot = old == MISS || (entries[i] ^ old) == key || depth(old) <= depth || generation(old) != generation
+			? i : i + 2;
+		if (move == 0 && (entries[slot] ^ entries[slot+1]) == key) move = move(entries[slot+1]);
+		long data = (move & 0xFFFFL) | (long) depth << 16 | (long) bound << 24 | (long) generation << 26
+			| (long) toTable(score, ply) << 32;
+		entries[slot] = key ^ data;
+		entries[slot+1] = data;
+	}
+
+	public static int move(long data) {
+		return (int) data & 0xFFFF;
+	}
+
+	public static int depth(long data) {
+		return (int) (data >>> 16) & 0xFF;
+	}
+
+	public static int bound(long data) {
+		return (int) (data >>> 24) & 3;
+	}
+
+	static int generation(long data) {
+		return (int) (data >>> 26) & 63;
+	}
+
+	// called as each search starts, so entries stored before count as older than this search's; a table shared by
+	// concurrent searches is aged by its owner instead, see Search.agesTable
+	public void newSearch() {
+		generation = (generation + 1) & 63;
+	}
+
+	// the stored score as seen from a node at ply
+	public static int score(long data, int ply) {
+		int score = (int) (data >> 32);
+		if (score > Search.MATE - Search.MAX_PLY) return score - ply;
+		if (score < -Search.MATE + Search.MAX_PLY) return score + ply;
+		return score;
+	}
+
+	// mate scores are distances from the root in the search but from the node in the table
+	static int toTable(int score, int ply) {
+		if (score > Search.MATE - Search.MAX_PLY) return score + ply;
+		if (score < -Search.MATE + Search.MAX_PLY) return score - ply;
+		return score;
+	}
+
+	public void clear() {
+		for (int i = 0; i < entries.length; ++i) {
+			entries[i] = 0;
+		}
+		hits.reset();
+		misses.reset();
+	}
+
+	public int getSizeMB() {
+		return (int) (((long) entries.length * 8) >> 20);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return total == 0 ? 0 : (100.0 * h) / total;
+	}
+
+}
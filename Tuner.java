@@ -0,0 +1,248 @@
+package model;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.IntStream;
+
+/**
+ * Texel-style tuning of the Evaluation weights. The evaluation is linear in its weights, so every position is
+ * reduced once, when it is loaded, to its non-zero Evaluation.features() and a target. The target is the game
+ * result, optionally blended with the search score of the record by lambda. A position costs a few bytes per
+ * feature and Position objects are only used while loading.
+ *
+ * The loss is the mean squared difference between the target and sigmoid(K * score), with the scaling K first
+ * fitted to the starting weights. The weights are then moved by Adam on the gradient of the loss. Positions are
+ * held in chunks of CHUNK, and loading, loss and gradient all run chunk by chunk on the common fork-join pool
+ * through parallel streams.
+ *
+ * Usage: Tuner <epochs> <out parameter file> <shard>... [lambda=x] [rate=x]
+ * The starting weights are the defaults, or those of -Dchess.eval.
+ */
+public class Tuner {
+
+	static final int CHUNK = 1 << 16;
+
+	// the positions of one chunk, feature entries for position i in [start[i], start[i+1])
+	static class Chunk {
+		int size;
+		float[] target;
+		int[] start;
+		byte[] feature;
+		short[] count;
+	}
+
+	List<Chunk> chunks = new ArrayList<Chunk>();
+	long positions;
+	double lambda = 1; // weight of the game result against the search score in the target
+	double k = 1;
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.out.println("Usage: Tuner <epochs> <out parameter file> <shard>... [lambda=x] [rate=x]");
+			return;
+		}
+		int epochs = Integer.parseInt(args[0]);
+		double rate = 1;
+		Tuner tuner = new Tuner();
+		List<String> shards = new ArrayList<String>();
+		for (int i = 2; i < args.length; ++i) {
+			if (args[i].startsWith("lambda=")) tuner.lambda = Double.parseDouble(args[i].substring(7));
+			else if (args[i].startsWith("rate=")) rate = Double.parseDouble(args[i].substring(5));
+			else shards.add(args[i]);
+		}
+		long start = System.nanoTime();
+		for (String shard : shards) {
+			tuner.load(shard);
+		}
+		System.out.println(String.format(Locale.ROOT, "%d positions in %d chunks, loaded in %d ms", tuner.positions,
+			tuner.chunks.size(), (System.nanoTime() - start) / 1000000));
+
+		int[] initial = Evaluation.weights();
+		double[] w = new double[initial.length];
+		for (int i = 0; i < w.length; ++i) {
+			w[i] = initial[i];
+		}
+		tuner.k = tuner.fitK(w);
+		System.out.println(String.format(Locale.ROOT, "K %.4f, loss %.6f", tuner.k, tuner.loss(w)));
+		tuner.adam(w, epochs, rate);
+
+		int[] tuned = new int[w.length];
+		for (int i = 0; i < w.length; ++i) {
+			tuned[i] = (int) Math.round(w[i]);
+		}
+		Evaluation.save(args[1], tuned, String.format(Locale.ROOT, "tuned on %d positions, %d epochs, lambda %.2f",
+			tuner.positions, epochs, tuner.lambda));
+		for (int i = 0; i < tuned.length; ++i) {
+			System.out.println(String.format("%-16s %5d -> %5d", Evaluation.WEIGHT_NAMES[i], initial[i], tuned[i]));
+		}
+	}
+
+	// adds the records of one TrainingData shard
+	public void load(String file) throws IOException {
+		byte[] bytes = Files.readAllBytes(Paths.get(file));
+		int n = bytes.length / TrainingData.RECORD_BYTES;
+		int first = chunks.size();
+		int nChunks = (n + CHUNK - 1) / CHUNK;
+		Chunk[] loaded = new Chunk[nChunks];
+		IntStream.range(0, nChunks).parallel().forEach(c ->
+			loaded[c] = chunk(bytes, c * CHUNK, Math.min(n, (c+1) * CHUNK)));
+		chunks.addAll(Arrays.asList(loaded));
+		positions += n;
+		if (first == 0 && n > 0) check(bytes, Math.min(n, 1000));
+	}
+
+	Chunk chunk(byte[] bytes, int from, int to) {
+		Chunk c = new Chunk();
+		c.size = to - from;
+		c.target = new float[c.size];
+		c.start = new int[c.size + 1];
+		byte[] feature = new byte[c.size * 8];
+		short[] count = new short[c.size * 8];
+		int[] f = new int[Evaluation.WEIGHT_NAMES.length];
+		byte[] record = new byte[TrainingData.RECORD_BYTES];
+		int entries = 0;
+		for (int i = 0; i < c.size; ++i) {
+			System.arraycopy(bytes, (from + i) * TrainingData.RECORD_BYTES, record, 0, record.length);
+			Position pos = TrainingData.position(record);
+			Evaluation.features(pos, f);
+			if (entries + f.length > feature.length) {
+				feature = Arrays.copyOf(feature, feature.length * 2);
+				count = Arrays.copyOf(count, count.length * 2);
+			}
+			for (int j = 0; j < f.length; ++j) {
+				if (f[j] == 0) continue;
+				feature[entries] = (byte) j;
+				count[entries] = (short) f[j];
+				entries++;
+			}
+			c.start[i+1] = entries;
+			double result = TrainingData.result(record) / 2.0;
+			int score = TrainingData.score(record);
+			if (pos.halfTurnNumber%2 == 0) score = -score;
+			// the search score is taken as the expected result it stands for under the default scaling
+			c.target[i] = (float) (lambda * result + (1 - lambda) * sigmoid(1, score));
+		}
+		c.feature = Arrays.copyOf(feature, entries);
+		c.count = Arrays.copyOf(count, entries);
+		return c;
+	}
+
+	// features() and evaluate() must give the same score, or the tuned weights would not mean what they say
+	static void check(byte[] bytes, int n) {
+		int[] w = Evaluation.weights();
+		int[] f = new int[w.length];
+		Evaluation eval = new Evaluation();
+		byte[] record = new byte[TrainingData.RECORD_BYTES];
+		for (int i = 0; i < n; ++i) {
+			System.arraycopy(bytes, i * TrainingData.RECORD_BYTES, record, 0, record.length);
+			Position pos = TrainingData.position(record);
+			Evaluation.features(pos, f);
+			int score = 0;
+			for (int j = 0; j < w.length; ++j) {
+				score += w[j] * f[j];
+			}
+			int expected = eval.evaluate(pos) * (pos.halfTurnNumber%2 == 1 ? 1 : -1);
+			if (score != expected) {
+				throw new IllegalStateException("Evaluation.features() gives " + score + ", evaluate() " + expected
+					+ " for " + TrainingData.fen(record));
+			}
+		}
+	}
+
+	static double sigmoid(double k, double score) {
+		return 1 / (1 + Math.pow(10, -k * score / 400));
+	}
+
+	static double score(Chunk c, int i, double[] w) {
+		double s = 0;
+		for (int e = c.start[i]; e < c.start[i+1]; ++e) {
+			s += w[c.feature[e]] * c.count[e];
+		}
+		return s;
+	}
+
+	public double loss(double[] w) {
+		double sum = chunks.parallelStream().mapToDouble(c -> {
+			double e = 0;
+			for (int i = 0; i < c.size; ++i) {
+				double d = c.target[i] - sigmoid(k, score(c, i, w));
+				e += d*d;
+			}
+			return e;
+		}).sum();
+		return sum / positions;
+	}
+
+	// the gradient of loss() in w, with the loss itself in the extra last entry
+	public double[] gradient(double[] w) {
+		double[] g = chunks.parallelStream().map(c -> {
+			double[] part = new double[w.length + 1];
+			double scale = k * Math.log(10) / 400;
+			for (int i = 0; i < c.size; ++i) {
+				double s = sigmoid(k, score(c, i, w));
+				double d = c.target[i] - s;
+				part[w.length] += d*d;
+				double dScore = -2 * d * s * (1-s) * scale;
+				for (int e = c.start[i]; e < c.start[i+1]; ++e) {
+					part[c.feature[e]] += dScore * c.count[e];
+				}
+			}
+			return part;
+		}).reduce(new double[w.length + 1], (a, b) -> {
+			double[] sum = new double[a.length];
+			for (int i = 0; i < a.length; ++i) {
+				sum[i] = a[i] + b[i];
+			}
+			return sum;
+		});
+		for (int i = 0; i < g.length; ++i) {
+			g[i] /= positions;
+		}
+		return g;
+	}
+
+	// golden section search for the K that fits the weights best, between 0.1 and 3
+	double fitK(double[] w) {
+		double a = 0.1;
+		double b = 3;
+		double ratio = (Math.sqrt(5) - 1) / 2;
+		for (int i = 0; i < 40; ++i) {
+			double x1 = b - ratio * (b-a);
+			double x2 = a + ratio * (b-a);
+			k = x1;
+			double l1 = loss(w);
+			k = x2;
+			double l2 = loss(w);
+			if (l1 < l2) b = x2;
+			else a = x1;
+		}
+		return (a + b) / 2;
+	}
+
+	// full-batch Adam; rate is in centipawns per epoch
+	void adam(double[] w, int epochs, double rate) {
+		double beta1 = 0.9;
+		double beta2 = 0.999;
+		double[] m = new double[w.length];
+		double[] v = new double[w.length];
+		for (int epoch = 1; epoch <= epochs; ++epoch) {
+			long start = System.nanoTime();
+			double[] g = gradient(w);
+			for (int i = 0; i < w.length; ++i) {
+				m[i] = beta1 * m[i] + (1-beta1) * g[i];
+				v[i] = beta2 * v[i] + (1-beta2) * g[i] * g[i];
+				double mHat = m[i] / (1 - Math.pow(beta1, epoch));
+				double vHat = v[i] / (1 - Math.pow(beta2, epoch));
+				w[i] -= rate * mHat / (Math.sqrt(vHat) + 1e-12);
+			}
+			System.out.println(String.format(Locale.ROOT, "epoch %d  loss %.6f  %d ms", epoch, g[w.length],
+				(System.nanoTime() - start) / 1000000));
+		}
+	}
+
+}
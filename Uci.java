@@ -0,0 +1,460 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * UCI front-end, so the engine can be run from a GUI or tournament manager.
+ *
+ * The main thread only reads and answers commands; every "go" runs on a single dedicated search thread. That way
+ * "stop", "isready" and "quit" are answered while a search is running. "stop" sets the search's volatile stop flag
+ * and the search thread sends "bestmove" itself once it has unwound.
+ *
+ * GUIs resend the whole game with every "position ... moves" command. When the new move list extends the previous
+ * one from the same start position, only the new moves are played on the current position instead of replaying
+ * the game from the start.
+ *
+ * Hash sizes the transposition table, as GUIs expect; the evaluation cache has an option of its own. With
+ * MultiPV above 1 every iteration reports that many lines, each with its "multipv" rank. A malformed option value
+ * or go parameter is ignored with an "info string" rather than ending the engine.
+ *
+ * "go ponder" searches the position after the expected reply, sent as the last move, without a time limit. On
+ * "ponderhit" the same search goes on with the time the go command's clock allows, counted from then; on "stop"
+ * it ends and the GUI sends the real position next. The bestmove names the reply to ponder on. The table and the
+ * move ordering history are kept between moves and only cleared by "ucinewgame", so a search always starts from
+ * what the pondering and earlier searches found.
+ */
+public class Uci {
+
+	static final String NAME = "Chess";
+	static final int MAX_HASH = 1024; // MB
+	// the go parameters that take a number; "mate" is not supported and skipped with the rest
+	static final List<String> GO_NUMBERS = Arrays.asList("depth", "nodes", "movetime", "wtime", "btime", "winc", "binc",
+		"movestogo");
+
+	PrintStream out;
+	ExecutorService searchThread;
+	Future<?> running;
+	CountDownLatch pondering; // released on ponderhit or stop, null when not pondering
+	long ponderMillis; // the time the search gets on ponderhit
+	EvalCache cache;
+	TranspositionTable table;
+	Search search;
+	OpeningBook book;
+	Random random;
+
+	Position pos;
+	String baseFen; // null = startpos
+	List<String> moves;
+
+	public Uci(PrintStream out) {
+		this.out = out;
+		this.searchThread = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "search");
+			t.setDaemon(true);
+			return t;
+		});
+		this.cache = new EvalCache(16);
+		this.table = new TranspositionTable(16);
+		this.search = new Search(cache, table);
+		this.search.setListener(this::info);
+		this.random = new Random();
+		setPosition(null, new ArrayList<String>());
+	}
+
+	public static void main(String[] args) throws IOException {
+		Uci uci = new Uci(System.out);
+		BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+		String line;
+		while ((line = in.readLine()) != null) {
+			if (!uci.command(line.trim())) break;
+		}
+		uci.stopSearch();
+	}
+
+	// returns false on quit
+	public boolean command(String line) {
+		String[] tokens = line.split("\\s+");
+		switch (tokens[0]) {
+		case "uci":
+			send("id name " + NAME);
+			send("id author mrevsine");
+			send("option name Hash type spin default 16 min 1 max " + MAX_HASH);
+			send("option name EvalHash type spin default 16 min 1 max " + MAX_HASH);
+			send("option name MultiPV type spin default 1 min 1 max " + MoveOrdering.MAX_MOVES);
+			send("option name Ponder type check default false");
+			send("option name NullMove type check default true");
+			send("option name LMR type check default true");
+			send("option name Futility type check default true");
+			send("option name Razoring type check default true");
+			send("option name Book type string default <empty>");
+			send("option name Tablebases type string default <empty>");
+			send("uciok");
+			break;
+		case "isready":
+			send("readyok");
+			break;
+		case "ucinewgame":
+			stopSearch();
+			cache.clear();
+			table.clear();
+			search.newGame();
+			setPosition(null, new ArrayList<String>());
+			break;
+		case "setoption":
+			stopSearch();
+			setOption(tokens);
+			break;
+		case "position":
+			stopSearch();
+			position(tokens);
+			break;
+		case "go":
+			stopSearch();
+			go(tokens);
+			break;
+		case "ponderhit":
+			ponderhit();
+			break;
+		case "stop":
+			stopSearch();
+			break;
+		case "quit":
+			return false;
+		case "d":
+			pos.printBoard();
+			send(pos.toFen());
+			break;
+		default:
+			break;
+		}
+		return true;
+	}
+
+	void setOption(String[] tokens) {
+		String name = "";
+		String value = "";
+		for (int i = 1; i < tokens.length; ++i) {
+			if (tokens[i].equals("name") && i+1 < tokens.length) name = tokens[i+1];
+			// the value runs to the end of the line, since a path may contain spaces
+			if (tokens[i].equals("value") && i+1 < tokens.length) value = String.join(" ", Arrays.copyOfRange(tokens, i+1, tokens.length));
+		}
+		boolean on = value.equalsIgnoreCase("true");
+		switch (name) {
+		case "Hash":
+			Integer mb = spin(name, value, 1, MAX_HASH);
+			if (mb == null) break;
+			table = new TranspositionTable(mb);
+			replaceSearch();
+			break;
+		case "EvalHash":
+			Integer evalMb = spin(name, value, 1, MAX_HASH);
+			if (evalMb == null) break;
+			cache = new EvalCache(evalMb);
+			replaceSearch();
+			break;
+		case "MultiPV":
+			Integer lines = spin(name, value, 1, MoveOrdering.MAX_MOVES);
+			if (lines != null) search.multiPv = lines;
+			break;
+		case "Book":
+			try {
+				if (book != null) book.close();
+				book = value.isEmpty() || value.equals("<empty>") ? null : new OpeningBook(value);
+			} catch (IOException e) {
+				book = null;
+				send("info string cannot open book " + value + ": " + e.getMessage());
+			}
+			break;
+		case "Tablebases":
+			// only tables already generated into the directory; generating one takes far too long mid-game
+			search.tablebase = value.isEmpty() || value.equals("<empty>") ? null : new Tablebase(value, false);
+			break;
+		case "NullMove":
+			search.useNullMove = on;
+			break;
+		case "LMR":
+			search.useLmr = on;
+			break;
+		case "Futility":
+			search.useFutility = on;
+			break;
+		case "Razoring":
+			search.useRazoring = on;
+			break;
+		default:
+			break;
+		}
+	}
+
+	// value as a spin option from min to max, or null after telling the GUI it was ignored
+	Integer spin(String name, String value, int min, int max) {
+		Long v = number(value);
+		if (v == null || v < min || v > max) {
+			send("info string ignoring " + name + " " + value + ", expected " + min + " to " + max);
+			return null;
+		}
+		return v.intValue();
+	}
+
+	// null if s is not a whole number
+	static Long number(String s) {
+		try {
+			return Long.parseLong(s);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	// a new Search on the current cache and table, with the settings of the old one
+	void replaceSearch() {
+		Search s = new Search(cache, table);
+		s.useNullMove = search.useNullMove;
+		s.useLmr = search.useLmr;
+		s.useFutility = search.useFutility;
+		s.useRazoring = search.useRazoring;
+		s.multiPv = search.multiPv;
+		s.tablebase = search.tablebase;
+		s.setListener(this::info);
+		search = s;
+	}
+
+	void position(String[] tokens) {
+		String fen = null;
+		List<String> list = new ArrayList<String>();
+		int i = 1;
+		if (i < tokens.length && tokens[i].equals("fen")) {
+			StringBuilder sb = new StringBuilder();
+			for (++i; i < tokens.length && !tokens[i].equals("moves"); ++i) {
+				if (sb.length() > 0) sb.append(' ');
+				sb.append(tokens[i]);
+			}
+			fen = sb.toString();
+		} else if (i < tokens.length && tokens[i].equals("startpos")) {
+			++i;
+		}
+		if (i < tokens.length && tokens[i].equals("moves")) {
+			for (++i; i < tokens.length; ++i) {
+				list.add(tokens[i]);
+			}
+		}
+		setPosition(fen, list);
+	}
+
+	void setPosition(String fen, List<String> list) {
+		boolean sameBase = fen == null ? baseFen == null : fen.equals(baseFen);
+		if (pos == null || !sameBase || list.size() < moves.size() || !list.subList(0, moves.size()).equals(moves)) {
+			pos = new Position();
+			if (fen == null) {
+				pos.setNew();
+			} else {
+				pos.setFen(fen);
+			}
+			baseFen = fen;
+			moves = new ArrayList<String>();
+		}
+		for (int i = moves.size(); i < list.size(); ++i) {
+			Move m = parseMove(pos, list.get(i));
+			if (m == null) {
+				send("info string illegal move " + list.get(i));
+				return;
+			}
+			pos.move(m);
+			moves.add(list.get(i));
+		}
+	}
+
+	// null if the move is not legal here
+	public static Move parseMove(Position pos, String uci) {
+		for (Move m : pos.getMoves()) {
+			if (m.getUciName().equals(uci)) return m;
+		}
+		return null;
+	}
+
+	void go(String[] tokens) {
+		int depth = Search.MAX_PLY;
+		long nodes = Long.MAX_VALUE;
+		long movetime = Long.MAX_VALUE;
+		long time = -1;
+		long inc = 0;
+		int movestogo = 30;
+		boolean ponder = false;
+		boolean white = pos.halfTurnNumber%2 == 1;
+		List<Move> searchMoves = new ArrayList<Move>();
+		for (int i = 1; i < tokens.length; ++i) {
+			String t = tokens[i];
+			if (t.equals("infinite")) continue;
+			if (t.equals("ponder")) {
+				ponder = true;
+				continue;
+			}
+			if (t.equals("searchmoves")) {
+				// the moves run up to the next token that is not one
+				for (Move m; i+1 < tokens.length && (m = parseMove(pos, tokens[i+1])) != null; ++i) {
+					searchMoves.add(m);
+				}
+				continue;
+			}
+			if (!GO_NUMBERS.contains(t)) continue;
+			Long v = i+1 < tokens.length ? number(tokens[i+1]) : null;
+			if (v == null) {
+				send("info string no number after " + t);
+				continue;
+			}
+			++i;
+			switch (t) {
+			case "depth":
+				depth = (int) Math.max(1, Math.min(v, Search.MAX_PLY));
+				break;
+			case "nodes":
+				nodes = v;
+				break;
+			case "movetime":
+				movetime = v;
+				break;
+			case "wtime":
+				if (white) time = Math.max(0, v);
+				break;
+			case "btime":
+				if (!white) time = Math.max(0, v);
+				break;
+			case "winc":
+				if (white) inc = Math.max(0, v);
+				break;
+			case "binc":
+				if (!white) inc = Math.max(0, v);
+				break;
+			case "movestogo":
+				movestogo = (int) Math.max(1, Math.min(v, 1000));
+				break;
+			default:
+				break;
+			}
+		}
+		if (time >= 0 && movetime == Long.MAX_VALUE) movetime = moveTime(time, inc, movestogo);
+
+		// a book move is played at once without spending any of the clock; a ponder search may not answer early
+		Move bookMove = book == null || ponder ? null : book.getMove(pos, random);
+		if (bookMove != null) {
+			send("info string book move");
+			send("bestmove " + bookMove.getUciName());
+			return;
+		}
+
+		Position root = new Position(pos);
+		Search s = search;
+		s.searchMoves = searchMoves.isEmpty() ? null : searchMoves;
+		int maxDepth = depth;
+		long maxNodes = nodes;
+		long maxMillis = ponder ? Long.MAX_VALUE : movetime;
+		CountDownLatch ponderhit = ponder ? new CountDownLatch(1) : null;
+		pondering = ponderhit;
+		ponderMillis = movetime;
+		// cleared here rather than on the search thread, so a "stop" or "ponderhit" sent right after "go" cannot be lost
+		s.stopped = false;
+		s.ponderhit = false;
+		running = searchThread.submit(() -> {
+			Move best = null;
+			try {
+				best = s.iterate(root, maxDepth, maxNodes, maxMillis);
+			} catch (RuntimeException e) {
+				send("info string search failed: " + e);
+			} finally {
+				// whatever happened, the GUI gets a bestmove: the last completed iteration's if the search threw
+				if (best == null) best = s.getBestMove();
+				if (ponderhit != null) {
+					// the bestmove of a ponder search waits for ponderhit or stop, even if the search ended early
+					try {
+						ponderhit.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				List<Search.Line> lines = s.getLines();
+				Move reply = !lines.isEmpty() && lines.get(0).move == best && lines.get(0).pv.size() > 1
+					? lines.get(0).pv.get(1) : null;
+				send("bestmove " + (best == null ? "0000" : best.getUciName())
+					+ (reply == null ? "" : " ponder " + reply.getUciName()));
+			}
+		});
+	}
+
+	// the opponent played the expected move, so the ponder search becomes the real one
+	void ponderhit() {
+		if (pondering == null) return;
+		search.ponderhit(ponderMillis);
+		pondering.countDown();
+		pondering = null;
+	}
+
+	// an even share of the remaining time plus most of the increment, never more than half the clock
+	public static long moveTime(long time, long inc, int movestogo) {
+		return Math.max(1, Math.min(time / 2, time / movestogo + inc * 3 / 4));
+	}
+
+	// blocks until the running search, if any, has sent its bestmove
+	void stopSearch() {
+		if (running == null) return;
+		search.stop();
+		if (pondering != null) {
+			pondering.countDown();
+			pondering = null;
+		}
+		try {
+			running.get();
+		} catch (ExecutionException e) {
+			send("info string search failed: " + e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		running = null;
+	}
+
+	// called on the search thread after each iteration, once the search's lines are set
+	void info(int depth, int score, long nodes, long nanos, Move best) {
+		long ms = nanos / 1000000;
+		String stats = " nodes " + nodes + " time " + ms + " nps " + (nodes * 1000 / Math.max(1, ms));
+		List<Search.Line> lines = search.getLines();
+		if (lines.isEmpty()) {
+			send("info depth " + depth + " score " + score(score) + stats + (best == null ? "" : " pv " + best.getUciName()));
+			return;
+		}
+		for (int i = 0; i < lines.size(); ++i) {
+			Search.Line l = lines.get(i);
+			StringBuilder pv = new StringBuilder();
+			for (Move m : l.pv) {
+				pv.append(' ').append(m.getUciName());
+			}
+			send("info depth " + depth + (search.multiPv > 1 ? " multipv " + (i+1) : "") + " score " + score(l.score)
+				+ stats + " pv" + pv);
+		}
+	}
+
+	static String score(int score) {
+		if (Math.abs(score) > Search.MATE - Search.MAX_PLY) {
+			int plies = Search.MATE - Math.abs(score);
+			return "mate " + (score > 0 ? (plies+1)/2 : -(plies+1)/2);
+		}
+		return "cp " + score;
+	}
+
+	void send(String line) {
+		synchronized (out) {
+			out.println(line);
+			out.flush();
+		}
+	}
+
+}
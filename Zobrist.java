@@ -0,0 +1,118 @@
+package model;
+
+/**
+ * Zobrist keys for hashing positions. A position's key is the XOR of one random 64-bit number per (piece, square),
+ * so a move only has to XOR out the old square and XOR in the new one.
+ *
+ * The keys come from a fixed-seed generator rather than java.util.Random so they never change between runs or
+ * JDK versions; anything written to disk keyed by a hash depends on that.
+ */
+public class Zobrist {
+
+	// PIECES[encoding & 15][square], i.e. indexed by type << 1 | color
+	static final long[][] PIECES = new long[16][64];
+	static final long[] CASTLING = new long[64]; // one key per value of castlingRights
+	static final long[] EN_PASSENT = new long[8]; // by file
+	static final long SIDE; // XORed in when black is to move
+
+	static {
+		long seed = 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < 16; ++i) {
+			for (int j = 0; j < 64; ++j) {
+				seed = next(seed);
+				PIECES[i][j] = mix(seed);
+			}
+		}
+		for (int i = 0; i < 64; ++i) {
+			seed = next(seed);
+			CASTLING[i] = mix(seed);
+		}
+		for (int i = 0; i < 8; ++i) {
+			seed = next(seed);
+			EN_PASSENT[i] = mix(seed);
+		}
+		seed = next(seed);
+		SIDE = mix(seed);
+	}
+
+	// splitmix64
+	static long next(long seed) {
+		return seed + 0x9E3779B97F4A7C15L;
+	}
+
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	public static long piece(Piece p, int square) {
+		return PIECES[p.encoding & 15][square];
+	}
+
+	public static long enPassent(int square) {
+		return square < 0 ? 0 : EN_PASSENT[square%8];
+	}
+
+	// from scratch; move(Move) keeps Position.hash up to date incrementally
+	public static long hash(Position pos) {
+		long h = CASTLING[pos.castlingRights] ^ enPassent(pos.enPassent);
+		if (pos.halfTurnNumber%2 == 0) h ^= SIDE;
+		for (int i = 0; i < 64; ++i) {
+			if (pos.board[i] > -1) h ^= piece(pos.pieces[pos.board[i]], i);
+		}
+		return h;
+	}
+
+	/**
+	 * pos.hash with the castling rights and en passent square as a FEN gives them. A castling right then needs its
+	 * king and rook still unmoved, and an en passent square needs a pawn that could take. Position keeps both
+	 * looser, so the same position reached in a game and set up from its FEN can otherwise hash differently.
+	 */
+	public static long canonical(Position pos) {
+		return pos.hash ^ CASTLING[pos.castlingRights] ^ CASTLING[canonicalCastling(pos)]
+			^ enPassent(pos.enPassent) ^ enPassent(canonicalEnPassent(pos));
+	}
+
+	// castlingRights with only the rights whose king and rook are both unmoved, each as setFen() sets it
+	static int canonicalCastling(Position pos) {
+		int rights = 0;
+		if (pos.getCastlingRights(0)) {
+			if (pos.getCastlingRights(1) && pos.board[7] == 3) rights |= 3;
+			if (pos.getCastlingRights(2) && pos.board[0] == 2) rights |= 5;
+		}
+		if (pos.getCastlingRights(3)) {
+			if (pos.getCastlingRights(4) && pos.board[63] == 19) rights |= 24;
+			if (pos.getCastlingRights(5) && pos.board[56] == 18) rights |= 40;
+		}
+		return rights;
+	}
+
+	// enPassent, or -1 when no pawn stands next to the pawn that moved
+	static int canonicalEnPassent(Position pos) {
+		int ep = pos.enPassent;
+		if (ep < 0) return -1;
+		boolean whitePushed = ep < 32;
+		int pawnSquare = whitePushed ? ep + 8 : ep - 8;
+		for (int side = -1; side <= 1; side += 2) {
+			int sq = pawnSquare + side;
+			if (sq/8 != pawnSquare/8 || pos.board[sq] < 0) continue;
+			Piece p = pos.pieces[pos.board[sq]];
+			if (p.getType() == 1 && p.getColor() != whitePushed) return ep;
+		}
+		return -1;
+	}
+
+	// from scratch; move(Move) keeps Position.pawnHash up to date incrementally
+	public static long pawnHash(Position pos) {
+		long h = 0;
+		for (int i = 0; i < 64; ++i) {
+			if (pos.board[i] > -1) {
+				Piece p = pos.pieces[pos.board[i]];
+				if (p.getType() == 1) h ^= piece(p, i);
+			}
+		}
+		return h;
+	}
+
+}
@@ -0,0 +1,93 @@
+package model;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * BulkKernels on the incubating Vector API, one lane per piece or square. Needs
+ * --add-modules jdk.incubator.vector at compile and run time; BulkKernels.select() falls back to the scalar code
+ * when the module is missing.
+ *
+ * The piece arrays are zero past n, and a zero encoding has no moves and weight 0, so every loop runs over all
+ * 32 entries without masks. TARGETS lookups are gathers: the indices are worked out in lanes, stored, and
+ * gathered from. The piece-square sum avoids gathers by adding each code's row under a mask of its squares.
+ */
+public class VectorKernels implements BulkKernels {
+
+	static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+	static final VectorSpecies<Long> LONGS = LongVector.SPECIES_PREFERRED;
+
+	public void decode(int[] encodings, int n, int[] counts) {
+		for (int i = 0; i < 32; i += INTS.length()) {
+			IntVector mvs = IntVector.fromArray(INTS, encodings, i).lanewise(VectorOperators.LSHR, 8);
+			for (int d = 0; d < 8; ++d) {
+				mvs.lanewise(VectorOperators.LSHR, 3*d).and(7).intoArray(counts, d*32 + i);
+			}
+		}
+	}
+
+	public int mobility(int[] encodings, int n, int[] weights) {
+		IntVector sum = IntVector.zero(INTS);
+		for (int i = 0; i < 32; i += INTS.length()) {
+			IntVector e = IntVector.fromArray(INTS, encodings, i);
+			IntVector mvs = e.lanewise(VectorOperators.LSHR, 8);
+			IntVector type = e.lanewise(VectorOperators.LSHR, 1).and(7);
+			IntVector all = mvs.and(7);
+			for (int d = 1; d < 8; ++d) {
+				all = all.add(mvs.lanewise(VectorOperators.LSHR, 3*d).and(7));
+			}
+			IntVector pin = e.lanewise(VectorOperators.LSHR, 5).and(7);
+			IntVector alongPin = mvs.lanewise(VectorOperators.LSHR, pin.mul(3)).and(7)
+				.add(mvs.lanewise(VectorOperators.LSHR, pin.add(4).and(7).mul(3)).and(7));
+			VectorMask<Integer> pinned = e.and(16).compare(VectorOperators.NE, 0);
+			IntVector m = all.blend(alongPin, pinned).blend(0, pinned.and(type.compare(VectorOperators.EQ, 2)));
+			IntVector weight = IntVector.zero(INTS);
+			for (int t = 2; t <= 5; ++t) { // the other types have no mobility weight in Evaluation
+				weight = weight.blend(weights[t], type.compare(VectorOperators.EQ, t));
+			}
+			m = m.mul(weight);
+			sum = sum.add(m.blend(m.neg(), e.and(1).compare(VectorOperators.EQ, 0)));
+		}
+		return sum.reduceLanes(VectorOperators.ADD);
+	}
+
+	public long targets(int[] encodings, int[] squares, int n) {
+		// TARGETS index per direction and piece, 0 (an empty entry) where a pin rules the direction out
+		int[] index = new int[8*32];
+		for (int i = 0; i < 32; i += INTS.length()) {
+			IntVector e = IntVector.fromArray(INTS, encodings, i);
+			IntVector mvs = e.lanewise(VectorOperators.LSHR, 8);
+			VectorMask<Integer> knight = e.lanewise(VectorOperators.LSHR, 1).and(7).compare(VectorOperators.EQ, 2);
+			VectorMask<Integer> pinned = e.and(16).compare(VectorOperators.NE, 0);
+			IntVector pin = e.lanewise(VectorOperators.LSHR, 5).and(7);
+			IntVector opposite = pin.add(4).and(7);
+			IntVector base = IntVector.fromArray(INTS, squares, i).add(IntVector.zero(INTS).blend(64, knight)).mul(64);
+			for (int d = 0; d < 8; ++d) {
+				VectorMask<Integer> blocked = pinned.and(knight.or(pin.compare(VectorOperators.NE, d)
+					.and(opposite.compare(VectorOperators.NE, d))));
+				base.add(8*d).add(mvs.lanewise(VectorOperators.LSHR, 3*d).and(7)).blend(0, blocked)
+					.intoArray(index, d*32 + i);
+			}
+		}
+		LongVector bits = LongVector.zero(LONGS);
+		for (int j = 0; j < 8*32; j += LONGS.length()) {
+			bits = bits.or(LongVector.fromArray(LONGS, TARGETS, 0, index, j));
+		}
+		return bits.reduceLanes(VectorOperators.OR);
+	}
+
+	public int pieceSquare(int[] codes, int[] table) {
+		IntVector sum = IntVector.zero(INTS);
+		for (int sq = 0; sq < 64; sq += INTS.length()) {
+			IntVector c = IntVector.fromArray(INTS, codes, sq);
+			for (int code = 1; code <= 12; ++code) {
+				sum = sum.add(IntVector.fromArray(INTS, table, code*64 + sq, c.compare(VectorOperators.EQ, code)));
+			}
+		}
+		return sum.reduceLanes(VectorOperators.ADD);
+	}
+
+}